@@ -125,6 +125,12 @@ public abstract class DeferredEvent {
 	 * The time instance at which this event should be delivered
 	 */
 	private final long eventArrival;
+	/**
+	 * The position of this event in the list of events that should be
+	 * delivered at eventArrival. Allows cancelling the event without searching
+	 * through all simultaneous events.
+	 */
+	private int receiverIndex;
 
 	/**
 	 * Allows constructing objects that will receive an eventAction() call from
@@ -154,6 +160,7 @@ public abstract class DeferredEvent {
 			simultaneousReceivers = temp;
 			simultaneousReceiverPairs.setRight(temp);
 		}
+		receiverIndex = len;
 		simultaneousReceivers[len++] = this;
 		simultaneousReceiverPairs.setLeft(len);
 		if (!dispatcherSingleton.isSubscribed() || dispatcherSingleton.getNextEvent() > eventArrival) {
@@ -180,19 +187,20 @@ public abstract class DeferredEvent {
 				DeferredEvent[] simultaneousReceivers = simultaneousReceiverPairs.getRight();
 				// For performance reasons this removal operation does not keep
 				// the order of the array entries
-				for (int i = 0; i < len; i++) {
-					if (simultaneousReceivers[i] == this) {
-						len--;
-						if (len > i) {
-							simultaneousReceivers[i] = simultaneousReceivers[len];
-						}
-						simultaneousReceivers[len] = null;
-						break;
-					}
+				len--;
+				if (len > receiverIndex) {
+					final DeferredEvent moved = simultaneousReceivers[len];
+					simultaneousReceivers[receiverIndex] = moved;
+					moved.receiverIndex = receiverIndex;
 				}
+				simultaneousReceivers[len] = null;
 				if (len == 0) {
 					toSweep.remove(eventArrival);
-					dispatcherSingleton.updateDispatcher();
+					// The dispatcher only needs to look for a new event time
+					// if the cancelled event was the next one to deliver
+					if (!dispatcherSingleton.isSubscribed() || dispatcherSingleton.getNextEvent() == eventArrival) {
+						dispatcherSingleton.updateDispatcher();
+					}
 				} else {
 					simultaneousReceiverPairs.setLeft(len);
 				}
@@ -416,7 +416,7 @@ public class IaaSService implements VMManager<IaaSService, PhysicalMachine>,
 						pm);
 				if (pm.isHostingVMs()) {
 					AlterableResourceConstraints needed = new AlterableResourceConstraints(
-							pm.getCapacities());
+							pm.getOvercommittedCapacities());
 					needed.subtract(pm.freeCapacities);
 					PhysicalMachine receiver = null;
 					for (PhysicalMachine curr : machines) {
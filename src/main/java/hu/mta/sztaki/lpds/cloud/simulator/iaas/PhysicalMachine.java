@@ -85,6 +85,15 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 	 * It is specified in ticks.
 	 */
 	public static final int migrationAllocLen = 1000000;
+	/**
+	 * The length of the resource allocations made for live migrations. The
+	 * number of pre-copy rounds depends on the network conditions, so the
+	 * allocation is kept until the live migration either uses it or cancels it
+	 * (the migration does one of these in all of its outcomes).
+	 * 
+	 * It is specified in ticks.
+	 */
+	public static final int liveMigrationAllocLen = Integer.MAX_VALUE;
 	/**
 	 * Amount of processing to be done if the PM need to be underutilized. This
 	 * constant is used for calculating the emulation of on and off operations
@@ -220,23 +229,27 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 			super(until);
 			allocated = alloc;
 			realAllocated = realAlloc;
-			int prLen = promisedResources.length;
-			int i = 0;
-			for (i = 0; i < prLen && promisedResources[i] != null; i++)
-				;
-			if (i == prLen) {
-				ResourceAllocation[] alls = new ResourceAllocation[prLen * 2];
+			if (freePromiseSlotCount == 0) {
+				// All slots are occupied, the table is doubled and all new
+				// slots are offered for reuse
+				final int prLen = promisedResources.length;
+				final ResourceAllocation[] alls = new ResourceAllocation[prLen * 2];
 				System.arraycopy(promisedResources, 0, alls, 0, prLen);
 				promisedResources = alls;
-				promisedResources[prLen] = this;
-				myPromisedIndex = prLen;
-			} else {
-				promisedResources[i] = this;
-				myPromisedIndex = i;
+				freePromiseSlots = new int[prLen * 2];
+				for (int i = prLen * 2 - 1; i >= prLen; i--) {
+					freePromiseSlots[freePromiseSlotCount++] = i;
+				}
 			}
+			myPromisedIndex = freePromiseSlots[--freePromiseSlotCount];
+			promisedResources[myPromisedIndex] = this;
 			promisedCapacities.singleAdd(realAllocated);
 			internalReallyFreeCaps.subtract(realAllocated);
 			promisedAllocationsCount++;
+			if (allocated.isRequiredProcessingIsMinimum()) {
+				promisedMinimumAllocationsCount++;
+			}
+			freeCapacityListenerManager.notifyListeners(Collections.singletonList(realAllocated));
 		}
 
 		/**
@@ -260,8 +273,17 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		 * updates the PM's respective fields about resource availability
 		 */
 		private void promisedCapacityUpdater() {
+			if (promisedResources[myPromisedIndex] != this) {
+				// Already removed (e.g., cancelled after its expiry), its slot
+				// might be reused by another allocation already
+				return;
+			}
 			promisedResources[myPromisedIndex] = null;
+			freePromiseSlots[freePromiseSlotCount++] = myPromisedIndex;
 			promisedAllocationsCount--;
+			if (allocated.isRequiredProcessingIsMinimum()) {
+				promisedMinimumAllocationsCount--;
+			}
 			if (promisedAllocationsCount == 0) {
 				promisedCapacities.subtract(promisedCapacities);
 			} else {
@@ -269,6 +291,7 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 			}
 			if (isUnUsed()) {
 				internalReallyFreeCaps.singleAdd(realAllocated);
+				freeCapacityListenerManager.notifyListeners(Collections.singletonList(realAllocated));
 			}
 		}
 
@@ -342,6 +365,7 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 				completedVMs++;
 				internalAvailableCaps.singleAdd(realAllocated);
 				internalReallyFreeCaps.singleAdd(realAllocated);
+				freeCapacityListenerManager.notifyListeners(Collections.singletonList(realAllocated));
 				increasingFreeCapacityListenerManager.notifyListeners(Collections.singletonList(realAllocated));
 				user = null;
 				swept = true;
@@ -583,6 +607,21 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 	 * ConstantConstraints(pm.freeCapacities)).
 	 */
 	public final UnalterableConstraintsPropagator freeCapacities;
+	/**
+	 * the number of CPU cores offered for allocations for every physical core
+	 * of the PM
+	 */
+	private double cpuOvercommitRatio = 1;
+	/**
+	 * the amount of memory offered for allocations for every byte of physical
+	 * memory in the PM
+	 */
+	private double memoryOvercommitRatio = 1;
+	/**
+	 * the resource set the allocations are accounted against (i.e., the total
+	 * capacities scaled with the overcommit ratios)
+	 */
+	private ConstantConstraints overcommittedCapacities;
 	/**
 	 * the internal disk of the physical machine. this field is also used to
 	 * represent the PM's network connections as the disk is represented with
@@ -597,10 +636,27 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 	 * objects.
 	 */
 	private ResourceAllocation[] promisedResources = new ResourceAllocation[2];
+	/**
+	 * the indexes of the unoccupied slots in the promisedResources array. Only
+	 * the first freePromiseSlotCount items are valid. Allows placing new
+	 * resource allocations to the array without looking for a free slot.
+	 */
+	private int[] freePromiseSlots = { 1, 0 };
+	/**
+	 * the amount of valid slot indexes in the freePromiseSlots array.
+	 */
+	private int freePromiseSlotCount = 2;
 	/**
 	 * the amount of resource allocations in the promisedResources array.
 	 */
 	private int promisedAllocationsCount = 0;
+	/**
+	 * the amount of resource allocations in the promisedResources array which
+	 * only specify minimum processing power requirements. Used to check the
+	 * allocation type of new requests without going through all promised
+	 * resources.
+	 */
+	private int promisedMinimumAllocationsCount = 0;
 
 	/**
 	 * The current state of the PM
@@ -710,6 +766,20 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 				}
 			});
 
+	/**
+	 * this notification handler is used to send out events whenever the free
+	 * capacities of the PM change (i.e., both when resources are allocated and
+	 * when they become available again)
+	 */
+	private final StateDependentEventHandler<CapacityChangeEvent<ResourceConstraints>, List<ResourceConstraints>> freeCapacityListenerManager = new StateDependentEventHandler<VMManager.CapacityChangeEvent<ResourceConstraints>, List<ResourceConstraints>>(
+			new SingleNotificationHandler<CapacityChangeEvent<ResourceConstraints>, List<ResourceConstraints>>() {
+				@Override
+				public void sendNotification(final CapacityChangeEvent<ResourceConstraints> onObject,
+						final List<ResourceConstraints> changedResources) {
+					onObject.capacityChanged(freeCapacities, changedResources);
+				}
+			});
+
 	/**
 	 * This consumer is added to the PM help simulate the pure (VM less)
 	 * operations on the PM. E.g., the VMM's operations can be
@@ -818,6 +888,7 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		availableCapacities = new UnalterableConstraintsPropagator(internalAvailableCaps);
 		internalReallyFreeCaps = new AlterableResourceConstraints(totalCapacities);
 		freeCapacities = new UnalterableConstraintsPropagator(internalReallyFreeCaps);
+		overcommittedCapacities = totalCapacities;
 		localDisk = disk;
 
 		hostPowerBehavior = powerTransitions.get(PowerStateKind.host);
@@ -999,6 +1070,42 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 
 	}
 
+	/**
+	 * Moves a VM to another PM with pre-copy live migration. The VM keeps
+	 * running on this PM until the final stop-and-copy phase of the migration.
+	 * 
+	 * @param vm
+	 *            the VM to be moved
+	 * @param target
+	 *            the PM where the VM should continue its operation
+	 * @return the object reporting the progress, the downtime and the total
+	 *         time of the migration, or <i>null</i> if the VM is not hosted
+	 *         here or the target cannot host it
+	 * @throws VMManagementException
+	 *             if the live migration cannot be started
+	 * @throws NetworkException
+	 *             if the two PMs are not connected
+	 */
+	public VirtualMachine.PreCopyMigration liveMigrateVM(final VirtualMachine vm, final PhysicalMachine target)
+			throws VMManagementException, NetworkNode.NetworkException {
+		if (vms.contains(vm)) {
+			final ResourceAllocation ra = target.allocateResources(vm.getResourceAllocation().allocated, true,
+					liveMigrationAllocLen);
+			if (ra != null) {
+				try {
+					return vm.liveMigrate(ra);
+				} catch (VMManagementException e) {
+					ra.cancel();
+					throw e;
+				} catch (NetworkException e) {
+					ra.cancel();
+					throw e;
+				}
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Not implemented, would allow VMs to receive more resources in the future
 	 */
@@ -1034,6 +1141,42 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 	 */
 	public ResourceAllocation allocateResources(final ResourceConstraints requested, final boolean strict,
 			final int allocationValidityLength) throws VMManagementException {
+		final ResourceConstraints offered = probeAllocation(requested, strict);
+		if (offered == null) {
+			return null;
+		}
+		// Partial offers always have less CPUs or memory than requested
+		if (offered.getRequiredCPUs() == requested.getRequiredCPUs()
+				&& offered.getRequiredMemory() == requested.getRequiredMemory()) {
+			// Actually allocated resources (memory is equivalent in both cases)
+			final double allocPrPow = totalCapacities.getRequiredProcessingPower();
+			final double allocCPU = requested.getRequiredCPUs() * requested.getRequiredProcessingPower() / allocPrPow;
+			return new ResourceAllocation(new ConstantConstraints(allocCPU, allocPrPow, offered.getRequiredMemory()),
+					offered, allocationValidityLength);
+		}
+		return new ResourceAllocation(offered, offered, allocationValidityLength);
+	}
+
+	/**
+	 * Determines what allocateResources would offer for a particular request
+	 * without actually allocating anything. This allows schedulers to
+	 * evaluate several PMs without creating (and then cancelling) resource
+	 * allocations on all of them.
+	 * 
+	 * @param requested
+	 *            The amount of resources needed by the caller
+	 * @param strict
+	 *            if the PM should not offer anything if it cannot completely
+	 *            meet the request.
+	 * @return the resources that would be allocated for the caller (i.e., the
+	 *         'allocated' field of the resource allocation allocateResources
+	 *         would return) or <i>null</i> if allocateResources would not
+	 *         return an allocation.
+	 * @throws VMManagementException
+	 *             if the PM is not running
+	 */
+	public ResourceConstraints probeAllocation(final ResourceConstraints requested, final boolean strict)
+			throws VMManagementException {
 		if (!currentState.equals(State.RUNNING)) {
 			throw new VMManagementException("The PM is not running and thus cannot offer resources yet");
 		}
@@ -1043,16 +1186,10 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 			return null;
 		}
 		// Allocation type test (i.e. do we allow underprovisioning?)
-		for (int i = 0; i < promisedResources.length; i++) {
-			ResourceAllocation olderAllocation = promisedResources[i];
-			if (olderAllocation != null) {
-				if (olderAllocation.allocated.isRequiredProcessingIsMinimum() == requested
-						.isRequiredProcessingIsMinimum()) {
-					break;
-				} else {
-					return null;
-				}
-			}
+		if (promisedAllocationsCount != 0 && (requested.isRequiredProcessingIsMinimum()
+				? promisedMinimumAllocationsCount == 0
+				: promisedMinimumAllocationsCount == promisedAllocationsCount)) {
+			return null;
 		}
 		// Promised resources for the virtual machine
 		double vmCPU = requested.getRequiredCPUs();
@@ -1060,15 +1197,12 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		final double vmPrPow = requested.isRequiredProcessingIsMinimum() ? totalCapacities.getRequiredProcessingPower()
 				: requested.getRequiredProcessingPower();
 
-		// Actually allocated resources (memory is equivalent in both cases)
-		final double allocPrPow = totalCapacities.getRequiredProcessingPower();
-		final double allocCPU = vmCPU * requested.getRequiredProcessingPower() / allocPrPow;
+		final double allocCPU = vmCPU * requested.getRequiredProcessingPower()
+				/ totalCapacities.getRequiredProcessingPower();
 		if (0 <= internalReallyFreeCaps.getRequiredCPUs() - allocCPU) {
 			if (0 <= internalReallyFreeCaps.getRequiredMemory() - requested.getRequiredMemory()) {
-				return new ResourceAllocation(
-						new ConstantConstraints(allocCPU, allocPrPow, vmMem), requested.isRequiredProcessingIsMinimum()
-								? new ConstantConstraints(vmCPU, vmPrPow, true, vmMem) : requested,
-						allocationValidityLength);
+				return requested.isRequiredProcessingIsMinimum() ? new ConstantConstraints(vmCPU, vmPrPow, true, vmMem)
+						: requested;
 			} else {
 				vmMem = internalReallyFreeCaps.getRequiredMemory();
 			}
@@ -1081,9 +1215,7 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		if (strict) {
 			return null;
 		} else {
-			final ResourceConstraints updatedConstraints = new ConstantConstraints(vmCPU, vmPrPow,
-					requested.isRequiredProcessingIsMinimum(), vmMem);
-			return new ResourceAllocation(updatedConstraints, updatedConstraints, allocationValidityLength);
+			return new ConstantConstraints(vmCPU, vmPrPow, requested.isRequiredProcessingIsMinimum(), vmMem);
 		}
 	}
 
@@ -1124,7 +1256,8 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 
 	/**
 	 * checks if at least in theory the requested resources could be hosted on
-	 * the PM (i.e., when there are no other VMs hosted on the PM).
+	 * the PM (i.e., when there are no other VMs hosted on the PM). The request
+	 * is checked against the overcommitted capacities of the PM.
 	 * 
 	 * @param requested
 	 *            the resource set to be checked for hostability
@@ -1136,7 +1269,7 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 	 *         </ul>
 	 */
 	public boolean isHostableRequest(final ResourceConstraints requested) {
-		return requested.compareTo(totalCapacities) <= 0;
+		return requested.compareTo(overcommittedCapacities) <= 0;
 	}
 
 	/**
@@ -1204,9 +1337,19 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 			canDeployAll &= ras[i] != null && ras[i].allocated == rc;
 		}
 		if (canDeployAll) {
-			for (int i = 0; i < count; i++) {
-				vms[i] = new VirtualMachine(va);
-				deployVM(vms[i], ras[i], vaSource);
+			// The VMs can share their VA transfers
+			if (vaSource != null) {
+				vaSource.startBulkDelivery();
+			}
+			try {
+				for (int i = 0; i < count; i++) {
+					vms[i] = new VirtualMachine(va);
+					deployVM(vms[i], ras[i], vaSource);
+				}
+			} finally {
+				if (vaSource != null) {
+					vaSource.finishBulkDelivery();
+				}
 			}
 		} else {
 			for (int i = 0; i < count && ras[i] != null; i++) {
@@ -1426,6 +1569,157 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		return totalCapacities;
 	}
 
+	/**
+	 * Allows the PM to offer more CPU cores and memory for allocations than it
+	 * physically has. The allocations are accounted against the overcommitted
+	 * capacities, while the processing power of the PM is still shared among
+	 * the hosted VMs by the max-min fairness based spreading mechanism (i.e.,
+	 * if the VMs demand more processing than the PM can offer, all of them
+	 * get slowed down).
+	 * 
+	 * The ratios can only be changed if the PM has no VMs and no resource
+	 * allocations.
+	 * 
+	 * @param cpuRatio
+	 *            the number of CPU cores to be offered for every physical core
+	 *            (1 disables CPU overcommit)
+	 * @param memoryRatio
+	 *            the amount of memory to be offered for every byte of physical
+	 *            memory (1 disables memory overcommit)
+	 * @throws IllegalStateException
+	 *             if the ratios are below 1 or if the PM already hosts VMs or
+	 *             has resource allocations
+	 */
+	public void setOvercommitRatios(final double cpuRatio, final double memoryRatio) {
+		if (cpuRatio < 1 || memoryRatio < 1) {
+			throw new IllegalStateException("Overcommit ratios cannot be below 1");
+		}
+		if (!vms.isEmpty() || promisedAllocationsCount != 0) {
+			throw new IllegalStateException(
+					"Overcommit ratios can only be changed on PMs without VMs and resource allocations");
+		}
+		final ConstantConstraints newCapacities = new ConstantConstraints(totalCapacities.getRequiredCPUs() * cpuRatio,
+				totalCapacities.getRequiredProcessingPower(), (long) (totalCapacities.getRequiredMemory() * memoryRatio));
+		cpuOvercommitRatio = cpuRatio;
+		memoryOvercommitRatio = memoryRatio;
+		if (newCapacities.compareTo(overcommittedCapacities) == 0) {
+			return;
+		}
+		final AlterableResourceConstraints change = new AlterableResourceConstraints(newCapacities);
+		change.subtract(overcommittedCapacities);
+		internalAvailableCaps.subtract(overcommittedCapacities);
+		internalAvailableCaps.singleAdd(newCapacities);
+		internalReallyFreeCaps.subtract(overcommittedCapacities);
+		internalReallyFreeCaps.singleAdd(newCapacities);
+		// Some capacities might shrink while others grow
+		final boolean increasing = newCapacities.getRequiredCPUs() > overcommittedCapacities.getRequiredCPUs()
+				|| newCapacities.getRequiredMemory() > overcommittedCapacities.getRequiredMemory();
+		overcommittedCapacities = newCapacities;
+		final List<ResourceConstraints> changeList = Collections.singletonList((ResourceConstraints) change);
+		freeCapacityListenerManager.notifyListeners(changeList);
+		if (increasing) {
+			increasingFreeCapacityListenerManager.notifyListeners(changeList);
+		}
+	}
+
+	/**
+	 * @return the number of CPU cores offered for allocations for every
+	 *         physical core
+	 */
+	public double getCPUOvercommitRatio() {
+		return cpuOvercommitRatio;
+	}
+
+	/**
+	 * @return the amount of memory offered for allocations for every byte of
+	 *         physical memory
+	 */
+	public double getMemoryOvercommitRatio() {
+		return memoryOvercommitRatio;
+	}
+
+	/**
+	 * collects the resource capacity the allocations are accounted against. If
+	 * there is no overcommit, this is the same as the total capacity of the PM.
+	 */
+	public ResourceConstraints getOvercommittedCapacities() {
+		return overcommittedCapacities;
+	}
+
+	/**
+	 * Determines how many CPU cores are allocated for every physical core of
+	 * the PM. Values above 1 show that the PM is overcommitted.
+	 * 
+	 * @return the allocated CPU cores per physical core
+	 */
+	public double getCPUCommitment() {
+		return (overcommittedCapacities.getRequiredCPUs() - internalReallyFreeCaps.getRequiredCPUs())
+				/ totalCapacities.getRequiredCPUs();
+	}
+
+	/**
+	 * Determines how much memory is allocated for every byte of physical
+	 * memory in the PM. Values above 1 show that the PM is overcommitted.
+	 * 
+	 * @return the allocated memory per physical memory
+	 */
+	public double getMemoryCommitment() {
+		return (double) (overcommittedCapacities.getRequiredMemory() - internalReallyFreeCaps.getRequiredMemory())
+				/ totalCapacities.getRequiredMemory();
+	}
+
+	/**
+	 * Determines the fraction of the PM's processing power used by the
+	 * currently running consumptions (as of the last processing limit
+	 * calculation of the PM's influence group).
+	 * 
+	 * @return the CPU utilization of the PM between 0 and 1
+	 */
+	public double getCPUUtilization() {
+		double used = 0;
+		for (final ResourceConsumption con : underProcessing) {
+			used += con.getRealLimit() * con.getMultiplicity();
+		}
+		return used / getPerTickProcessingPower();
+	}
+
+	/**
+	 * Determines how much processing the VMs (and the direct consumer) of the
+	 * PM would do if they would not share the PM's processing power with each
+	 * other, and compares it to the processing power of the PM. Values above
+	 * 1 show that the consumers are slowed down because of CPU contention
+	 * (e.g., because of CPU overcommit).
+	 * 
+	 * @return the processing demand of the PM's consumers per the PM's
+	 *         processing power
+	 */
+	public double getCPUContention() {
+		double demand = getProcessingDemand(directConsumer);
+		for (final VirtualMachine vm : vms) {
+			demand += getProcessingDemand(vm);
+		}
+		return demand / getPerTickProcessingPower();
+	}
+
+	/**
+	 * Determines the amount of processing a consumer would request from this PM
+	 * in a single tick if it would not need to share the PM with others.
+	 * 
+	 * @param consumer
+	 *            the VM or the direct consumer of the PM
+	 * @return the uncontended per tick processing of the consumer
+	 */
+	private double getProcessingDemand(final ResourceSpreader consumer) {
+		double demand = 0;
+		for (final ResourceConsumption con : consumer.underProcessing) {
+			if (con.getProvider() == this) {
+				demand += con.getHardLimit() * con.getMultiplicity();
+			}
+		}
+		final double consumerPower = consumer.getPerTickProcessingPower();
+		return demand < consumerPower ? demand : consumerPower;
+	}
+
 	/**
 	 * not implemented
 	 */
@@ -1467,6 +1761,30 @@ public class PhysicalMachine extends MaxMinProvider implements VMManager<Physica
 		increasingFreeCapacityListenerManager.unsubscribeFromEvents(e);
 	}
 
+	/**
+	 * manages the subscriptions for all changes of the free capacities (i.e.
+	 * unlike the increasing free capacity events, these are also sent when
+	 * some resources get allocated). Useful for keeping track of the free
+	 * resources of the PM without polling.
+	 * 
+	 * @param e
+	 *            the listener object which expects free capacity change events
+	 */
+	public void subscribeToFreeCapacityChanges(final CapacityChangeEvent<ResourceConstraints> e) {
+		freeCapacityListenerManager.subscribeToEvents(e);
+	}
+
+	/**
+	 * manages the subscriptions for all changes of the free capacities
+	 * 
+	 * @param e
+	 *            the listener object that no longer expects free capacity
+	 *            change events
+	 */
+	public void unsubscribeFromFreeCapacityChanges(final CapacityChangeEvent<ResourceConstraints> e) {
+		freeCapacityListenerManager.unsubscribeFromEvents(e);
+	}
+
 	/**
 	 * determines if the direct consumer accepts compute tasks to be registered
 	 * 
@@ -0,0 +1,141 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas;
+
+import hu.mta.sztaki.lpds.cloud.simulator.io.VirtualAppliance;
+
+import java.util.ArrayList;
+
+/**
+ * Allows the reuse of destroyed virtual machine objects. This is beneficial
+ * in simulations where large amounts of short lived VMs are created and
+ * destroyed (e.g., function as a service scenarios), as the VM objects (with
+ * their event handlers and task lists) do not need to be allocated again for
+ * every new VM.
+ * 
+ * A VM can be released to the pool if it is destroyed, it has no state change
+ * listeners and it has no tasks (neither running nor suspended nor waiting).
+ * The VM must not be used by its former users after its release: any state
+ * change, task creation, resource allocation or state change subscription
+ * fails with an IllegalStateException until the pool hands the VM out again.
+ * The released VM must not be queued at an IaaS either.
+ * 
+ * In debug mode, the pool never hands out the released VMs, so any later use
+ * of them by their former users is reported with an exception. In this mode
+ * the pool does not reduce the number of allocated objects.
+ */
+public class VMPool {
+	/**
+	 * if true, released VMs are never reused
+	 */
+	public final boolean debug;
+	/**
+	 * the VMs ready for reuse
+	 */
+	private final ArrayList<VirtualMachine> available = new ArrayList<VirtualMachine>();
+	/**
+	 * the number of VMs created by the pool
+	 */
+	private long created = 0;
+	/**
+	 * the number of times the pool handed out a previously released VM
+	 */
+	private long reused = 0;
+
+	/**
+	 * Creates an empty pool
+	 * 
+	 * @param debug
+	 *            if <i>true</i>, released VMs are never reused so their later
+	 *            use is always detected
+	 */
+	public VMPool(final boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Provides a VM that behaves as if it was just created with the
+	 * VirtualMachine(va) constructor.
+	 * 
+	 * @param va
+	 *            the virtual appliance that should be the base for the VM
+	 * @return the VM in destroyed state
+	 * @throws IllegalStateException
+	 *             if the va is <i>null</i>
+	 */
+	public VirtualMachine acquire(final VirtualAppliance va) {
+		if (available.isEmpty()) {
+			created++;
+			return new VirtualMachine(va);
+		}
+		final VirtualMachine vm = available.get(available.size() - 1);
+		vm.reuse(va);
+		available.remove(available.size() - 1);
+		reused++;
+		return vm;
+	}
+
+	/**
+	 * Gives back a destroyed VM to the pool. The former users of the VM must
+	 * not use it after this call.
+	 * 
+	 * @param vm
+	 *            the VM to be reused later
+	 * @throws IllegalStateException
+	 *             if the VM is not destroyed, if it still has listeners or
+	 *             tasks or if it was already released
+	 */
+	public void release(final VirtualMachine vm) {
+		if (!vm.isRecyclable()) {
+			throw new IllegalStateException("Only destroyed VMs without listeners and tasks can be released: " + vm);
+		}
+		vm.recycle();
+		if (!debug) {
+			available.add(vm);
+		}
+	}
+
+	/**
+	 * @return the number of VMs ready to be handed out again
+	 */
+	public int getAvailableCount() {
+		return available.size();
+	}
+
+	/**
+	 * @return the number of VMs created by the pool
+	 */
+	public long getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * @return the number of times the pool handed out a previously released VM
+	 */
+	public long getReusedCount() {
+		return reused;
+	}
+}
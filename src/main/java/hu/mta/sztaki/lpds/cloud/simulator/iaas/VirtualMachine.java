@@ -25,16 +25,21 @@
 
 package hu.mta.sztaki.lpds.cloud.simulator.iaas;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 
 import org.apache.commons.lang3.tuple.Triple;
 
+import hu.mta.sztaki.lpds.cloud.simulator.Timed;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMManager.VMManagementException;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.CompactTaskSet;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.MaxMinConsumer;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ProfiledResourceConsumption;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceSpreader;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.statenotifications.VMStateChangeNotificationHandler;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
@@ -79,6 +84,11 @@ import hu.mta.sztaki.lpds.cloud.simulator.notifications.StateDependentEventHandl
  * is almost instant compared to the other two approaches.
  * </ul>
  * 
+ * Besides the regular (suspend-transfer-resume) migration, the VM also offers
+ * pre-copy live migration (see liveMigrate) where the VM keeps running while
+ * its memory is transferred and it is only stopped for the transfer of the
+ * memory pages dirtied during the last pre-copy round.
+ * 
  * @author 
  *         "Gabor Kecskemeti, Distributed and Parallel Systems Group, University of Innsbruck (c) 2013"
  *         "Gabor Kecskemeti, Laboratory of Parallel and Distributed Systems, MTA SZTAKI (c) 2012"
@@ -133,6 +143,273 @@ public class VirtualMachine extends MaxMinConsumer {
 		void stateChanged(VirtualMachine vm, State oldState, State newState);
 	}
 
+	/**
+	 * An optional run queue for the compute tasks of the VM (similar to a
+	 * worker pool inside the VM). Only a limited number of the tasks created
+	 * with newComputeTask(s) are allowed to be processed concurrently, the
+	 * rest of the tasks are waiting in the queue and are admitted in FIFO
+	 * order whenever an admitted task completes or gets cancelled.
+	 * 
+	 * The queue collects statistics about the queue length and about the
+	 * time the tasks spent waiting before their admission.
+	 */
+	public class TaskQueue {
+		/**
+		 * Represents a task in the queue and forwards the events of its
+		 * consumption to the event object of the task's creator.
+		 */
+		private class QueuedTask implements ResourceConsumption.ConsumptionEvent {
+			/**
+			 * the event object given by the task's creator
+			 */
+			private final ResourceConsumption.ConsumptionEvent ev;
+			/**
+			 * the time at which the task was created
+			 */
+			private final long submitted = Timed.getFireCount();
+			/**
+			 * the consumption representing the task
+			 */
+			private ResourceConsumption cons;
+
+			/**
+			 * Prepares the forwarder for a new task
+			 * 
+			 * @param ev
+			 *            the event object given by the task's creator
+			 */
+			private QueuedTask(final ResourceConsumption.ConsumptionEvent ev) {
+				this.ev = ev;
+			}
+
+			@Override
+			public void conComplete() {
+				running--;
+				ev.conComplete();
+				admit();
+			}
+
+			@Override
+			public void conCancelled(final ResourceConsumption problematic) {
+				running--;
+				ev.conCancelled(problematic);
+				admit();
+			}
+		}
+
+		/**
+		 * the tasks waiting for their admission
+		 */
+		private final ArrayDeque<QueuedTask> waiting = new ArrayDeque<QueuedTask>();
+		/**
+		 * the maximum number of concurrently processed tasks
+		 */
+		private int concurrency;
+		/**
+		 * the number of tasks currently admitted
+		 */
+		private int running = 0;
+		/**
+		 * the longest queue observed
+		 */
+		private int maxQueueLength = 0;
+		/**
+		 * the number of tasks admitted so far
+		 */
+		private long admitted = 0;
+		/**
+		 * the total time the admitted tasks spent in the queue (in ticks)
+		 */
+		private long totalWait = 0;
+		/**
+		 * the longest time a task spent in the queue (in ticks)
+		 */
+		private long maxWait = 0;
+
+		/**
+		 * Creates a queue with the given concurrency level
+		 * 
+		 * @param concurrency
+		 *            the number of tasks allowed to be processed at once
+		 */
+		private TaskQueue(final int concurrency) {
+			this.concurrency = concurrency;
+		}
+
+		/**
+		 * Creates a new compute task and either admits it right away or puts
+		 * it to the end of the queue.
+		 * 
+		 * @return the consumption representing the task (which is not yet
+		 *         registered if the task is queued), or null if the task could
+		 *         not be admitted
+		 * @throws NetworkException
+		 *             if the background network load is not possible to
+		 *             simulate.
+		 */
+		private ResourceConsumption submit(final double total,
+				final double limit,
+				final ResourceConsumption.ConsumptionEvent e)
+				throws NetworkException {
+			if (total == 0) {
+				// completes right away, no need for a slot
+				final ResourceConsumption empty = new ResourceConsumption(
+						total, limit, VirtualMachine.this, ra.getHost(), e);
+				return empty.registerConsumption() ? empty : null;
+			}
+			final QueuedTask qt = new QueuedTask(e);
+			qt.cons = new ResourceConsumption(total, limit,
+					VirtualMachine.this, ra.getHost(), qt);
+			if (running < concurrency && waiting.isEmpty()) {
+				if (!start(qt)) {
+					return null;
+				}
+				initBgNetworkLoad(qt.cons);
+			} else {
+				waiting.add(qt);
+				maxQueueLength = Math.max(maxQueueLength, waiting.size());
+			}
+			return qt.cons;
+		}
+
+		/**
+		 * Registers the consumption of a task and updates the statistics
+		 * 
+		 * @return <i>true</i> if the task's consumption was registered
+		 */
+		private boolean start(final QueuedTask qt) {
+			if (qt.cons.registerConsumption()) {
+				running++;
+				admitted++;
+				final long wait = Timed.getFireCount() - qt.submitted;
+				totalWait += wait;
+				maxWait = Math.max(maxWait, wait);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Admits the waiting tasks while there are free slots. Tasks cancelled
+		 * while waiting are dropped, tasks that cannot be registered are
+		 * reported as cancelled.
+		 */
+		private void admit() {
+			while (running < concurrency && !waiting.isEmpty() && ra != null) {
+				final QueuedTask qt = waiting.poll();
+				if (!qt.cons.isResumable()) {
+					continue;
+				}
+				qt.cons.setProvider(ra.getHost());
+				if (start(qt)) {
+					try {
+						initBgNetworkLoad(qt.cons);
+					} catch (NetworkException e) {
+						e.printStackTrace();
+					}
+				} else {
+					qt.ev.conCancelled(qt.cons);
+				}
+			}
+		}
+
+		/**
+		 * Reports the cancellation of all the tasks that are still waiting.
+		 */
+		private void cancelWaiting() {
+			while (!waiting.isEmpty()) {
+				final QueuedTask qt = waiting.poll();
+				if (qt.cons.isResumable()) {
+					qt.cons.cancel();
+					qt.ev.conCancelled(qt.cons);
+				}
+			}
+		}
+
+		/**
+		 * Determines if there are tasks that are still waiting for their
+		 * admission (they might have been cancelled since)
+		 * 
+		 * @return <i>true</i> if the queue is not empty
+		 */
+		private boolean hasWaiting() {
+			return !waiting.isEmpty();
+		}
+
+		/**
+		 * Queries the number of tasks allowed to be processed at once
+		 * 
+		 * @return the concurrency level of the queue
+		 */
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		/**
+		 * Queries the number of tasks waiting for their admission
+		 * 
+		 * @return the current queue length
+		 */
+		public int getQueueLength() {
+			return waiting.size();
+		}
+
+		/**
+		 * Queries the longest queue observed so far
+		 * 
+		 * @return the maximum queue length
+		 */
+		public int getMaxQueueLength() {
+			return maxQueueLength;
+		}
+
+		/**
+		 * Queries the number of admitted tasks that are not yet completed or
+		 * cancelled
+		 * 
+		 * @return the number of tasks currently processed
+		 */
+		public int getRunningCount() {
+			return running;
+		}
+
+		/**
+		 * Queries the number of tasks admitted so far
+		 * 
+		 * @return the admitted task count
+		 */
+		public long getAdmittedCount() {
+			return admitted;
+		}
+
+		/**
+		 * Queries the total time the admitted tasks have spent in the queue
+		 * 
+		 * @return the total wait time in ticks
+		 */
+		public long getTotalWaitTime() {
+			return totalWait;
+		}
+
+		/**
+		 * Queries the longest time an admitted task has spent in the queue
+		 * 
+		 * @return the maximum wait time in ticks
+		 */
+		public long getMaxWaitTime() {
+			return maxWait;
+		}
+
+		/**
+		 * Queries the average time the admitted tasks have spent in the queue
+		 * 
+		 * @return the mean wait time in ticks, 0 if there were no admissions
+		 */
+		public double getMeanWaitTime() {
+			return admitted == 0 ? 0 : (double) totalWait / admitted;
+		}
+	}
+
 	/**
 	 * This internal interface is used to customize internal state change
 	 * actions in the VM class.
@@ -361,6 +638,39 @@ public class VirtualMachine extends MaxMinConsumer {
 	 */
 	private final ArrayList<ResourceConsumption> suspendedTasks = new ArrayList<ResourceConsumption>();
 
+	/**
+	 * the run queue of the compute tasks, null if the tasks are admitted
+	 * without limits.
+	 */
+	private TaskQueue taskQueue = null;
+
+	/**
+	 * shows if the VM was released to a VMPool. Released VMs cannot be used
+	 * until the pool hands them out again.
+	 */
+	private boolean pooled = false;
+	/**
+	 * the amount of memory (in bytes) the VM modifies in a single tick while
+	 * it is running. Used by the pre-copy live migration.
+	 */
+	private double dirtyPageRate = 0;
+	/**
+	 * the live migration in progress, or the last one the VM went through
+	 */
+	private PreCopyMigration liveMigration = null;
+
+	/**
+	 * the maximum number of pre-copy rounds before a live migration switches
+	 * to its stop-and-copy phase
+	 */
+	public static final int maxPreCopyRounds = 30;
+	/**
+	 * if the memory dirtied during a pre-copy round is not more than this
+	 * fraction of the VM's memory, the live migration switches to its
+	 * stop-and-copy phase
+	 */
+	public static final double stopAndCopyMemoryFraction = 0.01;
+
 	/**
 	 * Instantiates a VM object
 	 * 
@@ -387,6 +697,7 @@ public class VirtualMachine extends MaxMinConsumer {
 	 *            The new state the VM is in.
 	 */
 	private void setState(final State newstate) {
+		checkNotPooled();
 		final State oldState = currState;
 		currState = newstate;
 		vmStateChangelistenerManager.notifyListeners(Triple.of(this, oldState,
@@ -494,6 +805,9 @@ public class VirtualMachine extends MaxMinConsumer {
 	 * the state beforehand. If successful it allows the caller to change the
 	 * event on the way it sees fit.
 	 * 
+	 * If the target has a virtual appliance cache, then the VA is delivered
+	 * through the cache when it comes from a remote repository.
+	 * 
 	 * @param vatarget
 	 *            the storage that will host the VM's working image (typically
 	 *            this is going to be the disk of the PM that will host the VM).
@@ -533,6 +847,10 @@ public class VirtualMachine extends MaxMinConsumer {
 				noerror = vatarget == null ? false : vatarget.duplicateContent(
 						va.id, diskid, new InitialTransferEvent(vatarget, es,
 								diskid));
+			} else if (vatarget != null && vatarget != vasource && vatarget.getVACache() != null) {
+				// Mixed scenario with an appliance cache on the target
+				noerror = vatarget.getVACache().deliver(va, vasource, diskid,
+						new InitialTransferEvent(vatarget, es, diskid));
 			} else {
 				// Mixed scenario
 				noerror = vasource.requestContentDelivery(va.id, diskid,
@@ -741,6 +1059,402 @@ public class VirtualMachine extends MaxMinConsumer {
 		}
 	}
 
+	/**
+	 * Represents a single pre-copy live migration of the VM. The memory of the
+	 * VM is transferred in rounds while the VM keeps running on its old host.
+	 * The first round transfers the complete memory (and in the Local and
+	 * Mixed storage scenarios the disk of the VM as well), while the later
+	 * rounds only transfer the memory dirtied during the previous round. Once
+	 * the dirtied memory becomes small enough (see
+	 * stopAndCopyMemoryFraction), the dirtied memory does not shrink anymore
+	 * or the number of rounds reaches maxPreCopyRounds, the VM's tasks are
+	 * suspended and the remaining dirty memory is transferred (the VM is in
+	 * MIGRATING state during this stop-and-copy phase). Afterwards the VM and
+	 * its tasks continue on the new host.
+	 * 
+	 * If the VM leaves its running state during the pre-copy rounds (e.g., it
+	 * is suspended or destroyed), the live migration is aborted at the end of
+	 * the current round and the target allocation is cancelled.
+	 */
+	public class PreCopyMigration extends ConsumptionEventAdapter {
+		/**
+		 * the allocation on the new host
+		 */
+		private final PhysicalMachine.ResourceAllocation target;
+		/**
+		 * the allocation on the old host, used to check if the VM still runs
+		 * there
+		 */
+		private final PhysicalMachine.ResourceAllocation source;
+		/**
+		 * the network node of the old host
+		 */
+		private final Repository from;
+		/**
+		 * the network node of the new host
+		 */
+		private final Repository to;
+		/**
+		 * true if the disk of the VM is also moved to the new host
+		 */
+		private final boolean withDisk;
+		/**
+		 * the time the live migration was started
+		 */
+		private final long started = Timed.getFireCount();
+		/**
+		 * the time the current round's transfers were started
+		 */
+		private long roundStart;
+		/**
+		 * the time the stop-and-copy phase started, -1 before
+		 */
+		private long stopped = -1;
+		/**
+		 * the time the VM was running again on its new host, -1 before
+		 */
+		private long finished = -1;
+		/**
+		 * the amount of memory transferred in the current round
+		 */
+		private long roundSize;
+		/**
+		 * the number of completed pre-copy rounds
+		 */
+		private int rounds = 0;
+		/**
+		 * the amount of data transferred so far
+		 */
+		private long transferred = 0;
+		/**
+		 * the number of transfers of the current round still in progress
+		 */
+		private int outstanding = 0;
+		/**
+		 * the memory transfer of the current round, null before the first
+		 * round
+		 */
+		private ResourceConsumption memoryTransfer = null;
+		/**
+		 * true if the migration was given up
+		 */
+		private boolean aborted = false;
+
+		/**
+		 * Starts the first pre-copy round of the live migration.
+		 * 
+		 * @param target
+		 *            the allocation on the new host
+		 * @throws VMManagementException
+		 *             if the disk of the VM cannot be copied to the new host
+		 * @throws NetworkException
+		 *             if the two hosts are not connected
+		 */
+		private PreCopyMigration(final PhysicalMachine.ResourceAllocation target)
+				throws VMManagementException, NetworkException {
+			this.target = target;
+			source = ra;
+			from = ra.getHost().localDisk;
+			to = target.getHost().localDisk;
+			withDisk = va.getBgNetworkLoad() <= 0;
+			NetworkNode.checkConnectivity(from, to);
+			roundStart = Timed.getFireCount();
+			if (withDisk) {
+				outstanding++;
+				if (!vatarget.requestContentDelivery(disk.id, to, new ConsumptionEventAdapter() {
+					@Override
+					public void conComplete() {
+						if (aborted) {
+							// The migration was given up during the transfer
+							to.deregisterObject(disk.id);
+						} else {
+							PreCopyMigration.this.conComplete();
+						}
+					}
+
+					@Override
+					public void conCancelled(final ResourceConsumption problematic) {
+						PreCopyMigration.this.conCancelled(problematic);
+					}
+				})) {
+					throw new VMManagementException(
+							"Could not copy the disk of VM " + hashCode()
+									+ " to " + to.getName());
+				}
+				transferred += disk.size;
+			}
+			sendMemory(ra.allocated.getRequiredMemory());
+		}
+
+		/**
+		 * Initiates the transfer of some of the memory of the VM
+		 * 
+		 * @param size
+		 *            the amount of memory to transfer
+		 * @throws NetworkException
+		 *             if the two hosts are not connected
+		 */
+		private void sendMemory(final long size) throws NetworkException {
+			roundSize = size;
+			outstanding++;
+			transferred += size;
+			memoryTransfer = NetworkNode.initTransfer(size,
+					ResourceConsumption.unlimitedProcessing, from, to, this);
+		}
+
+		/**
+		 * Called when one of the transfers of the current round completes.
+		 * Decides about the next round once all transfers of the round are
+		 * done.
+		 */
+		@Override
+		public void conComplete() {
+			if (--outstanding != 0 || aborted) {
+				return;
+			}
+			try {
+				if (stopped >= 0) {
+					switchHost();
+				} else if (currState != State.RUNNING || ra != source) {
+					abort();
+				} else {
+					rounds++;
+					final long now = Timed.getFireCount();
+					final long memory = source.allocated.getRequiredMemory();
+					final long dirty = Math.min(memory,
+							Math.round(dirtyPageRate * (now - roundStart)));
+					roundStart = now;
+					if (rounds >= maxPreCopyRounds || dirty >= roundSize
+							|| dirty <= memory * stopAndCopyMemoryFraction) {
+						stopAndCopy(dirty);
+					} else {
+						sendMemory(dirty);
+					}
+				}
+			} catch (NetworkException e) {
+				// Should not happen as the connection was checked before
+				abort();
+			}
+		}
+
+		/**
+		 * Stops the tasks of the VM and transfers the remaining dirty memory.
+		 * The old host releases the resources of the VM.
+		 * 
+		 * @param dirty
+		 *            the memory dirtied during the last pre-copy round
+		 * @throws NetworkException
+		 *             if the two hosts are not connected
+		 */
+		private void stopAndCopy(final long dirty) throws NetworkException {
+			stopped = Timed.getFireCount();
+			suspendTasks();
+			// The allocation on the old host is released with the state change
+			setState(State.MIGRATING);
+			ra = null;
+			if (dirty == 0) {
+				switchHost();
+			} else {
+				sendMemory(dirty);
+			}
+		}
+
+		/**
+		 * Continues the VM and its tasks on the new host.
+		 */
+		private void switchHost() {
+			try {
+				ra = target;
+				target.use(VirtualMachine.this);
+			} catch (VMManagementException e) {
+				// The target allocation expired
+				ra = null;
+				keepOnOldHost();
+				return;
+			}
+			if (withDisk) {
+				vatarget.deregisterObject(disk);
+				vatarget = to;
+			}
+			setPerTickProcessingPower(ra.allocated.getTotalProcessingPower());
+			finished = Timed.getFireCount();
+			setState(State.RUNNING);
+			final int size = suspendedTasks.size();
+			for (int i = 0; i < size; i++) {
+				final ResourceConsumption con = suspendedTasks.get(i);
+				con.setProvider(ra.getHost());
+				con.registerConsumption();
+			}
+			suspendedTasks.clear();
+		}
+
+		/**
+		 * Gives up the live migration after the VM was stopped. The memory
+		 * state is kept on the old host so the VM can be migrated with migrate
+		 * later on.
+		 */
+		private void keepOnOldHost() {
+			aborted = true;
+			target.getHost().cancelAllocation(target);
+			if (withDisk) {
+				to.deregisterObject(disk.id);
+			}
+			savedmemory = new StorageObject("VM-Memory-State-of-" + hashCode(),
+					source.allocated.getRequiredMemory(), false);
+			vatarget.registerObject(savedmemory);
+			setState(State.SUSPENDED_MIG);
+		}
+
+		/**
+		 * Called if one of the transfers of the migration fails. The migration
+		 * is given up.
+		 */
+		@Override
+		public void conCancelled(final ResourceConsumption problematic) {
+			if (aborted) {
+				return;
+			}
+			if (stopped >= 0) {
+				keepOnOldHost();
+			} else {
+				abort();
+			}
+		}
+
+		/**
+		 * Gives up the live migration while the VM is still on its old host.
+		 * The memory transfer in progress is cancelled, while a disk arriving
+		 * later on is dropped from the new host on its arrival.
+		 */
+		private void abort() {
+			aborted = true;
+			if (memoryTransfer != null) {
+				memoryTransfer.cancel();
+			}
+			target.getHost().cancelAllocation(target);
+			if (withDisk) {
+				to.deregisterObject(disk.id);
+			}
+		}
+
+		/**
+		 * @return the number of pre-copy rounds completed so far
+		 */
+		public int getRounds() {
+			return rounds;
+		}
+
+		/**
+		 * @return the amount of data (memory and disk) sent to the new host so
+		 *         far (in bytes)
+		 */
+		public long getTransferredBytes() {
+			return transferred;
+		}
+
+		/**
+		 * @return the number of ticks the VM was not running during the
+		 *         migration, -1 if the migration is not yet complete
+		 */
+		public long getDowntime() {
+			return finished < 0 ? -1 : finished - stopped;
+		}
+
+		/**
+		 * @return the number of ticks between the start of the migration and
+		 *         the time the VM was running again on its new host, -1 if the
+		 *         migration is not yet complete
+		 */
+		public long getTotalMigrationTime() {
+			return finished < 0 ? -1 : finished - started;
+		}
+
+		/**
+		 * @return <i>true</i> if the VM runs on its new host
+		 */
+		public boolean isCompleted() {
+			return finished >= 0;
+		}
+
+		/**
+		 * @return <i>true</i> if the migration was given up
+		 */
+		public boolean isAborted() {
+			return aborted;
+		}
+	}
+
+	/**
+	 * Moves the VM to another physical machine with pre-copy live migration.
+	 * The VM's tasks keep running on the old host during the pre-copy rounds
+	 * and they are only suspended during the final stop-and-copy phase. The
+	 * amount of memory dirtied during the rounds is determined by the dirty
+	 * page rate of the VM. For details see the PreCopyMigration class.
+	 * 
+	 * @param target
+	 *            the new resource allocation on which the VM should continue
+	 *            its operation. If it expires before the stop-and-copy phase
+	 *            completes, the VM is left in SUSPENDED_MIG state (the
+	 *            liveMigrateVM function of PhysicalMachine makes allocations
+	 *            that do not expire during the migration).
+	 * @return the object reporting the progress, the downtime and the total
+	 *         time of the migration
+	 * @throws StateChangeException
+	 *             if the VM is not running or it is already live migrating
+	 * @throws VMManagementException
+	 *             if the disk of the VM cannot be stored on the new host
+	 * @throws NetworkException
+	 *             if the old and the new hosts are not connected
+	 */
+	public PreCopyMigration liveMigrate(
+			final PhysicalMachine.ResourceAllocation target)
+			throws VMManagementException, NetworkNode.NetworkException {
+		if (currState != State.RUNNING) {
+			throw new StateChangeException(
+					"Cannot live migrate a not running machine");
+		}
+		if (liveMigration != null && !liveMigration.isCompleted()
+				&& !liveMigration.isAborted()) {
+			throw new StateChangeException(
+					"The VM is already under live migration");
+		}
+		liveMigration = new PreCopyMigration(target);
+		return liveMigration;
+	}
+
+	/**
+	 * Sets the amount of memory the VM modifies in a single tick while it is
+	 * running. This determines how the pre-copy rounds of a live migration
+	 * progress.
+	 * 
+	 * @param bytesPerTick
+	 *            the new dirty page rate of the VM
+	 * @throws IllegalStateException
+	 *             if the rate is negative
+	 */
+	public void setDirtyPageRate(final double bytesPerTick) {
+		if (bytesPerTick < 0) {
+			throw new IllegalStateException(
+					"The dirty page rate cannot be negative");
+		}
+		dirtyPageRate = bytesPerTick;
+	}
+
+	/**
+	 * @return the amount of memory the VM modifies in a single tick
+	 */
+	public double getDirtyPageRate() {
+		return dirtyPageRate;
+	}
+
+	/**
+	 * @return the live migration in progress, or the last live migration of
+	 *         the VM (<i>null</i> if the VM was never live migrated)
+	 */
+	public PreCopyMigration getLiveMigration() {
+		return liveMigration;
+	}
+
 	/**
 	 * Destroys the VM, and cleans up all repositories that could contain disk
 	 * or memory states.
@@ -783,12 +1497,16 @@ public class VirtualMachine extends MaxMinConsumer {
 					"Cannot switch off a not running machine");
 		}
 		if (killTasks) {
+			if (taskQueue != null) {
+				taskQueue.cancelWaiting();
+			}
 			suspendedTasks.addAll(underProcessing);
 			for (final ResourceConsumption con : suspendedTasks) {
 				con.cancel();
 			}
 			suspendedTasks.clear();
-		} else if (!underProcessing.isEmpty()) {
+		} else if (!underProcessing.isEmpty()
+				|| (taskQueue != null && taskQueue.hasWaiting())) {
 			throw new StateChangeException(
 					"Cannot switch off a running machine with running tasks");
 		}
@@ -797,6 +1515,25 @@ public class VirtualMachine extends MaxMinConsumer {
 		setState(State.SHUTDOWN);
 	}
 
+	/**
+	 * Suspends all the tasks of the VM (including the ones not yet registered
+	 * for processing) and collects them in the suspendedTasks list.
+	 */
+	private void suspendTasks() {
+		@SuppressWarnings("unchecked")
+		List<ResourceConsumption>[] completeConlist = new List[] {
+				underProcessing, new ArrayList<ResourceConsumption>(toBeAdded) };
+
+		for (int i = 0; i < completeConlist.length; i++) {
+			final int currlistsize = completeConlist[i].size();
+			for (int idx = 0; idx < currlistsize; idx++) {
+				final ResourceConsumption con = completeConlist[i].get(idx);
+				con.suspend();
+				suspendedTasks.add(con);
+			}
+		}
+	}
+
 	/**
 	 * Suspends an already running VM. During the suspend operation, the VM's
 	 * memory state is stored to enable the resume operation for fast VM
@@ -834,18 +1571,7 @@ public class VirtualMachine extends MaxMinConsumer {
 			throw new StateChangeException(
 					"Cannot suspend a not running machine");
 		}
-		@SuppressWarnings("unchecked")
-		List<ResourceConsumption>[] completeConlist = new List[] {
-				underProcessing, new ArrayList<ResourceConsumption>(toBeAdded) };
-
-		for (int i = 0; i < completeConlist.length; i++) {
-			final int currlistsize = completeConlist[i].size();
-			for (int idx = 0; idx < currlistsize; idx++) {
-				final ResourceConsumption con = completeConlist[i].get(idx);
-				con.suspend();
-				suspendedTasks.add(con);
-			}
-		}
+		suspendTasks();
 		final String memid = "VM-Memory-State-of-" + hashCode();
 		final Repository pmdisk = ra.getHost().localDisk;
 		savedmemory = new StorageObject(memid,
@@ -942,6 +1668,7 @@ public class VirtualMachine extends MaxMinConsumer {
 	 *            the party to be notified when the state changes
 	 */
 	public void subscribeStateChange(final StateChange consumer) {
+		checkNotPooled();
 		vmStateChangelistenerManager.subscribeToEvents(consumer);
 	}
 
@@ -962,6 +1689,7 @@ public class VirtualMachine extends MaxMinConsumer {
 	 */
 	@Override
 	protected boolean isAcceptableConsumption(ResourceConsumption con) {
+		checkNotPooled();
 		return consumingStates.contains(currState) ? super
 				.isAcceptableConsumption(con) : false;
 	}
@@ -1002,25 +1730,257 @@ public class VirtualMachine extends MaxMinConsumer {
 		if (ra == null) {
 			return null;
 		}
+		if (taskQueue != null) {
+			return taskQueue.submit(total, limit, e);
+		}
 		ResourceConsumption cons = new ResourceConsumption(total, limit, this,
 				ra.getHost(), e);
 		if (cons.registerConsumption()) {
-			final long bgnwload = va.getBgNetworkLoad();
-			if (bgnwload > 0) {
-				final long minBW = Math.min(
-						bgnwload,
-						Math.min(ra.getHost().localDisk.getOutputbw(),
-								vasource.getInputbw()));
-				NetworkNode.initTransfer(minBW * cons.getCompletionDistance(),
-						minBW, ra.getHost().localDisk, vasource,
-						new ConsumptionEventAdapter());
+			initBgNetworkLoad(cons);
+			return cons;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * The bulk version of newComputeTask. Creates and registers several
+	 * compute tasks at once. The tasks share their processing limit and their
+	 * event object. Registering the tasks in a single step lets the resource
+	 * sharing mechanism handle them together, this is significantly faster than
+	 * calling newComputeTask for each task when lots of tasks are started at
+	 * once (e.g., when replaying traces).
+	 * 
+	 * @param totals
+	 *            the amount of processing to be done (in number of
+	 *            instructions) by each task
+	 * @param limit
+	 *            the amount of processing each compute task is allowed to do in
+	 *            a single tick (in instructions/tick). If there should be no
+	 *            limit for the processing then one can use the constant named
+	 *            ResourceConsumption.unlimitedProcessing.
+	 * @param e
+	 *            the object to be notified about the completion of each
+	 *            computation ordered here
+	 * @return the resource consumption objects that represent the CPU
+	 *         consumption of the tasks, in the same order as the totals were
+	 *         given. An item is null if its task could not be registered. The
+	 *         function returns null if there is no resource for the VM.
+	 * @throws NetworkException
+	 *             if the background network load is not possible to simulate.
+	 */
+	public ResourceConsumption[] newComputeTasks(final double[] totals,
+			final double limit, final ResourceConsumption.ConsumptionEvent e)
+			throws NetworkException {
+		if (ra == null) {
+			return null;
+		}
+		final ResourceConsumption[] tasks = new ResourceConsumption[totals.length];
+		if (taskQueue != null) {
+			for (int i = 0; i < totals.length; i++) {
+				tasks[i] = taskQueue.submit(totals[i], limit, e);
+			}
+			return tasks;
+		}
+		for (int i = 0; i < totals.length; i++) {
+			tasks[i] = new ResourceConsumption(totals[i], limit, this,
+					ra.getHost(), e);
+		}
+		ResourceConsumption.registerConsumptions(tasks, tasks.length);
+		for (int i = 0; i < tasks.length; i++) {
+			if (tasks[i].isRegistered()) {
+				initBgNetworkLoad(tasks[i]);
+			} else if (tasks[i].getUnProcessed() != 0) {
+				tasks[i] = null;
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Limits the number of compute tasks processed concurrently by this VM.
+	 * The tasks created with newComputeTask(s) above the limit are queued and
+	 * only admitted to the VM's resources when earlier tasks complete or get
+	 * cancelled. Queued tasks are represented by not yet registered
+	 * consumptions. If the VM is switched off while killing its tasks, then
+	 * the cancellation of the queued tasks is reported to their event
+	 * objects.
+	 * 
+	 * <i>NOTE:</i> coalesced, profiled and compact tasks are not subject to
+	 * the limit.
+	 * 
+	 * @param concurrency
+	 *            the maximum number of concurrently processed tasks, values
+	 *            below 1 remove the limit (the already queued tasks are
+	 *            admitted right away).
+	 */
+	public void setTaskConcurrency(final int concurrency) {
+		if (concurrency < 1) {
+			if (taskQueue != null) {
+				taskQueue.concurrency = Integer.MAX_VALUE;
+				taskQueue.admit();
+				taskQueue = null;
 			}
+		} else if (taskQueue == null) {
+			taskQueue = new TaskQueue(concurrency);
+		} else {
+			taskQueue.concurrency = concurrency;
+			taskQueue.admit();
+		}
+	}
+
+	/**
+	 * Allows access to the run queue of the VM (e.g., to query its
+	 * statistics).
+	 * 
+	 * @return the run queue, or null if the number of concurrent tasks is not
+	 *         limited
+	 */
+	public TaskQueue getTaskQueue() {
+		return taskQueue;
+	}
+
+	/**
+	 * Creates several identical compute tasks that are represented by a single
+	 * resource consumption object. The resource sharing mechanism handles such
+	 * tasks together as they always receive the same share of the VM's
+	 * resources. This reduces the simulation effort and memory usage when lots
+	 * of identical tasks are executed on the same VM.
+	 * 
+	 * @param total
+	 *            the amount of processing to be done by each task (in number
+	 *            of instructions)
+	 * @param limit
+	 *            the amount of processing each task is allowed to do in a
+	 *            single tick (in instructions/tick). If there should be no limit
+	 *            for the processing then one can use the constant named
+	 *            ResourceConsumption.unlimitedProcessing.
+	 * @param count
+	 *            the number of identical tasks to create
+	 * @param e
+	 *            the object to be notified about the completion of the tasks,
+	 *            it is notified once for every task
+	 * @return the resource consumption object that will represent the CPU
+	 *         consumption of all the tasks. Could return null if the
+	 *         consumption cannot be registered or when there is no resoruce
+	 *         for the VM
+	 * @throws NetworkException
+	 *             if the background network load is not possible to simulate.
+	 */
+	public ResourceConsumption newCoalescedComputeTask(final double total,
+			final double limit, final int count,
+			final ResourceConsumption.ConsumptionEvent e)
+			throws NetworkException {
+		if (ra == null) {
+			return null;
+		}
+		ResourceConsumption cons = new ResourceConsumption(total, limit, this,
+				ra.getHost(), e, count);
+		if (cons.registerConsumption()) {
+			initBgNetworkLoad(cons);
+			return cons;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a compute task with a time varying demand. The processing limit
+	 * of the task follows the given load profile, which allows the replay of
+	 * utilization traces with a single compute task. Background network load
+	 * is created as with regular compute tasks.
+	 * 
+	 * @param total
+	 *            the amount of processing to be done (in number of
+	 *            instructions)
+	 * @param breakpoints
+	 *            the time instances (in ticks, relative to now) at which the
+	 *            limit of the task changes, see ProfiledResourceConsumption
+	 * @param limits
+	 *            the processing limits (in instructions/tick) valid from the
+	 *            breakpoint with the same index
+	 * @param e
+	 *            the object to be notified about the completion of the
+	 *            computation ordered here
+	 * @return the resource consumption object that will represent the CPU
+	 *         consumption. Could return null if the consumption cannot be
+	 *         registered or when there is no resoruce for the VM
+	 * @throws NetworkException
+	 *             if the background network load is not possible to simulate.
+	 */
+	public ResourceConsumption newProfiledComputeTask(final double total,
+			final long[] breakpoints, final double[] limits,
+			final ResourceConsumption.ConsumptionEvent e)
+			throws NetworkException {
+		if (ra == null) {
+			return null;
+		}
+		ResourceConsumption cons = new ProfiledResourceConsumption(total,
+				breakpoints, limits, this, ra.getHost(), e);
+		if (cons.registerConsumption()) {
+			initBgNetworkLoad(cons);
 			return cons;
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Creates an empty set of compact compute tasks on this VM. Compact tasks
+	 * are meant for simulations with lots of short lived tasks: instead of a
+	 * resource consumption object for every task, the tasks of the set are
+	 * stored in primitive arrays and share a single resource consumption. The
+	 * compact tasks can be mixed with the regular compute tasks of the VM.
+	 * 
+	 * <i>NOTE:</i> compact tasks do not generate background network load. The
+	 * set always starts its carriers on the current host of the VM, so it
+	 * follows the VM when it is migrated.
+	 * 
+	 * @param limit
+	 *            the amount of processing a single task of the set is allowed
+	 *            to do in a single tick (in instructions/tick).
+	 * @param e
+	 *            the object to be notified about the completion of the tasks
+	 * @return the task set to which the tasks can be added, or null when
+	 *         there is no resource for the VM
+	 */
+	public CompactTaskSet newCompactTaskSet(final double limit,
+			final CompactTaskSet.TaskEvent e) {
+		if (ra == null) {
+			return null;
+		}
+		return new CompactTaskSet(this, ra.getHost(), limit, e) {
+			@Override
+			protected ResourceSpreader getProvider() {
+				return ra == null ? super.getProvider() : ra.getHost();
+			}
+		};
+	}
+
+	/**
+	 * Starts the background network activities of a newly registered compute
+	 * task if the VA of this VM has background network load. Coalesced tasks
+	 * generate background load for each of the tasks they represent.
+	 * 
+	 * @param cons
+	 *            the compute task that just got registered
+	 * @throws NetworkException
+	 *             if the background network load is not possible to simulate.
+	 */
+	private void initBgNetworkLoad(final ResourceConsumption cons)
+			throws NetworkException {
+		final long bgnwload = va.getBgNetworkLoad();
+		if (bgnwload > 0) {
+			final long minBW = Math.min(
+					bgnwload * cons.getMultiplicity(),
+					Math.min(ra.getHost().localDisk.getOutputbw(),
+							vasource.getInputbw()));
+			NetworkNode.initTransfer(minBW * cons.getCompletionDistance(),
+					minBW, ra.getHost().localDisk, vasource,
+					new ConsumptionEventAdapter());
+		}
+	}
+
 	/**
 	 * Allows to set a new resource allocation for the VM
 	 * 
@@ -1034,6 +1994,7 @@ public class VirtualMachine extends MaxMinConsumer {
 	 */
 	public void setResourceAllocation(PhysicalMachine.ResourceAllocation newRA)
 			throws VMManagementException {
+		checkNotPooled();
 		switch (currState) {
 		case DESTROYED:
 		case SUSPENDED:
@@ -1059,6 +2020,67 @@ public class VirtualMachine extends MaxMinConsumer {
 		return ra;
 	}
 
+	/**
+	 * Protects the VMs released to a pool from their former users.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the VM is in a pool
+	 */
+	private void checkNotPooled() {
+		if (pooled) {
+			throw new IllegalStateException(
+					"The VM was released to a pool and cannot be used anymore");
+		}
+	}
+
+	/**
+	 * Determines if the VM could be reused for another VA: it is destroyed,
+	 * nobody observes its state and it has no tasks to run.
+	 * 
+	 * @return <i>true</i> if the VM can be released to a pool
+	 */
+	boolean isRecyclable() {
+		return !pooled && currState == State.DESTROYED
+				&& !vmStateChangelistenerManager.hasListeners()
+				&& underProcessing.isEmpty() && suspendedTasks.isEmpty()
+				&& (taskQueue == null || !taskQueue.hasWaiting());
+	}
+
+	/**
+	 * Marks the VM as released to a pool and drops all references it holds to
+	 * its former environment. Only to be used by VMPool after checking
+	 * isRecyclable.
+	 */
+	void recycle() {
+		resetForReuse();
+		va = null;
+		ra = null;
+		disk = null;
+		savedmemory = null;
+		vasource = null;
+		vatarget = null;
+		taskQueue = null;
+		dirtyPageRate = 0;
+		liveMigration = null;
+		pooled = true;
+	}
+
+	/**
+	 * Hands out a recycled VM for a new VA. The VM will behave as if it was
+	 * just created with the new VA. Only to be used by VMPool.
+	 * 
+	 * @param newVA
+	 *            the virtual appliance of the reused VM
+	 */
+	void reuse(final VirtualAppliance newVA) {
+		if (newVA == null) {
+			throw new IllegalStateException(
+					"Cannot accept nonexistent virtual appliances on instantiation");
+		}
+		va = newVA;
+		pooled = false;
+	}
+
 	/**
 	 * If there are not enough resources for the VM currently, to recover from
 	 * this state (and allow the VM to be rescheduled) just issue a destroy
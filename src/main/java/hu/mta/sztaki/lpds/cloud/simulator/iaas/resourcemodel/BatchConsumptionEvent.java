@@ -0,0 +1,55 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
+
+import java.util.List;
+
+/**
+ * An opt-in extension of the consumption event interface for those who handle
+ * the completion of many consumptions at once. If several consumptions
+ * observed by the same batch event complete in the same influence group
+ * management step, then the event receives them in a single call. The
+ * conComplete function is not called for the consumptions reported this way.
+ * 
+ * New consumptions registered during the batch call are added to the
+ * influence groups together, before the processing limits of the groups are
+ * recalculated.
+ * 
+ * Cancellations are still reported individually with conCancelled.
+ */
+public interface BatchConsumptionEvent extends ResourceConsumption.ConsumptionEvent {
+	/**
+	 * This function is called when the listed resource consumptions are
+	 * fulfilled. Consumptions representing multiple identical consumptions
+	 * (see ResourceConsumption.getMultiplicity) are listed only once.
+	 * 
+	 * @param completed
+	 *            the consumptions completed, the list is only valid during the
+	 *            call
+	 */
+	void conBatchComplete(List<ResourceConsumption> completed);
+}
@@ -0,0 +1,398 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
+
+import java.util.Arrays;
+
+/**
+ * A compact representation for large numbers of simple tasks executed
+ * between a fixed provider/consumer pair. Instead of a resource consumption
+ * object for every task, the tasks are stored in primitive arrays (their ids
+ * and their remaining processing) and a single resource consumption (the
+ * carrier) represents all of them towards the resource sharing mechanism.
+ * 
+ * The tasks of the set share the resources they receive equally (i.e., they
+ * behave as if they were independent consumptions with the same processing
+ * limit). The carrier's weight is the number of live tasks, so the tasks
+ * compete for resources with the regular consumptions of the same
+ * provider/consumer as if they were regular consumptions. The carrier always
+ * lasts until the completion of the shortest task(s), afterwards it is
+ * replaced with a new one representing the remaining tasks. Thus the
+ * influence group of the set is only rescheduled when some of its tasks
+ * complete or new tasks arrive.
+ * 
+ * Compact tasks do not support the state snapshots of the regular
+ * consumptions, and their completion is reported through a single shared
+ * event handler that is given the id of the completed task.
+ * 
+ * <i>NOTE:</i> if the carrier is suspended (e.g., because the consumer is
+ * suspended), then the new tasks are only started once the carrier is
+ * resumed and its current part completes.
+ */
+public class CompactTaskSet {
+	/**
+	 * The interface to be implemented by those who need to know about the
+	 * completion of the compact tasks.
+	 */
+	public interface TaskEvent {
+		/**
+		 * This function is called when the processing of a task completed.
+		 * 
+		 * @param id
+		 *            the id of the task given when it was added to the set
+		 */
+		void taskComplete(long id);
+
+		/**
+		 * This function is called when a task is cancelled, either because it
+		 * was explicitly cancelled or because the carrier of the set was
+		 * cancelled (e.g., the consumer was destroyed).
+		 * 
+		 * @param id
+		 *            the id of the task given when it was added to the set
+		 */
+		void taskCancelled(long id);
+	}
+
+	/**
+	 * Receives the notifications of the carrier consumptions.
+	 */
+	private final ConsumptionEventAdapter carrierEvent = new ConsumptionEventAdapter() {
+		@Override
+		public void conComplete() {
+			super.conComplete();
+			carrierFinished(true);
+		}
+
+		@Override
+		public void conCancelled(final ResourceConsumption problematic) {
+			super.conCancelled(problematic);
+			carrierFinished(false);
+		}
+	};
+
+	/**
+	 * The consumer of the tasks
+	 */
+	private final ResourceSpreader consumer;
+	/**
+	 * The provider of the tasks given at the construction of the set
+	 */
+	private final ResourceSpreader provider;
+	/**
+	 * The processing limit of a single task (in processing/tick)
+	 */
+	private final double taskLimit;
+	/**
+	 * The object to be notified about the fate of the tasks
+	 */
+	private final TaskEvent ev;
+	/**
+	 * The ids of the tasks currently under processing
+	 */
+	private long[] ids = new long[16];
+	/**
+	 * The remaining processing of the tasks currently under processing (the
+	 * processing done by the current carrier is not yet deducted)
+	 */
+	private double[] remaining = new double[16];
+	/**
+	 * The number of tasks currently under processing
+	 */
+	private int size = 0;
+	/**
+	 * The ids of the tasks that arrived while the carrier was running
+	 */
+	private long[] pendingIds = new long[16];
+	/**
+	 * The processing needs of the tasks that arrived while the carrier was
+	 * running
+	 */
+	private double[] pendingTotals = new double[16];
+	/**
+	 * The number of tasks waiting for the replacement of the carrier
+	 */
+	private int pendingSize = 0;
+	/**
+	 * The ids of the tasks that should be cancelled once the carrier is
+	 * replaced
+	 */
+	private long[] cancelledIds = new long[4];
+	/**
+	 * The number of tasks to be cancelled when the carrier is replaced
+	 */
+	private int cancelledSize = 0;
+	/**
+	 * The consumption currently representing the tasks, null if there are no
+	 * tasks under processing
+	 */
+	private ResourceConsumption carrier;
+	/**
+	 * The amount of processing the current carrier does for every task
+	 */
+	private double carrierShare;
+	/**
+	 * <i>true</i> if the current carrier was cancelled by this set to allow
+	 * its replacement
+	 */
+	private boolean replacing = false;
+
+	/**
+	 * Prepares an empty task set for the given provider/consumer pair.
+	 * 
+	 * @param consumer
+	 *            the consumer of all tasks in the set
+	 * @param provider
+	 *            the provider of all tasks in the set
+	 * @param taskLimit
+	 *            the processing limit of the individual tasks (in
+	 *            processing/tick). ResourceConsumption.unlimitedProcessing can
+	 *            be used for tasks without limits.
+	 * @param ev
+	 *            the object to be notified about the completion of the tasks
+	 */
+	public CompactTaskSet(final ResourceSpreader consumer, final ResourceSpreader provider, final double taskLimit,
+			final TaskEvent ev) {
+		if (consumer == null || provider == null || ev == null) {
+			throw new IllegalStateException("Compact tasks need a provider, a consumer and an event handler");
+		}
+		if (taskLimit <= 0) {
+			throw new IllegalStateException("Compact tasks need a positive processing limit");
+		}
+		this.consumer = consumer;
+		this.provider = provider;
+		this.taskLimit = taskLimit;
+		this.ev = ev;
+	}
+
+	/**
+	 * Adds a new task to the set. Its processing starts right away, if the
+	 * task has nothing to process then its completion is reported right away.
+	 * 
+	 * @param id
+	 *            the identifier of the task to be reported to the event
+	 *            handler
+	 * @param total
+	 *            the amount of processing to be done by the task
+	 */
+	public void addTask(final long id, final double total) {
+		addTasks(new long[] { id }, new double[] { total }, 1);
+	}
+
+	/**
+	 * Adds several tasks to the set with a single rescheduling of the set.
+	 * 
+	 * @param newIds
+	 *            the identifiers of the tasks
+	 * @param totals
+	 *            the amount of processing to be done by the tasks
+	 * @param len
+	 *            the number of tasks to add from the arrays
+	 */
+	public void addTasks(final long[] newIds, final double[] totals, final int len) {
+		for (int i = 0; i < len; i++) {
+			if (totals[i] < 0) {
+				throw new IllegalStateException("Cannot add a task with negative processing");
+			}
+		}
+		for (int i = 0; i < len; i++) {
+			if (totals[i] == 0) {
+				ev.taskComplete(newIds[i]);
+				continue;
+			}
+			if (pendingSize == pendingIds.length) {
+				pendingIds = Arrays.copyOf(pendingIds, pendingSize * 2);
+				pendingTotals = Arrays.copyOf(pendingTotals, pendingSize * 2);
+			}
+			pendingIds[pendingSize] = newIds[i];
+			pendingTotals[pendingSize++] = totals[i];
+		}
+		requestReplacement();
+	}
+
+	/**
+	 * Cancels a task of the set. The cancellation is reported to the event
+	 * handler once the processing already done for the rest of the tasks is
+	 * accounted for (i.e., not necessarily during this call). Unknown ids are
+	 * ignored.
+	 * 
+	 * @param id
+	 *            the task to be cancelled
+	 */
+	public void cancelTask(final long id) {
+		if (cancelledSize == cancelledIds.length) {
+			cancelledIds = Arrays.copyOf(cancelledIds, cancelledSize * 2);
+		}
+		cancelledIds[cancelledSize++] = id;
+		requestReplacement();
+	}
+
+	/**
+	 * Ensures the new tasks and cancellations are taken into account. If the
+	 * carrier is running it is cancelled and replaced once the resource
+	 * sharing mechanism determined the processing it has done. If there is no
+	 * carrier then a new one is started right away. Suspended carriers are
+	 * left intact.
+	 */
+	private void requestReplacement() {
+		if (carrier == null) {
+			startCarrier();
+		} else if (carrier.isRegistered() && !replacing) {
+			replacing = true;
+			carrier.cancel();
+		}
+	}
+
+	/**
+	 * Accounts the processing done by the carrier that just left its
+	 * provider/consumer pair and starts a new one for the remaining tasks.
+	 * 
+	 * @param completed
+	 *            <i>true</i> if the carrier completed its processing
+	 */
+	private void carrierFinished(final boolean completed) {
+		final double done = completed ? carrierShare : carrierShare - carrier.getUnProcessed() / size;
+		final boolean external = !completed && !replacing;
+		carrier = null;
+		replacing = false;
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			final double left = remaining[i] - done;
+			if (left <= 0) {
+				ev.taskComplete(ids[i]);
+			} else if (external) {
+				ev.taskCancelled(ids[i]);
+			} else {
+				ids[kept] = ids[i];
+				remaining[kept++] = left;
+			}
+		}
+		size = kept;
+		if (external) {
+			cancelPending();
+		} else {
+			startCarrier();
+		}
+	}
+
+	/**
+	 * Reports the cancellation of all tasks that are not yet under processing.
+	 */
+	private void cancelPending() {
+		for (int i = 0; i < pendingSize; i++) {
+			ev.taskCancelled(pendingIds[i]);
+		}
+		pendingSize = 0;
+		cancelledSize = 0;
+	}
+
+	/**
+	 * Merges the pending tasks and cancellations into the task arrays and
+	 * registers a new carrier lasting until the shortest remaining task
+	 * completes. If the provider/consumer pair does not accept the carrier,
+	 * then all tasks are cancelled.
+	 */
+	private void startCarrier() {
+		if (pendingSize > 0) {
+			final int needed = size + pendingSize;
+			if (needed > ids.length) {
+				final int newLen = Math.max(needed, ids.length * 2);
+				ids = Arrays.copyOf(ids, newLen);
+				remaining = Arrays.copyOf(remaining, newLen);
+			}
+			System.arraycopy(pendingIds, 0, ids, size, pendingSize);
+			System.arraycopy(pendingTotals, 0, remaining, size, pendingSize);
+			size = needed;
+			pendingSize = 0;
+		}
+		for (int c = 0; c < cancelledSize; c++) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == cancelledIds[c]) {
+					final long id = ids[i];
+					size--;
+					System.arraycopy(ids, i + 1, ids, i, size - i);
+					System.arraycopy(remaining, i + 1, remaining, i, size - i);
+					ev.taskCancelled(id);
+					break;
+				}
+			}
+		}
+		cancelledSize = 0;
+		if (size == 0) {
+			return;
+		}
+		double shortest = remaining[0];
+		for (int i = 1; i < size; i++) {
+			shortest = Math.min(shortest, remaining[i]);
+		}
+		carrierShare = shortest;
+		carrier = new ResourceConsumption(shortest * size,
+				taskLimit == ResourceConsumption.unlimitedProcessing ? taskLimit : taskLimit * size, consumer,
+				getProvider(), carrierEvent);
+		carrier.setWeight(size);
+		if (!carrier.registerConsumption()) {
+			// The provider/consumer pair does not accept consumptions
+			carrier = null;
+			for (int i = 0; i < size; i++) {
+				ev.taskCancelled(ids[i]);
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Determines the number of tasks in the set that are not yet completed or
+	 * cancelled.
+	 * 
+	 * @return the number of live tasks
+	 */
+	public int getTaskCount() {
+		return size + pendingSize;
+	}
+
+	/**
+	 * Determines the provider to be used by the next carrier of the set. It is
+	 * queried every time a new carrier is started, so subclasses can let the
+	 * set follow a consumer that changes its provider (e.g., a migrating VM).
+	 * 
+	 * @return the provider given at the construction of the set
+	 */
+	protected ResourceSpreader getProvider() {
+		return provider;
+	}
+
+	/**
+	 * Allows access to the consumption currently representing the tasks of
+	 * this set towards the resource sharing mechanism.
+	 * 
+	 * @return the current carrier, or null if there are no tasks under
+	 *         processing
+	 */
+	public ResourceConsumption getCarrier() {
+		return carrier;
+	}
+}
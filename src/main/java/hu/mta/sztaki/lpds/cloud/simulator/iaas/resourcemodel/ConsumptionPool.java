@@ -0,0 +1,192 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
+
+import java.util.ArrayList;
+
+/**
+ * Allows the reuse of completed or cancelled resource consumption objects.
+ * This is beneficial in simulations where large amounts of short lived
+ * consumptions are created (e.g., function as a service scenarios) as the
+ * simulator does not need to allocate new objects for every consumption.
+ * 
+ * Consumptions can be released to the pool once they are completed or
+ * cancelled. Released consumptions cannot be used by their former users
+ * (their registration, suspension, cancellation and provider/consumer
+ * changes fail with an IllegalStateException) until the pool hands them out
+ * again. If the spreaders still refer to a released consumption (e.g.,
+ * because it was released from its completion event), then the pool only
+ * reuses it after the spreaders are done with it.
+ * 
+ * In debug mode, the pool never hands out the released consumptions, so any
+ * later use of them by their former users is reported with an exception. In
+ * this mode the pool does not reduce the number of allocated objects.
+ * 
+ * Only plain resource consumption objects representing a single consumption
+ * can be pooled (subclasses could hold state the pool is not aware of).
+ */
+public class ConsumptionPool {
+	/**
+	 * if true, released consumptions are never reused
+	 */
+	public final boolean debug;
+	/**
+	 * the consumptions ready for reuse
+	 */
+	private final ArrayList<ResourceConsumption> available = new ArrayList<ResourceConsumption>();
+	/**
+	 * the released consumptions that could still be referred by their
+	 * spreaders
+	 */
+	private final ArrayList<ResourceConsumption> detaching = new ArrayList<ResourceConsumption>();
+	/**
+	 * the number of consumptions created by the pool
+	 */
+	private long created = 0;
+	/**
+	 * the number of times the pool handed out a previously released
+	 * consumption
+	 */
+	private long reused = 0;
+
+	/**
+	 * Creates an empty pool
+	 * 
+	 * @param debug
+	 *            if <i>true</i>, released consumptions are never reused so
+	 *            their later use is always detected
+	 */
+	public ConsumptionPool(final boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Provides a consumption that behaves as if it was just created with the
+	 * ResourceConsumption(total, limit, consumer, provider, e) constructor. The
+	 * consumption is not registered.
+	 * 
+	 * @param total
+	 *            The amount of processing to be done by the consumption
+	 * @param limit
+	 *            the maximum amount of processing allowable for the
+	 *            consumption in a single tick
+	 * @param consumer
+	 *            the consumer that will benefit from the consumption (can be
+	 *            null)
+	 * @param provider
+	 *            the provider which offers its resources for the consumption
+	 *            (can be null)
+	 * @param e
+	 *            the event to be fired when the consumption completes
+	 * @return the consumption to be used
+	 */
+	public ResourceConsumption acquire(final double total, final double limit, final ResourceSpreader consumer,
+			final ResourceSpreader provider, final ResourceConsumption.ConsumptionEvent e) {
+		if (e == null) {
+			throw new IllegalStateException("Cannot create a consumption without an event to be fired");
+		}
+		if (available.isEmpty() && !detaching.isEmpty()) {
+			collectDetached();
+		}
+		if (available.isEmpty()) {
+			created++;
+			return new ResourceConsumption(total, limit, consumer, provider, e);
+		}
+		final ResourceConsumption con = available.remove(available.size() - 1);
+		con.reinitialize(total, limit, consumer, provider, e);
+		reused++;
+		return con;
+	}
+
+	/**
+	 * Makes the consumptions, which are no longer referred by their spreaders,
+	 * available for reuse.
+	 */
+	private void collectDetached() {
+		int len = detaching.size();
+		for (int i = len - 1; i >= 0; i--) {
+			final ResourceConsumption con = detaching.get(i);
+			if (con.isDetached()) {
+				len--;
+				detaching.set(i, detaching.get(len));
+				detaching.remove(len);
+				available.add(con);
+			}
+		}
+	}
+
+	/**
+	 * Gives back a consumption to the pool. The former users of the
+	 * consumption must not use it after this call.
+	 * 
+	 * @param con
+	 *            the completed or cancelled consumption to be reused later
+	 * @throws IllegalStateException
+	 *             if the consumption is still in progress, if it is already
+	 *             released or if it cannot be pooled
+	 */
+	public void release(final ResourceConsumption con) {
+		if (con.getClass() != ResourceConsumption.class || con.multiplicity != 1) {
+			throw new IllegalStateException("Only plain consumptions representing a single consumption are pooled");
+		}
+		if (con.pooled) {
+			throw new IllegalStateException("The consumption was already released");
+		}
+		if (con.getUnProcessed() != 0 && con.isResumable()) {
+			throw new IllegalStateException("Only completed or cancelled consumptions can be released");
+		}
+		con.pooled = true;
+		if (!debug) {
+			if (con.isDetached()) {
+				available.add(con);
+			} else {
+				detaching.add(con);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of consumptions ready to be handed out again
+	 */
+	public int getAvailableCount() {
+		return available.size() + detaching.size();
+	}
+
+	/**
+	 * @return the number of consumptions created by the pool
+	 */
+	public long getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * @return the number of times the pool handed out a previously released
+	 *         consumption
+	 */
+	public long getReusedCount() {
+		return reused;
+	}
+}
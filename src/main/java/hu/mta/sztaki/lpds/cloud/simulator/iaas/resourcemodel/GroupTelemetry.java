@@ -0,0 +1,395 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
+
+import java.io.IOException;
+
+/**
+ * Collects statistics about the influence groups of the unified resource
+ * sharing model over a simulation run. The statistics allow the
+ * identification of the influence groups and the group management operations
+ * that dominate the runtime of a simulation.
+ * 
+ * The collection is disabled by default as it involves measuring the time
+ * spent in the low level scheduler. The counters of the individual
+ * freqsyncers are maintained independently from this class (see
+ * ResourceSpreader.FreqSyncer).
+ */
+public final class GroupTelemetry {
+
+	/**
+	 * A histogram with exponentially growing buckets. The bucket with index i
+	 * collects the values in the range [2^(i-1), 2^i[, except the bucket with
+	 * index 0 which collects the non-positive values.
+	 */
+	public static final class Histogram {
+		/**
+		 * the number of values recorded in each bucket
+		 */
+		private final long[] buckets = new long[Long.SIZE];
+		/**
+		 * the number of values recorded
+		 */
+		private long count;
+		/**
+		 * the sum of the recorded values
+		 */
+		private long sum;
+		/**
+		 * the largest value recorded
+		 */
+		private long max;
+
+		/**
+		 * Records a single value.
+		 * 
+		 * @param value
+		 *            the value to be recorded
+		 */
+		void record(final long value) {
+			buckets[value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			if (value > max) {
+				max = value;
+			}
+		}
+
+		/**
+		 * Forgets all recorded values.
+		 */
+		void reset() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = 0;
+			}
+			count = sum = max = 0;
+		}
+
+		/**
+		 * Determines the number of buckets of the histogram.
+		 * 
+		 * @return the number of buckets
+		 */
+		public int getBucketCount() {
+			return buckets.length;
+		}
+
+		/**
+		 * Determines the number of values recorded in a particular bucket.
+		 * 
+		 * @param bucket
+		 *            the index of the bucket
+		 * @return the number of values in the bucket
+		 */
+		public long getBucket(final int bucket) {
+			return buckets[bucket];
+		}
+
+		/**
+		 * Determines the smallest value a particular bucket collects.
+		 * 
+		 * @param bucket
+		 *            the index of the bucket
+		 * @return the lower bound of the bucket (inclusive)
+		 */
+		public static long getBucketLowerBound(final int bucket) {
+			return bucket == 0 ? Long.MIN_VALUE : 1L << (bucket - 1);
+		}
+
+		/**
+		 * Determines the number of recorded values.
+		 * 
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Determines the sum of the recorded values.
+		 * 
+		 * @return the sum
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * Determines the largest recorded value.
+		 * 
+		 * @return the maximum, 0 if nothing was recorded
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Determines the average of the recorded values.
+		 * 
+		 * @return the mean, 0 if nothing was recorded
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+	}
+
+	/**
+	 * Shows if the statistics are collected.
+	 */
+	static boolean enabled = false;
+	/**
+	 * The number of spreaders in the influence groups at their frequency
+	 * updates.
+	 */
+	private static final Histogram groupSizes = new Histogram();
+	/**
+	 * The number of providers in the influence groups at their frequency
+	 * updates.
+	 */
+	private static final Histogram providerCounts = new Histogram();
+	/**
+	 * The number of progressive filling iterations done by the low level
+	 * scheduler in a frequency update.
+	 */
+	private static final Histogram solverIterations = new Histogram();
+	/**
+	 * The time spent (in nanoseconds) in the low level scheduler in a
+	 * frequency update.
+	 */
+	private static final Histogram updaterNanos = new Histogram();
+	/**
+	 * The number of frequency updates
+	 */
+	private static long freqUpdates;
+	/**
+	 * The number of frequency updates after which the group was not in regular
+	 * frequency mode (i.e., it had to process 0 tick long consumptions).
+	 */
+	private static long irregularFreqUpdates;
+	/**
+	 * The number of times an influence group was absorbed by another one.
+	 */
+	private static long merges;
+	/**
+	 * The number of new influence groups created by splitting an existing one.
+	 */
+	private static long splits;
+
+	/**
+	 * No instances are needed, all statistics are global.
+	 */
+	private GroupTelemetry() {
+	}
+
+	/**
+	 * Enables or disables the collection of the statistics. Already collected
+	 * statistics are kept.
+	 * 
+	 * @param enable
+	 *            <i>true</i> if the statistics should be collected from now on
+	 */
+	public static void setEnabled(final boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * Determines if the statistics are collected.
+	 * 
+	 * @return <i>true</i> if the collection is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Forgets all collected statistics.
+	 */
+	public static void reset() {
+		groupSizes.reset();
+		providerCounts.reset();
+		solverIterations.reset();
+		updaterNanos.reset();
+		freqUpdates = irregularFreqUpdates = merges = splits = 0;
+	}
+
+	/**
+	 * Records the statistics of a single frequency update.
+	 * 
+	 * @param groupSize
+	 *            the number of spreaders in the group
+	 * @param providerCount
+	 *            the number of providers in the group
+	 * @param iterations
+	 *            the number of progressive filling iterations
+	 * @param nanos
+	 *            the time spent in the low level scheduler
+	 * @param irregular
+	 *            <i>true</i> if the group is not in regular frequency mode
+	 *            after the update
+	 */
+	static void recordFreqUpdate(final int groupSize, final int providerCount, final int iterations,
+			final long nanos, final boolean irregular) {
+		groupSizes.record(groupSize);
+		providerCounts.record(providerCount);
+		solverIterations.record(iterations);
+		updaterNanos.record(nanos);
+		freqUpdates++;
+		if (irregular) {
+			irregularFreqUpdates++;
+		}
+	}
+
+	/**
+	 * Records that an influence group was absorbed by another one.
+	 */
+	static void recordMerge() {
+		merges++;
+	}
+
+	/**
+	 * Records that a new influence group was split from an existing one.
+	 */
+	static void recordSplit() {
+		splits++;
+	}
+
+	/**
+	 * Retrieves the histogram of influence group sizes.
+	 * 
+	 * @return the group sizes observed at the frequency updates
+	 */
+	public static Histogram getGroupSizes() {
+		return groupSizes;
+	}
+
+	/**
+	 * Retrieves the histogram of the provider counts of the influence groups.
+	 * 
+	 * @return the provider counts observed at the frequency updates
+	 */
+	public static Histogram getProviderCounts() {
+		return providerCounts;
+	}
+
+	/**
+	 * Retrieves the histogram of the progressive filling iterations.
+	 * 
+	 * @return the iterations needed by the frequency updates
+	 */
+	public static Histogram getSolverIterations() {
+		return solverIterations;
+	}
+
+	/**
+	 * Retrieves the histogram of the time spent in the low level scheduler.
+	 * 
+	 * @return the nanoseconds spent by the frequency updates
+	 */
+	public static Histogram getUpdaterNanos() {
+		return updaterNanos;
+	}
+
+	/**
+	 * Determines the number of recorded frequency updates.
+	 * 
+	 * @return the number of frequency updates
+	 */
+	public static long getFreqUpdates() {
+		return freqUpdates;
+	}
+
+	/**
+	 * Determines how many frequency updates left their groups in irregular
+	 * frequency mode.
+	 * 
+	 * @return the number of irregular frequency updates
+	 */
+	public static long getIrregularFreqUpdates() {
+		return irregularFreqUpdates;
+	}
+
+	/**
+	 * Determines how many times influence groups were merged.
+	 * 
+	 * @return the number of merges
+	 */
+	public static long getMerges() {
+		return merges;
+	}
+
+	/**
+	 * Determines how many influence groups were created by splits.
+	 * 
+	 * @return the number of splits
+	 */
+	public static long getSplits() {
+		return splits;
+	}
+
+	/**
+	 * Writes the collected statistics in CSV format. The counters are written
+	 * first, then the histograms with one line per non-empty bucket.
+	 * 
+	 * @param out
+	 *            where the statistics should be written
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public static void export(final Appendable out) throws IOException {
+		out.append("metric,bucketLowerBound,count\n");
+		out.append("freqUpdates,,").append(Long.toString(freqUpdates)).append('\n');
+		out.append("irregularFreqUpdates,,").append(Long.toString(irregularFreqUpdates)).append('\n');
+		out.append("merges,,").append(Long.toString(merges)).append('\n');
+		out.append("splits,,").append(Long.toString(splits)).append('\n');
+		exportHistogram(out, "groupSize", groupSizes);
+		exportHistogram(out, "providerCount", providerCounts);
+		exportHistogram(out, "solverIterations", solverIterations);
+		exportHistogram(out, "updaterNanos", updaterNanos);
+	}
+
+	/**
+	 * Writes the non-empty buckets of a histogram in CSV format.
+	 * 
+	 * @param out
+	 *            where the histogram should be written
+	 * @param name
+	 *            the name of the metric
+	 * @param h
+	 *            the histogram to be written
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	private static void exportHistogram(final Appendable out, final String name, final Histogram h)
+			throws IOException {
+		for (int i = 0; i < h.getBucketCount(); i++) {
+			if (h.getBucket(i) != 0) {
+				out.append(name).append(',').append(Long.toString(Histogram.getBucketLowerBound(i)))
+						.append(',').append(Long.toString(h.getBucket(i))).append('\n');
+			}
+		}
+	}
+}
@@ -31,6 +31,12 @@ package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
  * This class provides the implementation of the core scheduling logic in the
  * simulator. The logic is based on the max-min fairness algorithm.
  * 
+ * The algorithm takes into account the weights and priority classes of the
+ * consumptions. Within a priority class, the resources are shared
+ * proportionally to the weights (weighted max-min fairness). The priority
+ * classes are served in decreasing order, each class can only use the
+ * resources left unused by the higher classes.
+ * 
  * @author "Gabor Kecskemeti, Distributed and Parallel Systems Group, University of Innsbruck (c) 2013"
  *         "Gabor Kecskemeti, Laboratory of Parallel and Distributed Systems, MTA SZTAKI (c) 2015"
  * 
@@ -56,6 +62,12 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 	 * consumption list. This is updated once in every freq update cycle.
 	 */
 	private int upLen;
+	/**
+	 * The number of consumptions (weighted with their multiplicities) this
+	 * spreader takes part in while the processor sharing fast path is
+	 * evaluated.
+	 */
+	private int sharingCount;
 
 	/**
 	 * Constructs a generic Max Min fairness based resource spreader.
@@ -91,11 +103,30 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 			final ResourceConsumption con = underProcessing.get(i);
 			con.limithelper = 0;
 			con.unassigned = true;
+			con.starved = false;
 		}
 		currentUnProcessed = perTickProcessingPower;
 		return true;
 	}
 
+	/**
+	 * Prepares the spreader for the progressive filling of a single priority
+	 * class. Only the consumptions of the given class are left unassigned.
+	 * 
+	 * @param priorityClass
+	 *            the class to be processed next
+	 */
+	private void selectPriorityClass(final int priorityClass) {
+		unassignedNum = 0;
+		for (int i = 0; i < upLen; i++) {
+			final ResourceConsumption con = underProcessing.get(i);
+			con.unassigned = con.priorityClass == priorityClass;
+			if (con.unassigned) {
+				unassignedNum++;
+			}
+		}
+	}
+
 	/**
 	 * Manages the gradual increase of the processing limits for each resource
 	 * consumption related to this spreader. The increase is started from the
@@ -105,13 +136,22 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 	 * consumption is still unassigned then its limithelper should be still
 	 * lower than the maximum amount of processing possible by its
 	 * provider/consumer.
+	 * 
+	 * Consumptions representing multiple identical consumptions count as many
+	 * times as their multiplicity when the available processing is shared.
+	 * The share of each consumption is proportional to its weight.
 	 */
 	private void assignProcessingPower() {
 		if (currentUnProcessed > negligableProcessing && unassignedNum > 0) {
-			int currlen = unassignedNum;
+			int currlen = 0;
+			double currweight = 0;
 			for (int i = 0; i < upLen; i++) {
 				ResourceConsumption con = underProcessing.get(i);
 				con.inassginmentprocess = con.unassigned;
+				if (con.unassigned) {
+					currlen += con.multiplicity;
+					currweight += con.weight * con.multiplicity;
+				}
 			}
 			double currentProcessable = currentUnProcessed;
 			double pastProcessable;
@@ -119,21 +159,23 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 			int lastindex = upLen;
 			do {
 				pastProcessable = currentProcessable;
-				final double maxShare = currentProcessable / currlen;
+				final double unitShare = currentProcessable / currweight;
 				boolean firstIndexNotSetUp = true;
 				int newlastindex = -1;
 				for (int i = firstindex; i < lastindex; i++) {
 					final ResourceConsumption con = underProcessing.get(i);
 					if (con.inassginmentprocess) {
 						final double limit = con.getProcessingLimit() - con.limithelper;
+						final double maxShare = unitShare * con.weight;
 						if (limit < maxShare) {
-							currentProcessable -= limit;
+							currentProcessable -= limit * con.multiplicity;
 							updateConsumptionLimit(con, limit);
 							// we move an unprocessed item from the back here
 							// then allow reevaluation
 							// and also make sure the currlen is reduced
 							con.inassginmentprocess = false;
-							currlen--;
+							currlen -= con.multiplicity;
+							currweight -= con.weight * con.multiplicity;
 						} else {
 							newlastindex = i;
 							if (firstIndexNotSetUp) {
@@ -149,6 +191,72 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 		}
 	}
 
+	/**
+	 * Handles influence groups with a single provider where none of the
+	 * consumers nor the consumptions restrict the processing below the equal
+	 * share of the provider, and all consumptions have the same weight and
+	 * priority class. In such groups the max-min fair outcome is plain
+	 * processor sharing: every consumption gets the provider's processing
+	 * power divided by the number of consumptions. The limits are thus
+	 * assigned in a single pass without the progressive filling iterations.
+	 * 
+	 * The results are the same as the progressive filling would produce for
+	 * these groups. The update is still linear in the size of the group as
+	 * every consumption gets its limit and is processed individually.
+	 * 
+	 * @param depgroup
+	 *            the influence group, with the sole provider at its front
+	 * @param dglen
+	 *            the number of spreaders in the influence group
+	 * @return the earliest completion distance in the group, or -1 if the
+	 *         group does not qualify for processor sharing and the generic
+	 *         algorithm must be used.
+	 */
+	private static long processorSharingFreqUpdate(final ResourceSpreader[] depgroup, final int dglen) {
+		final MaxMinFairSpreader provider = (MaxMinFairSpreader) depgroup[0];
+		final int len = provider.underProcessing.size();
+		if (len == 0 || provider.perTickProcessingPower <= provider.negligableProcessing) {
+			return -1;
+		}
+		for (int i = 1; i < dglen; i++) {
+			((MaxMinFairSpreader) depgroup[i]).sharingCount = 0;
+		}
+		int total = 0;
+		final ResourceConsumption first = provider.underProcessing.get(0);
+		for (int i = 0; i < len; i++) {
+			final ResourceConsumption con = provider.underProcessing.get(i);
+			if (con.weight != first.weight || con.priorityClass != first.priorityClass) {
+				return -1;
+			}
+			((MaxMinFairSpreader) provider.getCounterPart(con)).sharingCount += con.multiplicity;
+			total += con.multiplicity;
+		}
+		final double share = provider.perTickProcessingPower / total;
+		for (int i = 1; i < dglen; i++) {
+			final MaxMinFairSpreader consumer = (MaxMinFairSpreader) depgroup[i];
+			if (consumer.sharingCount != 0 && (consumer.perTickProcessingPower <= consumer.negligableProcessing
+					|| consumer.perTickProcessingPower / consumer.sharingCount < share)) {
+				return -1;
+			}
+		}
+		for (int i = 0; i < len; i++) {
+			if (provider.underProcessing.get(i).getProcessingLimit() < share) {
+				return -1;
+			}
+		}
+		long minCompletionDistance = Long.MAX_VALUE;
+		for (int i = 0; i < len; i++) {
+			final ResourceConsumption con = provider.underProcessing.get(i);
+			con.limithelper = con.consumerLimit = con.providerLimit = share;
+			con.unassigned = false;
+			con.starved = false;
+			con.updateRealLimit(true);
+			final long conDistance = con.getCompletionDistance();
+			minCompletionDistance = conDistance < minCompletionDistance ? conDistance : minCompletionDistance;
+		}
+		return minCompletionDistance;
+	}
+
 	/**
 	 * This function is the entrance to the lowest level scheduling in
 	 * DISSECT-CF.
@@ -158,6 +266,11 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 	 * will finish earliest with that particular limit. The earliest completion
 	 * time is then returned to the main resource spreading logic of the
 	 * simulator.
+	 * 
+	 * Single provider groups are first tried with the processor sharing fast
+	 * path, the progressive filling is only used if they don't qualify for it.
+	 * If the group has consumptions of several priority classes, then the
+	 * progressive filling is done for each class separately.
 	 */
 	@Override
 	protected long singleGroupwiseFreqUpdater() {
@@ -166,25 +279,82 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 		final ResourceSpreader[] depgroup = syncer.getDepGroup();
 		final int dglen = syncer.getDGLen();
 		final int providerCount = syncer.getFirstConsumerId();
+		if (providerCount == 1) {
+			final long psDistance = processorSharingFreqUpdate(depgroup, dglen);
+			if (psDistance >= 0) {
+				return psDistance;
+			}
+		}
 		for (int i = 0; i < dglen; i++) {
 			((MaxMinFairSpreader) depgroup[i]).initializeFreqUpdate();
 		}
+		int priorityClass = nextPriorityClass(depgroup, providerCount, Integer.MAX_VALUE);
+		if (nextPriorityClass(depgroup, providerCount, priorityClass) == Integer.MIN_VALUE) {
+			// Phase 2: single class, all consumptions are shared at once
+			progressiveFilling(depgroup, dglen, providerCount);
+		} else {
+			// Phase 2: classes are served one after the other
+			do {
+				for (int i = 0; i < dglen; i++) {
+					((MaxMinFairSpreader) depgroup[i]).selectPriorityClass(priorityClass);
+				}
+				starveExhausted(depgroup, providerCount);
+				progressiveFilling(depgroup, dglen, providerCount);
+				priorityClass = nextPriorityClass(depgroup, providerCount, priorityClass);
+			} while (priorityClass != Integer.MIN_VALUE);
+		}
+		// Phase 3: Determining the earliest completion time
+		long minCompletionDistance = Long.MAX_VALUE;
+		for (int i = 0; i < providerCount; i++) {
+			final int upLen = depgroup[i].underProcessing.size();
+			for (int j = 0; j < upLen; j++) {
+				final ResourceConsumption con = depgroup[i].underProcessing.get(j);
+				if (con.starved) {
+					con.starve();
+					continue;
+				}
+				con.consumerLimit = con.providerLimit = con.limithelper;
+				con.updateRealLimit(true);
+				final long conDistance = con.getCompletionDistance();
+				minCompletionDistance = conDistance < minCompletionDistance ? conDistance : minCompletionDistance;
+			}
+		}
+		return minCompletionDistance;
+	}
+
+	/**
+	 * The progressive filling iteration of the max-min fairness algorithm. All
+	 * unassigned consumptions of the influence group receive their limits, the
+	 * limits are increased proportionally to the weights of the consumptions
+	 * until they hit a bottleneck.
+	 * 
+	 * @param depgroup
+	 *            the influence group
+	 * @param dglen
+	 *            the number of spreaders in the influence group
+	 * @param providerCount
+	 *            the number of providers in the influence group
+	 */
+	private static void progressiveFilling(final ResourceSpreader[] depgroup, final int dglen,
+			final int providerCount) {
 		boolean someConsumptionIsStillUnderUtilized;
-		// Phase 2: Progressive filling iteration
+		int iterations = 0;
 		do {
+			iterations++;
 			// Phase 2a: determining maximum possible processing
 			// Determining wishes for providers and consumers
 			for (int i = 0; i < dglen; i++) {
 				((MaxMinFairSpreader) depgroup[i]).assignProcessingPower();
 			}
 			// Phase 2b: Finding minimum between providers and consumers
+			// (relative to the weights)
 			double minProcessing = Double.MAX_VALUE;
 			for (int i = 0; i < providerCount; i++) {
 				final int upLen = depgroup[i].underProcessing.size();
 				for (int j = 0; j < upLen; j++) {
 					final ResourceConsumption con = depgroup[i].underProcessing.get(j);
 					if (con.unassigned) {
-						final double currlimit = con.updateRealLimit(false);
+						final double currlimit = con.updateRealLimit(false) / con.weight;
 						if (currlimit < minProcessing) {
 							minProcessing = currlimit;
 						}
@@ -199,11 +369,13 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 				for (int j = 0; j < mmfs.upLen; j++) {
 					final ResourceConsumption con = mmfs.underProcessing.get(j);
 					if (con.unassigned) {
-						con.limithelper += minProcessing;
+						final double conProcessing = minProcessing * con.weight;
+						con.limithelper += conProcessing;
 						final MaxMinFairSpreader counterpart = (MaxMinFairSpreader) mmfs.getCounterPart(con);
-						mmfs.currentUnProcessed -= minProcessing;
-						counterpart.currentUnProcessed -= minProcessing;
-						if (Math.abs(con.getRealLimit() - minProcessing) <= minProcessing * 0.000000001) {
+						final double usedProcessing = conProcessing * con.multiplicity;
+						mmfs.currentUnProcessed -= usedProcessing;
+						counterpart.currentUnProcessed -= usedProcessing;
+						if (Math.abs(con.getRealLimit() - conProcessing) <= conProcessing * 0.000000001) {
 							con.unassigned = false;
 							mmfs.unassignedNum--;
 							counterpart.unassignedNum--;
@@ -213,19 +385,65 @@ public abstract class MaxMinFairSpreader extends ResourceSpreader {
 				someConsumptionIsStillUnderUtilized |= mmfs.unassignedNum > 0;
 			}
 		} while (someConsumptionIsStillUnderUtilized);
-		// Phase 3: Determining the earliest completion time
-		long minCompletionDistance = Long.MAX_VALUE;
+		depgroup[0].getSyncer().recordSolverIterations(iterations);
+	}
+
+	/**
+	 * Determines the highest priority class in the influence group that is
+	 * below the given one.
+	 * 
+	 * @param depgroup
+	 *            the influence group
+	 * @param providerCount
+	 *            the number of providers in the influence group
+	 * @param below
+	 *            the class already processed
+	 * @return the next class to be processed or Integer.MIN_VALUE if there are
+	 *         no further classes
+	 */
+	private static int nextPriorityClass(final ResourceSpreader[] depgroup, final int providerCount,
+			final int below) {
+		int next = Integer.MIN_VALUE;
 		for (int i = 0; i < providerCount; i++) {
 			final int upLen = depgroup[i].underProcessing.size();
 			for (int j = 0; j < upLen; j++) {
-				final ResourceConsumption con = depgroup[i].underProcessing.get(j);
-				con.consumerLimit = con.providerLimit = con.limithelper;
-				con.updateRealLimit(true);
-				final long conDistance = con.getCompletionDistance();
-				minCompletionDistance = conDistance < minCompletionDistance ? conDistance : minCompletionDistance;
+				final int pc = depgroup[i].underProcessing.get(j).priorityClass;
+				if (pc < below && pc > next) {
+					next = pc;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Marks those unassigned consumptions starved that have a provider or
+	 * consumer with no resources left after the higher priority classes were
+	 * served. These consumptions do not participate in the progressive
+	 * filling.
+	 * 
+	 * @param depgroup
+	 *            the influence group
+	 * @param providerCount
+	 *            the number of providers in the influence group
+	 */
+	private static void starveExhausted(final ResourceSpreader[] depgroup, final int providerCount) {
+		for (int i = 0; i < providerCount; i++) {
+			final MaxMinFairSpreader mmfs = (MaxMinFairSpreader) depgroup[i];
+			for (int j = 0; j < mmfs.upLen; j++) {
+				final ResourceConsumption con = mmfs.underProcessing.get(j);
+				if (con.unassigned) {
+					final MaxMinFairSpreader counterpart = (MaxMinFairSpreader) mmfs.getCounterPart(con);
+					if (mmfs.currentUnProcessed <= mmfs.negligableProcessing
+							|| counterpart.currentUnProcessed <= counterpart.negligableProcessing) {
+						con.unassigned = false;
+						con.starved = true;
+						mmfs.unassignedNum--;
+						counterpart.unassignedNum--;
+					}
+				}
 			}
 		}
-		return minCompletionDistance;
 	}
 
 	/**
@@ -0,0 +1,275 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
+
+import hu.mta.sztaki.lpds.cloud.simulator.Timed;
+
+/**
+ * A resource consumption with a time varying demand. The requested limit of
+ * the consumption follows a piecewise constant load profile (e.g., the CPU
+ * utilization trace of a VM). The profile is given as a series of breakpoints
+ * and the requested limits that are valid from each breakpoint on. The
+ * influence group of the consumption is only rescheduled at the breakpoints,
+ * thus a complete trace can be replayed with a single consumption object
+ * instead of a separate consumption for every part of the trace.
+ * 
+ * The breakpoints are relative to the first registration of the consumption.
+ * The profile continues to advance while the consumption is suspended. After
+ * the last breakpoint, its limit is kept until the consumption completes.
+ * During periods with 0 demand the consumption is temporarily deregistered
+ * from its provider/consumer pair.
+ * 
+ * <i>NOTE:</i> the profile is only followed if the consumption is registered
+ * with its registerConsumption function (i.e., not with the bulk registration
+ * of ResourceConsumption).
+ */
+public class ProfiledResourceConsumption extends ResourceConsumption {
+
+	/**
+	 * Applies the profile's limits to the consumption at the breakpoints.
+	 */
+	private class ProfileStepper extends Timed {
+		/**
+		 * Starts following the profile from the current time instance.
+		 */
+		private void start() {
+			nextBreakpoint = 1;
+			scheduleNextBreakpoint();
+		}
+
+		/**
+		 * Subscribes for the next breakpoint or stops following the profile if
+		 * there are no further breakpoints.
+		 */
+		private void scheduleNextBreakpoint() {
+			if (nextBreakpoint < breakpoints.length) {
+				final long distance = breakpoints[nextBreakpoint] - breakpoints[nextBreakpoint - 1];
+				if (isSubscribed()) {
+					updateFrequency(distance);
+				} else {
+					subscribe(distance);
+				}
+			} else {
+				unsubscribe();
+			}
+		}
+
+		/**
+		 * Applies the limit of the breakpoint just reached.
+		 */
+		@Override
+		public void tick(final long fires) {
+			if (!isResumable() || getUnProcessed() == 0) {
+				// The consumption is over, no need for further limits
+				unsubscribe();
+				return;
+			}
+			applyLimit(limits[nextBreakpoint++]);
+			scheduleNextBreakpoint();
+		}
+	}
+
+	/**
+	 * The time instances (relative to the first registration) from which the
+	 * corresponding limit should be used.
+	 */
+	private final long[] breakpoints;
+	/**
+	 * The requested limits of the profile (in processing/tick).
+	 */
+	private final double[] limits;
+	/**
+	 * The index of the breakpoint to be applied next.
+	 */
+	private int nextBreakpoint = 0;
+	/**
+	 * The limit requested by the profile at the current time instance.
+	 */
+	private double currentLimit;
+	/**
+	 * <i>true</i> if the consumption should be under way but it is not
+	 * registered because the profile currently has no demand.
+	 */
+	private boolean idle = false;
+	/**
+	 * Follows the profile after the first registration, null before.
+	 */
+	private ProfileStepper stepper = null;
+
+	/**
+	 * Creates a resource consumption with a load profile.
+	 * 
+	 * @param total
+	 *            the amount of processing to be done during the lifetime of the
+	 *            consumption
+	 * @param breakpoints
+	 *            the time instances (in ticks, relative to the registration of
+	 *            the consumption) at which the requested limit changes. The
+	 *            first breakpoint must be 0 and they must be strictly
+	 *            increasing. The array is not copied.
+	 * @param limits
+	 *            the requested limits (in processing/tick) valid from the
+	 *            breakpoint with the same index. A 0 limit represents a period
+	 *            without demand. The array is not copied.
+	 * @param consumer
+	 *            the consumer that will benefit from the resource consumption.
+	 *            This field could be null, then the consumer must be set with
+	 *            the setConsumer() function.
+	 * @param provider
+	 *            the provider which will offer its resources for the consumer.
+	 *            This field could be null, then the provider must be set with
+	 *            the setProvider() function.
+	 * @param e
+	 *            Specify here the event to be fired when the just created
+	 *            object completes its transfers. With this event it is possible
+	 *            to notify the entity who initiated the transfer.
+	 * @throws IllegalStateException
+	 *             if the profile is malformed
+	 */
+	public ProfiledResourceConsumption(final double total, final long[] breakpoints, final double[] limits,
+			final ResourceSpreader consumer, final ResourceSpreader provider, final ConsumptionEvent e) {
+		super(total, firstLimit(breakpoints, limits), consumer, provider, e);
+		this.breakpoints = breakpoints;
+		this.limits = limits;
+		currentLimit = limits[0];
+	}
+
+	/**
+	 * Checks the profile and determines the limit to be used at the
+	 * construction of the consumption.
+	 * 
+	 * @param breakpoints
+	 *            the breakpoints of the profile
+	 * @param limits
+	 *            the limits of the profile
+	 * @return the first positive limit in the profile
+	 * @throws IllegalStateException
+	 *             if the profile is malformed
+	 */
+	private static double firstLimit(final long[] breakpoints, final double[] limits) {
+		if (breakpoints.length == 0 || breakpoints.length != limits.length || breakpoints[0] != 0) {
+			throw new IllegalStateException("The load profile must start at 0 and have a limit for each breakpoint");
+		}
+		double first = 0;
+		for (int i = 0; i < limits.length; i++) {
+			if (i > 0 && breakpoints[i] <= breakpoints[i - 1]) {
+				throw new IllegalStateException("The breakpoints of the load profile must be strictly increasing");
+			}
+			if (limits[i] < 0) {
+				throw new IllegalStateException("The load profile cannot have negative limits");
+			}
+			if (first == 0) {
+				first = limits[i];
+			}
+		}
+		if (limits[limits.length - 1] == 0) {
+			throw new IllegalStateException("The load profile should not end without demand");
+		}
+		return first;
+	}
+
+	/**
+	 * Registers the consumption and starts following its profile on the first
+	 * registration. If the profile currently has no demand then the
+	 * consumption is only registered once the demand reappears.
+	 * 
+	 * @return <i>true</i> if the registration was successful or if it is
+	 *         postponed until the demand reappears.
+	 */
+	@Override
+	public boolean registerConsumption() {
+		if (stepper == null) {
+			if (currentLimit == 0 && isResumable() && getProvider() != null && getConsumer() != null
+					&& getUnProcessed() != 0) {
+				idle = true;
+				startProfile();
+				return true;
+			}
+			final boolean success = super.registerConsumption();
+			if (success && getUnProcessed() != 0) {
+				startProfile();
+			}
+			return success;
+		}
+		if (currentLimit == 0) {
+			idle = isResumable();
+			return idle;
+		}
+		return super.registerConsumption();
+	}
+
+	/**
+	 * Starts following the profile from the current time instance.
+	 */
+	private void startProfile() {
+		stepper = new ProfileStepper();
+		stepper.start();
+	}
+
+	/**
+	 * Terminates the consumption but allows it to be resumed later on. The
+	 * profile keeps advancing during the suspension.
+	 */
+	@Override
+	public void suspend() {
+		idle = false;
+		super.suspend();
+	}
+
+	/**
+	 * Changes the requested limit of the consumption to the one set by the
+	 * profile. The consumption is temporarily deregistered during periods
+	 * without demand.
+	 * 
+	 * @param limit
+	 *            the limit requested by the profile from now on
+	 */
+	private void applyLimit(final double limit) {
+		currentLimit = limit;
+		if (limit == 0) {
+			if (isRegistered()) {
+				super.suspend();
+				idle = true;
+			}
+		} else {
+			updateRequestedLimit(limit);
+			if (idle) {
+				idle = false;
+				super.registerConsumption();
+			}
+		}
+	}
+
+	/**
+	 * Determines the limit currently requested by the load profile.
+	 * 
+	 * @return the current limit, 0 if the profile has no demand at the moment
+	 */
+	public double getProfileLimit() {
+		return currentLimit;
+	}
+}
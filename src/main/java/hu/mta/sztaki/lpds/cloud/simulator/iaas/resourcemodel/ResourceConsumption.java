@@ -25,6 +25,7 @@
 
 package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
 
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -74,6 +75,13 @@ public class ResourceConsumption {
 	 */
 	public static final double unlimitedProcessing = Double.MAX_VALUE;
 
+	/**
+	 * The number of fixed-point units representing a single unit of
+	 * processing in the newly created consumptions. 0 means the consumptions
+	 * use the floating point accounting.
+	 */
+	private static long fixedPointScale = 0;
+
 	/**
 	 * This interface allows its implementors to get notified when a consumption
 	 * completes. Note: the objects will only receive a single call on the below
@@ -150,6 +158,21 @@ public class ResourceConsumption {
 		 * Shows whether the original consumption is resumable or not
 		 */
 		private boolean resumable;
+
+		/**
+		 * the multiplicity of the original consumption
+		 */
+		private int multiplicity;
+
+		/**
+		 * the weight of the original consumption
+		 */
+		private double weight;
+
+		/**
+		 * the priority class of the original consumption
+		 */
+		private int priorityClass;
 		
 		/**
 		 * this helper field is used when restoring the consumption, and will
@@ -176,6 +199,9 @@ public class ResourceConsumption {
 			registered = consumption.registered;
 			total = consumption.getUnProcessed();
 			requestedLimit = consumption.requestedLimit;
+			multiplicity = consumption.multiplicity;
+			weight = consumption.weight;
+			priorityClass = consumption.priorityClass;
 			ev = consumption.ev;
 				
 		}
@@ -200,7 +226,9 @@ public class ResourceConsumption {
 			
 			ConsumptionEvent event = restoreEvent ? ev : new ConsumptionEventAdapter();
 			consumption = new ResourceConsumption(
-					total,requestedLimit,null,null,event);
+					total,requestedLimit,null,null,event,multiplicity);
+			consumption.weight = weight;
+			consumption.priorityClass = priorityClass;
 			
 			if (provider != null) {
 				consumption.setProvider(provider.restore(restoreEvent));
@@ -264,6 +292,33 @@ public class ResourceConsumption {
 	 * 1/2*realLimit
 	 */
 	private double halfRealLimit;
+	/**
+	 * The fixed-point scale that was in effect when this consumption was
+	 * created, 0 if the consumption uses floating point accounting.
+	 */
+	private final long requestedScale;
+	/**
+	 * The number of fixed-point units representing a single unit of
+	 * processing in this consumption, 0 if the consumption uses floating point
+	 * accounting. In fixed-point accounting, the processing is done on the
+	 * scaled long fields below and the floating point fields are only kept up
+	 * to date for the queries. This is the requestedScale, unless the total
+	 * processing of the consumption does not fit into a long with it.
+	 */
+	private long scale;
+	/**
+	 * The scaled version of underProcessing
+	 */
+	private long underProcessingFx;
+	/**
+	 * The scaled version of toBeProcessed
+	 */
+	private long toBeProcessedFx;
+	/**
+	 * The scaled version of realLimit (rounded down, but at least 1 unit if
+	 * the real limit is positive)
+	 */
+	private long realLimitFx;
 	/**
 	 * The number of ticks it is expected to take that renders both
 	 * underProcessing and toBeProcessed as 0 (i.e., the time when the initially
@@ -310,12 +365,82 @@ public class ResourceConsumption {
 	 * MaxMinFairSpreader
 	 */
 	boolean inassginmentprocess;
+	/**
+	 * The location of this consumption in its provider's toProcess list.
+	 *
+	 * <i>WARNING:</i> this is necessary for the internal behavior of
+	 * ResourceSpreader, the value is only meaningful if the provider's list
+	 * actually holds this consumption at the given location
+	 */
+	int providerProcessingIdx = -1;
+	/**
+	 * The location of this consumption in its consumer's toProcess list.
+	 *
+	 * <i>WARNING:</i> this is necessary for the internal behavior of
+	 * ResourceSpreader, the value is only meaningful if the consumer's list
+	 * actually holds this consumption at the given location
+	 */
+	int consumerProcessingIdx = -1;
+	/**
+	 * The location of this consumption in its provider's underAddition or
+	 * underRemoval list (a consumption is never listed in both of them at the
+	 * same time).
+	 *
+	 * <i>WARNING:</i> this is necessary for the internal behavior of
+	 * ResourceSpreader, the value is only meaningful if the provider's list
+	 * actually holds this consumption at the given location
+	 */
+	int providerPendingIdx = -1;
+	/**
+	 * The location of this consumption in its consumer's underAddition or
+	 * underRemoval list (a consumption is never listed in both of them at the
+	 * same time).
+	 *
+	 * <i>WARNING:</i> this is necessary for the internal behavior of
+	 * ResourceSpreader, the value is only meaningful if the consumer's list
+	 * actually holds this consumption at the given location
+	 */
+	int consumerPendingIdx = -1;
+	/**
+	 * The next completed consumption of the same batch event while the
+	 * completions are grouped for their batch notification.
+	 *
+	 * <i>WARNING:</i> this is necessary for the internal behavior of
+	 * ResourceSpreader, the value is null outside the batch notifications
+	 */
+	ResourceConsumption nextBatchCompleted = null;
 
 	/**
 	 * The event to be fired when there is nothing left to process in this
-	 * consumption.
+	 * consumption. Only changed when the consumption is reused by a
+	 * ConsumptionPool.
+	 */
+	ConsumptionEvent ev;
+	/**
+	 * The number of identical consumptions represented by this object. All
+	 * amounts and limits stored in this object are for a single one of these
+	 * consumptions, while the spreaders account for all of them.
 	 */
-	final ConsumptionEvent ev;
+	final int multiplicity;
+	/**
+	 * The relative share of this consumption compared to the other
+	 * consumptions of the same priority class. A consumption with weight 2
+	 * receives twice as much resources as one with weight 1 if neither of
+	 * them is limited otherwise.
+	 */
+	double weight = 1;
+	/**
+	 * The priority class of the consumption. Consumptions in higher classes
+	 * are served first, the lower classes can only use the resources left
+	 * unused by the higher ones.
+	 */
+	int priorityClass = 0;
+	/**
+	 * <i>true</i> if the consumption received no resources because the higher
+	 * priority classes used up all resources of its provider or consumer.
+	 * Only valid after a frequency update of its influence group.
+	 */
+	boolean starved;
 
 	/**
 	 * The consumer which receives the resources of this consumption.
@@ -347,6 +472,11 @@ public class ResourceConsumption {
 	 * sharing machanism.
 	 */
 	private boolean registered = false;
+	/**
+	 * shows if the consumption was released to a ConsumptionPool. Released
+	 * consumptions cannot be used until the pool hands them out again.
+	 */
+	boolean pooled = false;
 
 	/**
 	 * This constructor describes the basic properties of an individual resource
@@ -378,6 +508,41 @@ public class ResourceConsumption {
 	 */
 	public ResourceConsumption(final double total, final double limit, final ResourceSpreader consumer,
 			final ResourceSpreader provider, final ConsumptionEvent e) {
+		this(total, limit, consumer, provider, e, 1);
+	}
+
+	/**
+	 * This constructor allows a single object to represent several identical
+	 * resource consumptions (i.e., with the same amount of processing, limit,
+	 * provider and consumer). Such consumptions always receive the same share
+	 * from their provider/consumer, thus the spreaders handle them as a single
+	 * consumption that counts multiple times when the resources are shared.
+	 * This reduces the work of the spreaders proportionally to the number of
+	 * the represented consumptions.
+	 * 
+	 * The amounts and limits (e.g., getUnProcessed, getRealLimit) reported by
+	 * the object are for a single one of the represented consumptions. The
+	 * event is fired for each represented consumption.
+	 * 
+	 * @param total
+	 *            The amount of processing to be done by each of the represented
+	 *            consumptions
+	 * @param limit
+	 *            the maximum amount of processing allowable for each of the
+	 *            represented consumptions
+	 * @param consumer
+	 *            the consumer that will benefit from the resource consumptions.
+	 * @param provider
+	 *            the provider which will offer its resources for the consumer.
+	 * @param e
+	 *            the event to be fired when the consumptions complete. It will
+	 *            receive as many calls as the multiplicity.
+	 * @param multiplicity
+	 *            the number of identical consumptions represented by the new
+	 *            object, must be at least 1
+	 */
+	public ResourceConsumption(final double total, final double limit, final ResourceSpreader consumer,
+			final ResourceSpreader provider, final ConsumptionEvent e, final int multiplicity) {
 		underProcessing = 0;
 		toBeProcessed = total;
 		this.consumer = consumer;
@@ -385,8 +550,59 @@ public class ResourceConsumption {
 		if (e == null) {
 			throw new IllegalStateException("Cannot create a consumption without an event to be fired");
 		}
+		if (multiplicity < 1) {
+			throw new IllegalStateException("Cannot create a consumption representing less than one consumption");
+		}
 		ev = e;
 		requestedLimit = limit;
+		this.multiplicity = multiplicity;
+		requestedScale = fixedPointScale;
+		initFixedPoint(total);
+	}
+
+	/**
+	 * Enables or disables the fixed-point accounting for the consumptions
+	 * created after this call. With fixed-point accounting, the amounts and
+	 * the real limits of the consumptions are represented as scaled longs
+	 * during processing, so the completion of the consumptions is detected
+	 * exactly (without the rounding tolerances of the floating point
+	 * accounting). The completion distances are rounded up instead of to the
+	 * nearest tick.
+	 * 
+	 * The scale should be large enough so the real limits are representable
+	 * with sufficient precision: real limits are rounded down to the scale's
+	 * granularity. Consumptions with a total processing of Long.MAX_VALUE/scale
+	 * units or more use a coarser scale (see isFixedPoint), real limits beyond
+	 * this range saturate.
+	 * 
+	 * Fixed-point accounting is not a drop-in replacement of the floating
+	 * point one: as the real limits are rounded down and the completion
+	 * distances are rounded up, completions can happen one tick later than
+	 * with floating point accounting. This is typical for transfers and
+	 * consumptions whose last partial tick the floating point accounting
+	 * rounds away. The processed amounts only differ in the rounding of the
+	 * totals to the scale.
+	 * 
+	 * @param scale
+	 *            the number of fixed-point units representing a single unit of
+	 *            processing, 0 disables the fixed-point accounting
+	 * @throws IllegalStateException
+	 *             if the scale is negative
+	 */
+	public static void setFixedPointScale(final long scale) {
+		if (scale < 0) {
+			throw new IllegalStateException("The fixed-point scale cannot be negative: " + scale);
+		}
+		fixedPointScale = scale;
+	}
+
+	/**
+	 * Determines the fixed-point scale used for new consumptions.
+	 * 
+	 * @return the scale, 0 if the floating point accounting is used
+	 */
+	public static long getFixedPointScale() {
+		return fixedPointScale;
 	}
 
 	/**
@@ -400,6 +616,16 @@ public class ResourceConsumption {
 	 * unlimited.
 	 */
 	private void updateHardLimit() {
+		calcLimits();
+		setRealLimit(hardLimit);
+	}
+
+	/**
+	 * Determines the hard and processing limits of this consumption from the
+	 * requested limit and the per tick processing power of the
+	 * provider/consumer. The real limit is left untouched.
+	 */
+	private void calcLimits() {
 		final double provLimit = provider == null ? unlimitedProcessing : provider.perTickProcessingPower;
 		final double conLimit = consumer == null ? unlimitedProcessing : consumer.perTickProcessingPower;
 		hardLimit = requestedLimit < provLimit ? requestedLimit : provLimit;
@@ -407,7 +633,95 @@ public class ResourceConsumption {
 			hardLimit = conLimit;
 		}
 		processingLimit = requestedLimit < hardLimit ? requestedLimit : hardLimit;
-		setRealLimit(hardLimit);
+	}
+
+	/**
+	 * Changes the requested processing limit of this consumption. If the
+	 * consumption is already registered then its influence group is asked to
+	 * reschedule so the new limit is applied from the current time instance.
+	 * Until then the consumption is processed with its past limit.
+	 * 
+	 * @param limit
+	 *            the new requested limit (in processing/tick)
+	 * @throws IllegalStateException
+	 *             if the limit is not positive
+	 */
+	protected void updateRequestedLimit(final double limit) {
+		if (limit <= 0) {
+			throw new IllegalStateException("The requested limit must be positive: " + limit);
+		}
+		requestedLimit = limit;
+		calcLimits();
+		rescheduleIfRegistered();
+	}
+
+	/**
+	 * Asks the influence group of the consumption to reassign the processing
+	 * limits of its consumptions at the current time instance.
+	 */
+	private void rescheduleIfRegistered() {
+		if (registered) {
+			final ResourceSpreader.FreqSyncer syncer = provider.getSyncer();
+			if (syncer != null) {
+				syncer.nudge();
+			}
+		}
+		invalidateState();
+	}
+
+	/**
+	 * Sets the weight of the consumption, which determines its share relative
+	 * to the other consumptions in the same priority class. If the consumption
+	 * is registered then the new weight is applied from the current time
+	 * instance.
+	 * 
+	 * @param weight
+	 *            the new weight, the default is 1
+	 * @throws IllegalStateException
+	 *             if the weight is not positive
+	 */
+	public void setWeight(final double weight) {
+		if (weight <= 0) {
+			throw new IllegalStateException("The weight of a consumption must be positive: " + weight);
+		}
+		this.weight = weight;
+		rescheduleIfRegistered();
+	}
+
+	/**
+	 * Determines the weight of the consumption.
+	 * 
+	 * @return the weight used when the resources are shared
+	 */
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Sets the priority class of the consumption. Consumptions in higher
+	 * classes are always served before the consumptions in lower classes. If
+	 * the consumption is registered then the new class is applied from the
+	 * current time instance.
+	 * 
+	 * <i>WARNING:</i> consumptions of lower classes could receive no resources
+	 * at all for as long as higher class consumptions use all the resources of
+	 * their provider or consumer.
+	 * 
+	 * @param priorityClass
+	 *            the new priority class, the default is 0
+	 */
+	public void setPriorityClass(final int priorityClass) {
+		this.priorityClass = priorityClass;
+		rescheduleIfRegistered();
+	}
+
+	/**
+	 * Determines the priority class of the consumption.
+	 * 
+	 * @return the priority class used when the resources are shared
+	 */
+	public int getPriorityClass() {
+		return priorityClass;
 	}
 
 	/**
@@ -431,9 +745,10 @@ public class ResourceConsumption {
 	 *         </ul>
 	 */
 	public boolean registerConsumption() {
+		checkNotPooled();
 		if (!registered) {
 			if (getUnProcessed() == 0) {
-				ev.conComplete();
+				fireCompletion();
 				return true;
 			} else if (resumable && provider != null && consumer != null) {
 				updateHardLimit();
@@ -447,6 +762,144 @@ public class ResourceConsumption {
 		return false;
 	}
 
+	/**
+	 * Initiates the processing of several resource consumptions at once. The
+	 * outcome is the same as calling registerConsumption on each consumption,
+	 * but the influence groups of the involved spreaders are only notified once
+	 * all consumptions are registered. This is beneficial when lots of
+	 * consumptions are started at the same time instance.
+	 * 
+	 * @param cons
+	 *            the consumptions to be registered
+	 * @param len
+	 *            the number of consumptions to process from the cons array
+	 * @return the number of consumptions that were successfully registered (or
+	 *         completed right away because they had nothing to process). The
+	 *         outcome for a particular consumption can be checked with its
+	 *         isRegistered function.
+	 * @throws IllegalStateException
+	 *             if any of the consumptions was released to a pool (none of
+	 *             the consumptions are registered in this case)
+	 */
+	public static int registerConsumptions(final ResourceConsumption[] cons, final int len) {
+		for (int i = 0; i < len; i++) {
+			cons[i].checkNotPooled();
+		}
+		final ResourceConsumption[] toRegister = new ResourceConsumption[len];
+		int successes = 0;
+		for (int i = 0; i < len; i++) {
+			final ResourceConsumption con = cons[i];
+			if (!con.registered) {
+				if (con.getUnProcessed() == 0) {
+					con.fireCompletion();
+					successes++;
+				} else if (con.resumable && con.provider != null && con.consumer != null) {
+					con.updateHardLimit();
+					toRegister[i] = con;
+				}
+			}
+		}
+		final boolean[] results = new boolean[len];
+		ResourceSpreader.registerConsumptions(toRegister, len, results);
+		for (int i = 0; i < len; i++) {
+			if (results[i]) {
+				toRegister[i].registered = true;
+				toRegister[i].invalidateState();
+				successes++;
+			}
+		}
+		return successes;
+	}
+
+	/**
+	 * Notifies the event object about the completion of each of the
+	 * consumptions represented by this object. Batch events are notified with
+	 * a single call.
+	 */
+	void fireCompletion() {
+		if (ev instanceof BatchConsumptionEvent) {
+			((BatchConsumptionEvent) ev).conBatchComplete(Collections.singletonList(this));
+			return;
+		}
+		for (int i = 0; i < multiplicity; i++) {
+			ev.conComplete();
+		}
+	}
+
+	/**
+	 * Notifies the event object about the cancellation of each of the
+	 * consumptions represented by this object.
+	 */
+	void fireCancellation() {
+		for (int i = 0; i < multiplicity; i++) {
+			ev.conCancelled(this);
+		}
+	}
+
+	/**
+	 * Protects the consumptions released to a pool from their former users.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the consumption is in a pool
+	 */
+	private void checkNotPooled() {
+		if (pooled) {
+			throw new IllegalStateException("The consumption was released to a pool and cannot be used anymore");
+		}
+	}
+
+	/**
+	 * Determines if the spreaders still refer to this consumption (e.g.,
+	 * because the notifications about its completion are not yet sent out).
+	 * 
+	 * @return <i>true</i> if the consumption is not listed by any of the
+	 *         spreaders
+	 */
+	boolean isDetached() {
+		return (provider == null || !provider.refersTo(this)) && (consumer == null || !consumer.refersTo(this));
+	}
+
+	/**
+	 * Brings a detached consumption to the state it would have right after
+	 * its construction with the given parameters. The fixed-point scale and the
+	 * multiplicity of the consumption are kept. Only to be used by
+	 * ConsumptionPool.
+	 */
+	void reinitialize(final double total, final double limit, final ResourceSpreader consumer,
+			final ResourceSpreader provider, final ConsumptionEvent e) {
+		underProcessing = 0;
+		toBeProcessed = total;
+		underProcessingFx = 0;
+		toBeProcessedFx = 0;
+		initFixedPoint(total);
+		processingLimit = 0;
+		requestedLimit = limit;
+		hardLimit = 0;
+		realLimit = 0;
+		halfRealLimit = 0;
+		realLimitFx = 0;
+		completionDistance = 0;
+		providerLimit = 0;
+		consumerLimit = 0;
+		limithelper = 0;
+		unassigned = false;
+		inassginmentprocess = false;
+		weight = 1;
+		priorityClass = 0;
+		starved = false;
+		this.consumer = consumer;
+		this.provider = provider;
+		ev = e;
+		resumable = true;
+		registered = false;
+		state = null;
+		providerProcessingIdx = -1;
+		consumerProcessingIdx = -1;
+		providerPendingIdx = -1;
+		consumerPendingIdx = -1;
+		pooled = false;
+	}
+
 	/**
 	 * Returns the amount of processing still remaining in this resource
 	 * consumption.
@@ -462,6 +915,7 @@ public class ResourceConsumption {
 	 * pair and ensures that it can no longer be registered
 	 */
 	public void cancel() {
+		checkNotPooled();
 		suspend();
 		resumable = false;
 		invalidateState();
@@ -473,6 +927,7 @@ public class ResourceConsumption {
 	 * there is no special function for resume.
 	 */
 	public void suspend() {
+		checkNotPooled();
 		if (registered) {
 			ResourceSpreader.cancelConsumption(this);
 			registered = false;
@@ -489,6 +944,7 @@ public class ResourceConsumption {
 	 *            consumption
 	 */
 	public void setProvider(final ResourceSpreader provider) {
+		checkNotPooled();
 		if (!registered) {
 			this.provider = provider;
 			updateHardLimit();
@@ -508,6 +964,7 @@ public class ResourceConsumption {
 	 *            through this resource consumption object.
 	 */
 	public void setConsumer(final ResourceSpreader consumer) {
+		checkNotPooled();
 		if (!registered) {
 			this.consumer = consumer;
 			updateHardLimit();
@@ -524,7 +981,35 @@ public class ResourceConsumption {
 	 * changes.
 	 */
 	private void calcCompletionDistance() {
-		completionDistance = Math.round(getUnProcessed() / realLimit);
+		if (scale == 0) {
+			completionDistance = Math.round(getUnProcessed() / realLimit);
+		} else {
+			final long remaining = underProcessingFx + toBeProcessedFx;
+			if (remaining == 0) {
+				completionDistance = 0;
+			} else if (realLimitFx == 0) {
+				completionDistance = Long.MAX_VALUE;
+			} else {
+				completionDistance = (remaining - 1) / realLimitFx + 1;
+			}
+		}
+	}
+
+	/**
+	 * Determines the amount of fixed-point units that could be processed
+	 * during the given time with the real limit, without overflowing.
+	 * 
+	 * @param ticksPassed
+	 *            the time passed
+	 * @param available
+	 *            the amount of units that could be processed at most
+	 * @return the amount of units to be processed
+	 */
+	private long possibleFx(final long ticksPassed, final long available) {
+		if (ticksPassed == 0 || realLimitFx == 0) {
+			return 0;
+		}
+		return realLimitFx > available / ticksPassed ? available : Math.min(available, ticksPassed * realLimitFx);
 	}
 
 	/**
@@ -544,14 +1029,17 @@ public class ResourceConsumption {
 	 *            the number of ticks to be simulated (i.e. how many times we
 	 *            should multiply realLimit) before offering the resources to
 	 *            the underprocessing field.
-	 * @return the amount of resources actually offered for consumption.
-	 *         Negative values mark the end of this resource consumption (i.e.
-	 *         when there is no more processing to be done for this
-	 *         consumption). Albeit such values are negative, their negativeness
-	 *         is just used as a flag and their absolute value still represent
-	 *         the amount of offered resources.
+	 * @return the amount of resources actually offered for consumption (for
+	 *         all the represented consumptions). Negative values mark the end
+	 *         of this resource consumption (i.e. when there is no more
+	 *         processing to be done for this consumption). Albeit such values
+	 *         are negative, their negativeness is just used as a flag and their
+	 *         absolute value still represent the amount of offered resources.
 	 */
 	double doProviderProcessing(final long ticksPassed) {
+		if (scale != 0) {
+			return doProviderProcessingFx(ticksPassed);
+		}
 		double processed = 0;
 		if (toBeProcessed > 0) {
 			final double possiblePush = ticksPassed * realLimit;
@@ -563,10 +1051,10 @@ public class ResourceConsumption {
 				processed += toBeProcessed;
 				underProcessing += toBeProcessed;
 				toBeProcessed = 0;
-				return -processed;
+				return -processed * multiplicity;
 			}
 		}
-		return processed;
+		return processed * multiplicity;
 	}
 
 	/**
@@ -586,14 +1074,17 @@ public class ResourceConsumption {
 	 *            the number of ticks to be simulated (i.e. how many times we
 	 *            should multiply realLimit) before utilizing the resources from
 	 *            the underprocessing field.
-	 * @return the amount of resources actually utilized by the consumer.
-	 *         Negative values mark the end of this resource consumption (i.e.
-	 *         when there is no more processing to be done for this
-	 *         consumption). Albeit such values are negative, their negativeness
-	 *         is just used as a flag and their absolute value still represent
-	 *         the amount of utilized resources.
+	 * @return the amount of resources actually utilized by the consumer (for
+	 *         all the represented consumptions). Negative values mark the end
+	 *         of this resource consumption (i.e. when there is no more
+	 *         processing to be done for this consumption). Albeit such values
+	 *         are negative, their negativeness is just used as a flag and their
+	 *         absolute value still represent the amount of utilized resources.
 	 */
 	double doConsumerProcessing(final long ticksPassed) {
+		if (scale != 0) {
+			return doConsumerProcessingFx(ticksPassed);
+		}
 		double processed = 0;
 		if (underProcessing > 0) {
 			final double possibleProcessing = ticksPassed * realLimit;
@@ -604,13 +1095,76 @@ public class ResourceConsumption {
 				// ensure that tobeprocessed is 0!
 				processed += underProcessing;
 				underProcessing = 0;
-				return -processed;
+				return -processed * multiplicity;
 			}
 			invalidateState();
 		}
+		return processed * multiplicity;
+	}
+
+	/**
+	 * The fixed-point variant of doProviderProcessing. The consumption is only
+	 * considered complete if there are no units left to be offered.
+	 * 
+	 * @param ticksPassed
+	 *            the number of ticks to be simulated
+	 * @return the amount of resources actually offered for consumption, see
+	 *         doProviderProcessing
+	 */
+	private double doProviderProcessingFx(final long ticksPassed) {
+		if (toBeProcessedFx == 0) {
+			return 0;
+		}
+		final long pushed = possibleFx(ticksPassed, toBeProcessedFx);
+		toBeProcessedFx -= pushed;
+		underProcessingFx += pushed;
+		syncFromFx();
+		final double processed = (double) pushed / scale * multiplicity;
+		return toBeProcessedFx == 0 ? -processed : processed;
+	}
+
+	/**
+	 * The fixed-point variant of doConsumerProcessing. The consumption is only
+	 * considered complete if all of its units were utilized.
+	 * 
+	 * @param ticksPassed
+	 *            the number of ticks to be simulated
+	 * @return the amount of resources actually utilized by the consumer, see
+	 *         doConsumerProcessing
+	 */
+	private double doConsumerProcessingFx(final long ticksPassed) {
+		if (underProcessingFx == 0) {
+			return 0;
+		}
+		final long used = possibleFx(ticksPassed, underProcessingFx);
+		underProcessingFx -= used;
+		syncFromFx();
+		calcCompletionDistance();
+		final double processed = (double) used / scale * multiplicity;
+		if (completionDistance == 0) {
+			return -processed;
+		}
+		invalidateState();
 		return processed;
 	}
 
+	/**
+	 * Updates the floating point amounts from their fixed-point counterparts.
+	 */
+	private void syncFromFx() {
+		toBeProcessed = (double) toBeProcessedFx / scale;
+		underProcessing = (double) underProcessingFx / scale;
+	}
+
+	/**
+	 * Determines if the consumption uses fixed-point accounting.
+	 * 
+	 * @return <i>true</i> if the amounts are processed as scaled longs
+	 */
+	public boolean isFixedPoint() {
+		return scale != 0;
+	}
+
 	/**
 	 * Determines the amount of processing for which no resources were offered
 	 * from the provider so far.
@@ -648,6 +1202,17 @@ public class ResourceConsumption {
 		return realLimit;
 	}
 
+	/**
+	 * Determines the amount of processing actually done in a single tick with
+	 * the current real limit. This only differs from the real limit with
+	 * fixed-point accounting, where the real limit is rounded down.
+	 * 
+	 * @return the processing done per tick
+	 */
+	double getEffectiveRealLimit() {
+		return scale == 0 ? realLimit : (double) realLimitFx / scale;
+	}
+
 	/**
 	 * Retrieves the number of ticks it is expected to take that renders both
 	 * underProcessing and toBeProcessed as 0 (i.e., the time when the initially
@@ -679,6 +1244,27 @@ public class ResourceConsumption {
 		return provider;
 	}
 
+	/**
+	 * Determines the scale of the consumption and converts its total
+	 * processing to fixed-point units. If the total does not fit into a long
+	 * with the requested scale, the scale is reduced by factors of ten until
+	 * it fits. Totals that do not fit even with a scale of 1 are processed
+	 * with floating point accounting.
+	 * 
+	 * @param total
+	 *            the amount of processing to be done by the consumption
+	 */
+	private void initFixedPoint(final double total) {
+		scale = requestedScale;
+		while (scale != 0 && total * scale >= Long.MAX_VALUE) {
+			scale /= 10;
+		}
+		if (scale != 0) {
+			toBeProcessedFx = Math.round(total * scale);
+			toBeProcessed = (double) toBeProcessedFx / scale;
+		}
+	}
+
 	/**
 	 * Simultaneously updates the real limit (the instantaneous processing limit
 	 * determined by the low level scheduler of the unified resoruce sharing
@@ -690,6 +1276,26 @@ public class ResourceConsumption {
 	private void setRealLimit(final double rL) {
 		realLimit = rL;
 		halfRealLimit = rL / 2;
+		if (scale != 0) {
+			if (rL == 0) {
+				realLimitFx = 0;
+			} else {
+				// Limits beyond the range of long saturate, they still allow
+				// the processing of any representable amount in a single tick
+				final double scaled = rL * scale;
+				realLimitFx = scaled < 1 ? 1 : (long) scaled;
+			}
+		}
+	}
+
+	/**
+	 * Stops the processing of the consumption until the next frequency update
+	 * of its influence group. Used when the consumption's priority class
+	 * receives no resources.
+	 */
+	void starve() {
+		setRealLimit(0);
+		completionDistance = Long.MAX_VALUE;
 	}
 
 	/**
@@ -759,16 +1365,17 @@ public class ResourceConsumption {
 		if (provider != null) {
 			provider.updateState();
 		}
-		if (state == null) {
-			state = new ConsumptionState(this);
+		ConsumptionState current = state;
+		if (current == null) {
+			state = current = new ConsumptionState(this);
 			if (provider != null) {
-				state.provider = provider.getSpreaderState();
-			}			
+				current.provider = provider.getSpreaderState();
+			}
 			if (consumer != null) {
-				state.consumer = consumer.getSpreaderState();
-			}		
+				current.consumer = consumer.getSpreaderState();
+			}
 		}
-		return state;
+		return current;
 	}
 
 	/**
@@ -780,7 +1387,8 @@ public class ResourceConsumption {
 	 */
 	@Override
 	public String toString() {
-		return "RC(C:" + underProcessing + " T:" + toBeProcessed + " L:" + realLimit + ")";
+		return "RC(C:" + underProcessing + " T:" + toBeProcessed + " L:" + realLimit
+				+ (multiplicity == 1 ? "" : " M:" + multiplicity) + ")";
 	}
 
 	/**
@@ -804,6 +1412,16 @@ public class ResourceConsumption {
 		return resumable;
 	}
 
+	/**
+	 * Determines the number of identical consumptions represented by this
+	 * object.
+	 * 
+	 * @return the multiplicity of the consumption
+	 */
+	public int getMultiplicity() {
+		return multiplicity;
+	}
+
 	/**
 	 * Determines the hard processing limit for this resource consumption.
 	 * 
@@ -28,6 +28,7 @@ package hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import org.apache.commons.lang3.tuple.Pair;
@@ -36,7 +37,6 @@ import hu.mta.sztaki.lpds.cloud.simulator.Timed;
 import hu.mta.sztaki.lpds.cloud.simulator.energy.powermodelling.PowerState;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.statenotifications.PowerStateChangeNotificationHandler;
 import hu.mta.sztaki.lpds.cloud.simulator.notifications.StateDependentEventHandler;
-import hu.mta.sztaki.lpds.cloud.simulator.util.ArrayHandler;
 
 /**
  * This class is part of the unified resource consumption model of DISSECT-CF.
@@ -129,11 +129,41 @@ public abstract class ResourceSpreader {
 	 * Shows how much processing this spreader done in its lifetime.
 	 */
 	private double totalProcessed = 0;
+	/**
+	 * The sum of the real limits of the consumptions in the toProcess list
+	 * (weighted with their multiplicities).
+	 * This is the amount of resources processed by this spreader in every tick
+	 * until the next frequency update of the influence group. The value is
+	 * only valid if aggregateRateEpoch matches the rateEpoch of the group's
+	 * freq syncer.
+	 */
+	private double aggregateRate = 0;
+	/**
+	 * The rateEpoch of the freq syncer at the time the aggregateRate was last
+	 * calculated.
+	 */
+	private long aggregateRateEpoch = -1;
+	/**
+	 * The granularity (in ticks) of the completion distances used for
+	 * scheduling the freqsyncers. Values above 1 enable the approximate mode.
+	 */
+	private static long completionQuantum = 1;
+	/**
+	 * The maximum number of ticks by which a completion notification was
+	 * postponed because of the quantization of the completion distances.
+	 */
+	private static long quantizationErrorBound = 0;
 	/**
 	 * A helper field that allows the rapid discovery of influence groups by the
 	 * group's freq syncer object
 	 */
 	private boolean stillInDepGroup;
+	/**
+	 * A helper field that shows if this spreader is already listed in the
+	 * depGroupExtension list of the freq syncer that is currently managing its
+	 * influence group's growth.
+	 */
+	private boolean underGroupExtension;
 		
 	/**
 	 * Represents the current state of the spreader or null if the current state has
@@ -291,6 +321,20 @@ public abstract class ResourceSpreader {
 		 * at the particular time instance
 		 */
 		private final ArrayList<ResourceSpreader> depGroupExtension = new ArrayList<ResourceSpreader>();
+		/**
+		 * Adds a single spreader to the depGroupExtension list unless it is
+		 * already there. The membership is checked with the help of the
+		 * spreader's underGroupExtension flag so the addition is constant time.
+		 * 
+		 * @param rs
+		 *            the spreader that needs to join the influence group
+		 */
+		private void extendDepGroupWith(final ResourceSpreader rs) {
+			if (!rs.underGroupExtension) {
+				rs.underGroupExtension = true;
+				depGroupExtension.add(rs);
+			}
+		}
 		/**
 		 * if there are some external activities that could lead to influence
 		 * group changes this field will be turned to true
@@ -306,6 +350,136 @@ public abstract class ResourceSpreader {
 		 * time instance.
 		 */
 		private boolean regularFreqMode = true;
+		/**
+		 * Reusable buffers for collecting those spreaders that are still not
+		 * classified during the separation of influence groups. There are two
+		 * buffers because the separation alternates between reading the
+		 * spreaders from one buffer and collecting the remaining ones in the
+		 * other. The buffers are only allocated when first needed and they are
+		 * only grown afterwards.
+		 */
+		private ResourceSpreader[] splitBufferA, splitBufferB;
+		/**
+		 * The source of unique rate epoch values for all freq syncers.
+		 */
+		private static long rateEpochCounter = 0;
+		/**
+		 * Identifies the last frequency update of this influence group. Every
+		 * frequency update receives a globally unique value so the spreaders
+		 * can determine if their aggregated processing rate is still valid even
+		 * if they have changed influence groups since they calculated it.
+		 */
+		private long rateEpoch = 0;
+		/**
+		 * The time instance when the earliest consumption of the influence
+		 * group completes according to its real limit. Without quantized
+		 * completions this is the same as the next event of the freqsyncer,
+		 * otherwise the next event could come later.
+		 */
+		private long exactCompletionTime = 0;
+		/**
+		 * Shows if the next event of this group was postponed beyond its
+		 * exactCompletionTime by the quantization of the completion distances.
+		 */
+		private boolean quantizedEventPending = false;
+		/**
+		 * The total delay the quantized completions caused in this influence
+		 * group so far. The resources freed by a delayed completion are only
+		 * redistributed after its notification, so the remaining consumptions
+		 * of the group inherit the delay of the earlier ones.
+		 */
+		private long accumulatedQuantizationError = 0;
+		/**
+		 * The number of other influence groups absorbed by this one.
+		 */
+		private long mergeCount = 0;
+		/**
+		 * The number of new influence groups split from this one.
+		 */
+		private long splitCount = 0;
+		/**
+		 * The number of frequency updates done by this freqsyncer.
+		 */
+		private long freqUpdateCount = 0;
+		/**
+		 * The number of frequency updates after which this freqsyncer was not
+		 * in regular frequency mode.
+		 */
+		private long irregularFreqUpdateCount = 0;
+		/**
+		 * The number of progressive filling iterations the low level scheduler
+		 * needed in the last frequency update.
+		 */
+		private int lastSolverIterations = 0;
+		/**
+		 * The total time (in nanoseconds) spent in the low level scheduler of
+		 * this group. Only measured if GroupTelemetry is enabled.
+		 */
+		private long updaterNanos = 0;
+		/**
+		 * The completed consumptions with batch events that are waiting for
+		 * their notifications in the current tick. Shared amongst the
+		 * freqsyncers as they never tick concurrently.
+		 */
+		private static final ArrayList<ResourceConsumption> batchCompleted = new ArrayList<ResourceConsumption>();
+		/**
+		 * The last completed consumption of each batch event encountered
+		 * while grouping the completions. Empty outside the batch
+		 * notifications.
+		 */
+		private static final IdentityHashMap<BatchConsumptionEvent, ResourceConsumption> batchTails = new IdentityHashMap<BatchConsumptionEvent, ResourceConsumption>();
+		/**
+		 * The first completed consumption of each batch event in the order
+		 * the events were encountered. Empty outside the batch notifications.
+		 */
+		private static final ArrayList<ResourceConsumption> batchHeads = new ArrayList<ResourceConsumption>();
+		/**
+		 * The completed consumptions of the batch event under notification.
+		 */
+		private static final ArrayList<ResourceConsumption> batchNotified = new ArrayList<ResourceConsumption>();
+		/**
+		 * The read only view of batchNotified passed to the batch events.
+		 */
+		private static final List<ResourceConsumption> batchNotifiedView = Collections.unmodifiableList(batchNotified);
+
+		/**
+		 * Sends out the completion notifications collected for batch events
+		 * during the current removal pass. Every batch event receives a single
+		 * call with all of its completed consumptions. The events are called
+		 * in the order their first completed consumption was encountered.
+		 * 
+		 * The completions of each event are chained with their
+		 * nextBatchCompleted fields, so the grouping is linear in the number
+		 * of completions and reuses the same buffers in every tick.
+		 */
+		private void dispatchBatchCompletions() {
+			final int len = batchCompleted.size();
+			for (int i = 0; i < len; i++) {
+				final ResourceConsumption con = batchCompleted.get(i);
+				final ResourceConsumption tail = batchTails.put((BatchConsumptionEvent) con.ev, con);
+				if (tail == null) {
+					batchHeads.add(con);
+				} else {
+					tail.nextBatchCompleted = con;
+				}
+			}
+			batchCompleted.clear();
+			final int headLen = batchHeads.size();
+			for (int i = 0; i < headLen; i++) {
+				ResourceConsumption con = batchHeads.get(i);
+				final BatchConsumptionEvent ev = (BatchConsumptionEvent) con.ev;
+				batchTails.remove(ev);
+				do {
+					batchNotified.add(con);
+					final ResourceConsumption next = con.nextBatchCompleted;
+					con.nextBatchCompleted = null;
+					con = next;
+				} while (con != null);
+				ev.conBatchComplete(batchNotifiedView);
+				batchNotified.clear();
+			}
+			batchHeads.clear();
+		}
 
 		/**
 		 * Constructor of a freqsyncer to be used when neither the provider nor
@@ -380,6 +554,7 @@ public abstract class ResourceSpreader {
 			int size = depGroupExtension.size();
 			for (int i = 0; i < size; i++) {
 				final ResourceSpreader rs = depGroupExtension.get(i);
+				rs.underGroupExtension = false;
 				if (isInDepGroup(rs))
 					continue;
 				if (rs.isConsumer()) {
@@ -490,6 +665,45 @@ public abstract class ResourceSpreader {
 			return firstConsumerId;
 		}
 
+		/**
+		 * Offers a buffer for collecting the not yet classified spreaders
+		 * during the separation of influence groups.
+		 * 
+		 * @param inUse
+		 *            the buffer that currently holds the spreaders under
+		 *            classification, this will not be returned
+		 * @param minLen
+		 *            the minimum number of spreaders the buffer should be able
+		 *            to hold
+		 * @return a buffer that is different from inUse and that can hold at
+		 *         least minLen items
+		 */
+		private ResourceSpreader[] getSplitBuffer(final ResourceSpreader[] inUse, final int minLen) {
+			if (inUse == splitBufferA) {
+				if (splitBufferB == null || splitBufferB.length < minLen) {
+					splitBufferB = new ResourceSpreader[minLen];
+				}
+				return splitBufferB;
+			}
+			if (splitBufferA == null || splitBufferA.length < minLen) {
+				splitBufferA = new ResourceSpreader[minLen];
+			}
+			return splitBufferA;
+		}
+
+		/**
+		 * Drops the references held by the split buffers so they do not keep
+		 * the spreaders of past influence groups reachable.
+		 */
+		private void clearSplitBuffers() {
+			if (splitBufferA != null) {
+				Arrays.fill(splitBufferA, null);
+			}
+			if (splitBufferB != null) {
+				Arrays.fill(splitBufferB, null);
+			}
+		}
+
 		/**
 		 * Goes through the entire influence group and for each member it
 		 * initiates its doProcessing function.
@@ -528,6 +742,8 @@ public abstract class ResourceSpreader {
 		 */
 		@Override
 		public void tick(final long fires) {
+			accumulatedQuantizationError = realizedQuantizationError(fires);
+			quantizedEventPending = false;
 			// Phase I. Identifying new influence group members, sending out
 			// consumption notification events
 			boolean didRemovals = false;
@@ -543,18 +759,23 @@ public abstract class ResourceSpreader {
 					if (!rs.underRemoval.isEmpty()) {
 						didRemovals = true;
 						int rsuLen = rs.toProcess.size();
-						final int urLen = rs.underRemoval.size();
 						final boolean isConsumer = rs.isConsumer();
-						for (int urIndex = 0; urIndex < urLen; urIndex++) {
+						// The notifications might cancel further consumptions
+						// of this spreader, so the list can grow meanwhile
+						for (int urIndex = 0; urIndex < rs.underRemoval.size(); urIndex++) {
 							final ResourceConsumption con = rs.underRemoval.get(urIndex);
-							if (ArrayHandler.removeAndReplaceWithLast(rs.toProcess, con)) {
+							if (rs.removeListed(rs.toProcess, con, false)) {
 								rsuLen--;
 							}
 							if (isConsumer) {
 								if (con.getUnProcessed() == 0) {
-									con.ev.conComplete();
+									if (con.ev instanceof BatchConsumptionEvent) {
+										batchCompleted.add(con);
+									} else {
+										con.fireCompletion();
+									}
 								} else if (!con.isResumable()) {
-									con.ev.conCancelled(con);
+									con.fireCancellation();
 								}
 							}
 						}
@@ -569,7 +790,11 @@ public abstract class ResourceSpreader {
 						final int uaLen = rs.underAddition.size();
 						for (int i = 0; i < uaLen; i++) {
 							final ResourceConsumption con = rs.underAddition.get(i);
-							rs.toProcess.add(con);
+							// A consumption could be still listed if it was
+							// cancelled and then re-registered in this tick
+							if (!rs.isListed(rs.toProcess, con, false)) {
+								rs.addListed(rs.toProcess, con, false);
+							}
 							final ResourceSpreader cp = rs.getCounterPart(con);
 							// Check if counterpart is in the dependency group
 							if (!isInDepGroup(cp)) {
@@ -577,17 +802,20 @@ public abstract class ResourceSpreader {
 								didExtension = true;
 								if (cp.mySyncer == null || cp.mySyncer == this) {
 									// Just this single item is missing
-									if (!depGroupExtension.contains(cp)) {
-										depGroupExtension.add(cp);
-									}
+									extendDepGroupWith(cp);
 								} else {
 									// There are further items missing
 									cp.mySyncer.unsubscribe();
+									mergeCount++;
+									final long absorbedError = cp.mySyncer.realizedQuantizationError(fires);
+									if (absorbedError > accumulatedQuantizationError) {
+										accumulatedQuantizationError = absorbedError;
+									}
+									if (GroupTelemetry.enabled) {
+										GroupTelemetry.recordMerge();
+									}
 									for (int j = 0; j < cp.mySyncer.depgrouplen; j++) {
-										final ResourceSpreader todepgroupextension = cp.mySyncer.myDepGroup[j];
-										if (!depGroupExtension.contains(todepgroupextension)) {
-											depGroupExtension.add(todepgroupextension);
-										}
+										extendDepGroupWith(cp.mySyncer.myDepGroup[j]);
 									}
 									// Make sure, that if we encounter this cp
 									// next time we will not try to add all its
@@ -596,10 +824,13 @@ public abstract class ResourceSpreader {
 								}
 							}
 						}
-						rs.underProcessingLen += uaLen;
+						rs.underProcessingLen = rs.toProcess.size();
 						rs.underAddition.clear();
 					}
 				}
+				if (!batchCompleted.isEmpty()) {
+					dispatchBatchCompletions();
+				}
 				if (didExtension) {
 					addToGroup();
 				}
@@ -640,7 +871,7 @@ public abstract class ResourceSpreader {
 								notClassifiedLen--;
 								// Management of the new group
 								if (stillNotClassified == null) {
-									stillNotClassified = new ResourceSpreader[notClassifiedLen];
+									stillNotClassified = getSplitBuffer(notClassified, notClassifiedLen);
 								}
 								stillNotClassified[newlen++] = rs;
 								// Removals from the old group
@@ -664,7 +895,15 @@ public abstract class ResourceSpreader {
 							firstConsumerId = providerCount;
 							subscribeMe = this;
 						} else {
-							subscribeMe = new FreqSyncer(notClassified, providerCount, notClassifiedLen);
+							// the new group needs its own array as the buffers
+							// are reused
+							subscribeMe = new FreqSyncer(Arrays.copyOf(notClassified, notClassifiedLen), providerCount,
+									notClassifiedLen);
+							subscribeMe.accumulatedQuantizationError = accumulatedQuantizationError;
+							splitCount++;
+							if (GroupTelemetry.enabled) {
+								GroupTelemetry.recordSplit();
+							}
 						}
 						// Ensuring freq updates for every newly created group
 						subscribeMe.updateMyFreqNow();
@@ -686,6 +925,7 @@ public abstract class ResourceSpreader {
 						}
 					}
 				} while (notClassifiedLen != 0);
+				clearSplitBuffers();
 				if (notClassified == myDepGroup && depgrouplen == 0) {
 					// No group was created we have to unsubscribe
 					unsubscribe();
@@ -707,9 +947,131 @@ public abstract class ResourceSpreader {
 		 * ResourceSpreader.doProcessing is called.
 		 */
 		private void updateMyFreqNow() {
+			final boolean measure = GroupTelemetry.enabled;
+			final long before = measure ? System.nanoTime() : 0;
+			lastSolverIterations = 0;
 			final long newFreq = myDepGroup[0].singleGroupwiseFreqUpdater();
+			rateEpoch = ++rateEpochCounter;
 			regularFreqMode = newFreq != 0;
-			updateFrequency(newFreq);
+			freqUpdateCount++;
+			if (!regularFreqMode) {
+				irregularFreqUpdateCount++;
+			}
+			if (measure) {
+				final long spent = System.nanoTime() - before;
+				updaterNanos += spent;
+				GroupTelemetry.recordFreqUpdate(depgrouplen, firstConsumerId, lastSolverIterations, spent,
+						!regularFreqMode);
+			}
+			exactCompletionTime = calcTimeJump(newFreq);
+			updateFrequency(quantize(newFreq));
+		}
+
+		/**
+		 * Rounds up the completion distance to the next multiple of the
+		 * completion quantum. 0 distances are kept so 0 tick long consumptions
+		 * are still handled immediately. The error bound is updated with the
+		 * delay introduced on top of the delays this group already suffered.
+		 * 
+		 * @param distance
+		 *            the exact distance of the earliest completion in the group
+		 * @return the distance to be used as the frequency of this syncer
+		 */
+		private long quantize(final long distance) {
+			if (completionQuantum == 1 || distance == 0 || distance > Long.MAX_VALUE - completionQuantum) {
+				return distance;
+			}
+			final long quantized = (distance + completionQuantum - 1) / completionQuantum * completionQuantum;
+			quantizedEventPending = quantized != distance;
+			final long error = accumulatedQuantizationError + quantized - distance;
+			if (error > quantizationErrorBound) {
+				quantizationErrorBound = error;
+			}
+			return quantized;
+		}
+
+		/**
+		 * Determines the delay accumulated in this group including the delay
+		 * of the pending quantized event if it has already passed its exact
+		 * completion time.
+		 * 
+		 * @param currTime
+		 *            the time instance to determine the delay for
+		 * @return the accumulated delay in ticks
+		 */
+		private long realizedQuantizationError(final long currTime) {
+			return quantizedEventPending && currTime > exactCompletionTime
+					? accumulatedQuantizationError + currTime - exactCompletionTime : accumulatedQuantizationError;
+		}
+
+		/**
+		 * Allows the low level scheduler to report the number of progressive
+		 * filling iterations it needed for the current frequency update.
+		 * 
+		 * @param iterations
+		 *            the number of iterations done
+		 */
+		void recordSolverIterations(final int iterations) {
+			lastSolverIterations += iterations;
+		}
+
+		/**
+		 * Determines the number of other influence groups this group absorbed.
+		 * 
+		 * @return the number of merges
+		 */
+		public long getMergeCount() {
+			return mergeCount;
+		}
+
+		/**
+		 * Determines the number of new influence groups that were split from
+		 * this group.
+		 * 
+		 * @return the number of splits
+		 */
+		public long getSplitCount() {
+			return splitCount;
+		}
+
+		/**
+		 * Determines how many times this group's processing limits were
+		 * reassigned.
+		 * 
+		 * @return the number of frequency updates
+		 */
+		public long getFreqUpdateCount() {
+			return freqUpdateCount;
+		}
+
+		/**
+		 * Determines how many frequency updates left this group in irregular
+		 * frequency mode (i.e., with 0 tick long consumptions).
+		 * 
+		 * @return the number of irregular frequency updates
+		 */
+		public long getIrregularFreqUpdateCount() {
+			return irregularFreqUpdateCount;
+		}
+
+		/**
+		 * Determines the number of progressive filling iterations the low
+		 * level scheduler needed in the last frequency update.
+		 * 
+		 * @return the number of iterations
+		 */
+		public int getLastSolverIterations() {
+			return lastSolverIterations;
+		}
+
+		/**
+		 * Determines the time spent in the low level scheduler of this group.
+		 * The time is only measured while GroupTelemetry is enabled.
+		 * 
+		 * @return the time spent in nanoseconds
+		 */
+		public long getUpdaterNanos() {
+			return updaterNanos;
 		}
 
 		/**
@@ -791,15 +1153,167 @@ public abstract class ResourceSpreader {
 	 */
 	protected final void removeTheseConsumptions(final ResourceConsumption[] conList, final int len) {
 		for (int i = 0; i < len; i++) {
-			underRemoval.add(conList[i]);
-			ArrayHandler.removeAndReplaceWithLast(underAddition, conList[i]);
+			markForRemoval(conList[i]);
 		}
+		removalsMarked();
+	}
+
+	/**
+	 * Puts a single consumption on the underRemoval list. Once all the
+	 * necessary consumptions are marked, removalsMarked must be called so the
+	 * influence group is reevaluated.
+	 * 
+	 * @param con
+	 *            the resource consumption that must be dropped
+	 */
+	private void markForRemoval(final ResourceConsumption con) {
+		// the two lists share the same index field in the consumption so
+		// the consumption must leave underAddition first
+		removeListed(underAddition, con, true);
+		if (!isListed(underRemoval, con, true)) {
+			addListed(underRemoval, con, true);
+		}
+	}
+
+	/**
+	 * Ensures the influence group is reevaluated after some consumptions were
+	 * marked for removal.
+	 */
+	private void removalsMarked() {
 		if (mySyncer != null) {
 			mySyncer.nudge();
 		}
 		invalidateState();
 	}
 
+	/**
+	 * Determines the location of a consumption in one of the consumption lists
+	 * of this spreader. The location is stored in the consumption itself so it
+	 * is not necessary to search the lists.
+	 * 
+	 * @param con
+	 *            the consumption to be located
+	 * @param pending
+	 *            <i>true</i> if the location in underAddition/underRemoval is
+	 *            needed, <i>false</i> if the location in toProcess is needed
+	 * @return the recorded location, it is only valid if the list really holds
+	 *         the consumption at this location
+	 */
+	private int getListIndex(final ResourceConsumption con, final boolean pending) {
+		if (isConsumer()) {
+			return pending ? con.consumerPendingIdx : con.consumerProcessingIdx;
+		}
+		return pending ? con.providerPendingIdx : con.providerProcessingIdx;
+	}
+
+	/**
+	 * Records the location of a consumption in one of the consumption lists of
+	 * this spreader.
+	 * 
+	 * @param con
+	 *            the consumption to be updated
+	 * @param pending
+	 *            <i>true</i> if the location in underAddition/underRemoval is
+	 *            recorded, <i>false</i> if the location in toProcess is recorded
+	 * @param idx
+	 *            the new location of the consumption
+	 */
+	private void setListIndex(final ResourceConsumption con, final boolean pending, final int idx) {
+		if (isConsumer()) {
+			if (pending) {
+				con.consumerPendingIdx = idx;
+			} else {
+				con.consumerProcessingIdx = idx;
+			}
+		} else {
+			if (pending) {
+				con.providerPendingIdx = idx;
+			} else {
+				con.providerProcessingIdx = idx;
+			}
+		}
+	}
+
+	/**
+	 * Checks in constant time if a consumption is listed in one of the
+	 * consumption lists of this spreader.
+	 * 
+	 * @param list
+	 *            the list to check (toProcess, underAddition or underRemoval)
+	 * @param con
+	 *            the consumption to look for
+	 * @param pending
+	 *            <i>false</i> if the list is toProcess
+	 * @return <i>true</i> if the consumption is in the list
+	 */
+	private boolean isListed(final ArrayList<ResourceConsumption> list, final ResourceConsumption con,
+			final boolean pending) {
+		final int loc = getListIndex(con, pending);
+		return loc >= 0 && loc < list.size() && list.get(loc) == con;
+	}
+
+	/**
+	 * Checks if any of the consumption lists of this spreader still holds a
+	 * consumption.
+	 * 
+	 * @param con
+	 *            the consumption to look for
+	 * @return <i>true</i> if the consumption is processed, or it is about to
+	 *         be added or removed by this spreader
+	 */
+	boolean refersTo(final ResourceConsumption con) {
+		return isListed(toProcess, con, false) || isListed(underAddition, con, true)
+				|| isListed(underRemoval, con, true);
+	}
+
+	/**
+	 * Appends a consumption to one of the consumption lists of this spreader
+	 * and records its location in the consumption.
+	 * 
+	 * @param list
+	 *            the list to extend (toProcess, underAddition or underRemoval)
+	 * @param con
+	 *            the consumption to add
+	 * @param pending
+	 *            <i>false</i> if the list is toProcess
+	 */
+	private void addListed(final ArrayList<ResourceConsumption> list, final ResourceConsumption con,
+			final boolean pending) {
+		setListIndex(con, pending, list.size());
+		list.add(con);
+	}
+
+	/**
+	 * The constant time equivalent of ArrayHandler.removeAndReplaceWithLast for
+	 * the consumption lists of this spreader. The location of the consumption
+	 * is not searched but read from the consumption, the last item of the list
+	 * is moved to its place and the moved item's location is updated.
+	 * 
+	 * @param list
+	 *            the list to remove from (toProcess, underAddition or
+	 *            underRemoval)
+	 * @param con
+	 *            the consumption to remove
+	 * @param pending
+	 *            <i>false</i> if the list is toProcess
+	 * @return <i>true</i> if the consumption was in the list and got removed
+	 */
+	private boolean removeListed(final ArrayList<ResourceConsumption> list, final ResourceConsumption con,
+			final boolean pending) {
+		if (!isListed(list, con, pending)) {
+			return false;
+		}
+		final int loc = getListIndex(con, pending);
+		final int sizeMinus = list.size() - 1;
+		final ResourceConsumption lastItem = list.remove(sizeMinus);
+		if (loc != sizeMinus) {
+			list.set(loc, lastItem);
+			setListIndex(lastItem, pending, loc);
+		}
+		setListIndex(con, pending, -1);
+		return true;
+	}
+
 	/**
 	 * When a new consumption is initiated it must be registered to the
 	 * corresponding spreader with this function.
@@ -823,21 +1337,92 @@ public abstract class ResourceSpreader {
 	 *         </ul>
 	 */
 	static boolean registerConsumption(final ResourceConsumption con) {
+		if (!enqueueConsumption(con)) {
+			return false;
+		}
+		nudgeGroupsOf(con.getProvider(), con.getConsumer());
+		return true;
+	}
+
+	/**
+	 * The bulk version of registerConsumption. All consumptions are validated
+	 * and put on the addition lists of their providers and consumers first, and
+	 * the influence groups are only nudged afterwards. Consecutive consumptions
+	 * with the same provider/consumer pair only cause a single nudge.
+	 * 
+	 * WARNING: This function should not be called by anyone else but the bulk
+	 * registration function of the resource consumption! (Otherwise duplicate
+	 * registrations could happen!)
+	 * 
+	 * @param cons
+	 *            The consumption objects to be registered. Those items that
+	 *            should not be registered must be null.
+	 * @param len
+	 *            the number of items to process from the array
+	 * @param results
+	 *            the array to store the outcome of the registration of each
+	 *            consumption. Its items are set to <i>true</i> if the
+	 *            consumption at the same index was successfully registered.
+	 */
+	static void registerConsumptions(final ResourceConsumption[] cons, final int len, final boolean[] results) {
+		for (int i = 0; i < len; i++) {
+			results[i] = cons[i] != null && enqueueConsumption(cons[i]);
+		}
+		ResourceSpreader lastProvider = null;
+		ResourceSpreader lastConsumer = null;
+		for (int i = 0; i < len; i++) {
+			if (results[i]) {
+				final ResourceSpreader provider = cons[i].getProvider();
+				final ResourceSpreader consumer = cons[i].getConsumer();
+				if (provider != lastProvider || consumer != lastConsumer) {
+					nudgeGroupsOf(provider, consumer);
+					lastProvider = provider;
+					lastConsumer = consumer;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Validates a consumption and puts it on the addition lists of its provider
+	 * and consumer. The influence groups of the provider and the consumer are
+	 * not notified about the new consumption, this should be done with
+	 * nudgeGroupsOf.
+	 * 
+	 * @param con
+	 *            The consumption object to be registered
+	 * @return <i>true</i> if the consumption is now waiting for its addition
+	 */
+	private static boolean enqueueConsumption(final ResourceConsumption con) {
 		final ResourceSpreader provider = con.getProvider();
 		final ResourceSpreader consumer = con.getConsumer();
-		if (con.isRegistered() || !(provider.isAcceptableConsumption(con) && consumer.isAcceptableConsumption(con))) {
+		if (con.isRegistered() || provider.isListed(provider.underAddition, con, true)
+				|| !(provider.isAcceptableConsumption(con) && consumer.isAcceptableConsumption(con))) {
 			return false;
 		}
-		
+
 		provider.invalidateState();
 		consumer.invalidateState();
 		// ResourceConsumption synchronization
-		ArrayHandler.removeAndReplaceWithLast(provider.underRemoval, con);
-		ArrayHandler.removeAndReplaceWithLast(consumer.underRemoval, con);
+		provider.removeListed(provider.underRemoval, con, true);
+		consumer.removeListed(consumer.underRemoval, con, true);
 
-		provider.underAddition.add(con);
-		consumer.underAddition.add(con);
+		provider.addListed(provider.underAddition, con, true);
+		consumer.addListed(consumer.underAddition, con, true);
+		return true;
+	}
 
+	/**
+	 * Ensures that the influence groups of a provider/consumer pair will take
+	 * care of the newly added consumptions between them. If none of them have
+	 * an influence group yet, then a new group is formed.
+	 * 
+	 * @param provider
+	 *            the provider of the new consumptions
+	 * @param consumer
+	 *            the consumer of the new consumptions
+	 */
+	private static void nudgeGroupsOf(final ResourceSpreader provider, final ResourceSpreader consumer) {
 		boolean notnudged = true;
 		if (provider.mySyncer != null) {
 			provider.mySyncer.nudge();
@@ -852,8 +1437,6 @@ public abstract class ResourceSpreader {
 			// We just form our new influence group
 			new FreqSyncer(provider, consumer).nudge();
 		}
-
-		return true;
 	}
 
 	/**
@@ -890,9 +1473,10 @@ public abstract class ResourceSpreader {
 	static void cancelConsumption(final ResourceConsumption con) {
 		final ResourceSpreader provider = con.getProvider();
 		final ResourceSpreader consumer = con.getConsumer();
-		ResourceConsumption[] sinlgeConsumption = new ResourceConsumption[] { con };
-		provider.removeTheseConsumptions(sinlgeConsumption, 1);
-		consumer.removeTheseConsumptions(sinlgeConsumption, 1);
+		provider.markForRemoval(con);
+		provider.removalsMarked();
+		consumer.markForRemoval(con);
+		consumer.removalsMarked();
 		provider.invalidateState();
 		consumer.invalidateState();
 	}
@@ -916,26 +1500,23 @@ public abstract class ResourceSpreader {
 		if (currentFireCount == lastNotifTime && mySyncer.isRegularFreqMode()) {
 			return;
 		}
-		ResourceConsumption[] toRemove = null;
-		boolean firsthit = true;
-		int remIdx = 0;
+		boolean didRemovals = false;
 		final long ticksPassed = currentFireCount - lastNotifTime;
 		for (int i = 0; i < underProcessingLen; i++) {
 			final ResourceConsumption con = underProcessing.get(i);
 			final double processed = processSingleConsumption(con, ticksPassed);
 			if (processed < 0) {
 				totalProcessed -= processed;
-				if (firsthit) {
-					toRemove = new ResourceConsumption[underProcessingLen - i];
-					firsthit = false;
-				}
-				toRemove[remIdx++] = con;
+				// completed consumptions are directly marked so no temporary
+				// array is needed to collect them
+				markForRemoval(con);
+				didRemovals = true;
 			} else {
 				totalProcessed += processed;
 			}
 		}
-		if (remIdx > 0) {
-			removeTheseConsumptions(toRemove, remIdx);
+		if (didRemovals) {
+			removalsMarked();
 		}
 		lastNotifTime = currentFireCount;
 		invalidateState();
@@ -1009,9 +1590,18 @@ public abstract class ResourceSpreader {
 	 * present resource consumption objects) by this resource spreader object at
 	 * the time instance this call is made.
 	 * 
-	 * <i>WARNING:</i> this operation could be rather expensive to call as it
-	 * first has to ensure all consumption processing is done before the query
-	 * to the totalProcessed field can be actually accomplished.
+	 * Between two frequency updates of the influence group no consumption can
+	 * complete and the real limits of the consumptions do not change. Thus in
+	 * such cases the total is derived from the last processing time and the
+	 * aggregated rate of the consumptions without processing them. This keeps
+	 * frequent queries (e.g., by energy meters) cheap even in large influence
+	 * groups. The consumptions are only processed if the query happens at the
+	 * time of the next frequency update of the group.
+	 * 
+	 * If the next frequency update was postponed by the completion quantum,
+	 * the total is not advanced beyond the exact completion time until the
+	 * postponed update happens. Processing the consumptions earlier would
+	 * complete them before their quantized notification time.
 	 * 
 	 * @return the amount of processing done so far. The unit of the processed
 	 *         value is application specific here it is not relevant. For
@@ -1021,20 +1611,119 @@ public abstract class ResourceSpreader {
 	public double getTotalProcessed() {
 		if (mySyncer != null) {
 			final long currTime = Timed.getFireCount();
-			if (isConsumer()) {
-				// We first have to make sure the providers provide the
-				// stuff that this consumer might need
-				final int len = mySyncer.getFirstConsumerId();
-				final ResourceSpreader[] dg = mySyncer.myDepGroup;
-				for (int i = 0; i < len; i++) {
-					dg[i].doProcessing(currTime);
-				}
+			if (mySyncer.isRegularFreqMode() && currTime < mySyncer.getNextEvent()) {
+				final long until = currTime < mySyncer.exactCompletionTime ? currTime : mySyncer.exactCompletionTime;
+				return until > lastNotifTime ? totalProcessed + (until - lastNotifTime) * getAggregateRate()
+						: totalProcessed;
 			}
-			doProcessing(currTime);
+			settleProcessing(currTime);
 		}
 		return totalProcessed;
 	}
 
+	/**
+	 * Determines the amount of resources processed by this spreader in a
+	 * single tick with the real limits set during the last frequency update of
+	 * the influence group. The sum is only recalculated if there was a
+	 * frequency update since it was last determined.
+	 * 
+	 * @return the sum of the effective real limits of the consumptions in
+	 *         toProcess (weighted with their multiplicities)
+	 */
+	private double getAggregateRate() {
+		final long epoch = mySyncer.rateEpoch;
+		if (aggregateRateEpoch != epoch) {
+			double rate = 0;
+			for (int i = 0; i < underProcessingLen; i++) {
+				final ResourceConsumption con = toProcess.get(i);
+				rate += con.getEffectiveRealLimit() * con.multiplicity;
+			}
+			aggregateRate = rate;
+			aggregateRateEpoch = epoch;
+		}
+		return aggregateRate;
+	}
+
+	/**
+	 * Ensures all consumption processing is done by this spreader until the
+	 * specified time. If this spreader is a consumer then the providers of its
+	 * influence group are processed first so they offer the resources this
+	 * consumer might need.
+	 * 
+	 * <i>WARNING:</i> this operation could be rather expensive to call as it
+	 * processes the consumptions of all providers in the influence group.
+	 * 
+	 * @param currTime
+	 *            the time until the processing should be done
+	 */
+	private void settleProcessing(final long currTime) {
+		if (isConsumer()) {
+			// We first have to make sure the providers provide the
+			// stuff that this consumer might need
+			final int len = mySyncer.getFirstConsumerId();
+			final ResourceSpreader[] dg = mySyncer.myDepGroup;
+			for (int i = 0; i < len; i++) {
+				dg[i].doProcessing(currTime);
+			}
+		}
+		doProcessing(currTime);
+	}
+
+	/**
+	 * Sets the quantum to which the completion distances of the influence
+	 * groups are rounded up. With a quantum larger than 1, consumptions
+	 * completing within the same quantum are processed together in a single
+	 * event. This reduces the number of events in the simulation but the
+	 * completion notifications could arrive later than with exact simulation
+	 * (by less than the quantum). The unused resources of the completed
+	 * consumptions are not redistributed until the notification either.
+	 * 
+	 * The new quantum is applied from the next frequency update of each
+	 * influence group.
+	 * 
+	 * @param quantum
+	 *            the granularity in ticks, 1 means exact simulation
+	 * @throws IllegalStateException
+	 *             if the quantum is not positive
+	 */
+	public static void setCompletionQuantum(final long quantum) {
+		if (quantum < 1) {
+			throw new IllegalStateException("The completion quantum must be positive: " + quantum);
+		}
+		completionQuantum = quantum;
+	}
+
+	/**
+	 * Determines the granularity of the completion distances.
+	 * 
+	 * @return the current completion quantum in ticks
+	 */
+	public static long getCompletionQuantum() {
+		return completionQuantum;
+	}
+
+	/**
+	 * Reports the worst-case error the quantized completions introduced so
+	 * far. As the resources freed by a completion are only redistributed after
+	 * its notification, the delays of successive completions in the same
+	 * influence group accumulate. Thus the bound is the largest sum of the
+	 * delays suffered by an influence group (including the groups it was
+	 * merged with or split from) plus the rounding of its latest completion.
+	 * 
+	 * @return the maximum delay of a completion notification in ticks
+	 */
+	public static long getQuantizationErrorBound() {
+		return quantizationErrorBound;
+	}
+
+	/**
+	 * Forgets the error bound collected so far (e.g., before a new simulation
+	 * is started).
+	 */
+	public static void resetQuantizationErrorBound() {
+		quantizationErrorBound = 0;
+	}
+
 	/**
 	 * Determines the current processing power of this resource spreader
 	 * 
@@ -1046,6 +1735,26 @@ public abstract class ResourceSpreader {
 		return perTickProcessingPower;
 	}
 
+	/**
+	 * Allows subclasses to reuse a spreader object: brings the spreader back
+	 * to the state it had right after its construction with zero processing
+	 * power. The power behavior and the state change listeners of the spreader
+	 * are kept.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the spreader still has consumptions to handle
+	 */
+	protected void resetForReuse() {
+		if (mySyncer != null || !toProcess.isEmpty() || !underAddition.isEmpty() || !underRemoval.isEmpty()) {
+			throw new IllegalStateException("Cannot reset a spreader with consumptions");
+		}
+		totalProcessed = 0;
+		aggregateRate = 0;
+		aggregateRateEpoch = -1;
+		lastNotifTime = 0;
+		setPerTickProcessingPower(0);
+	}
+
 	/**
 	 * Allows to set the current processing power of this resource spreader
 	 * 
@@ -1138,11 +1847,17 @@ public abstract class ResourceSpreader {
 	 * even when invoked after the resources were scheduled and the spreader
 	 * has processed some resources, and the next scheduling cycle did not 
 	 * happen yet.
+	 * 
+	 * The processing is done for the whole influence group at once, so the
+	 * states of the other group members are not invalidated again while the
+	 * snapshot of the group is built.
 	 */
 	protected void updateState() {
 		if (Timed.getFireCount() - lastNotifTime > 1 && underProcessingLen != 0) {
 			invalidateState();
-			getTotalProcessed();
+			if (mySyncer != null) {
+				mySyncer.outOfOrderProcessing(Timed.getFireCount());
+			}
 		}
 	}
 	
@@ -1150,27 +1865,38 @@ public abstract class ResourceSpreader {
 	 * Returns the SpreaderState which represents this spreader at the current
 	 * time instance.
 	 * 
+	 * The state is kept until it is invalidated. The snapshots are not
+	 * copy-on-write: an invalidated state is rebuilt with the current state of
+	 * every consumption of the spreader, so its cost is linear in the number
+	 * of these consumptions.
+	 * 
+	 * If the state is invalidated while it is built (e.g., because getting the
+	 * state of another group member processes its consumptions), the state
+	 * built is still returned.
+	 * 
 	 * @throws IllegalStateException if called during the processing cycle
 	 * @return the state of this spreader
 	 */
 	public ResourceSpreader.SpreaderState getSpreaderState() {
 		updateState();
-		if (state == null) {
-			state = createSpreaderState();
-			
-			for (ResourceConsumption c : toProcess) {
-				state.consumptions.add(c.getConsumptionState());
-			}
-			
-			for (ResourceConsumption c : underAddition) {
-				state.consumptions.add(c.getConsumptionState());
+		SpreaderState current = state;
+		if (current == null) {
+			state = current = createSpreaderState();
+			final ArrayList<ResourceConsumption.ConsumptionState> consumptions = current.consumptions;
+			consumptions.ensureCapacity(toProcess.size() + underAddition.size());
+			// the pending lists are disjoint, so the consumptions to be
+			// removed are just skipped instead of removing them later
+			for (int i = 0; i < toProcess.size(); i++) {
+				final ResourceConsumption c = toProcess.get(i);
+				if (!isListed(underRemoval, c, true) && !isListed(underAddition, c, true)) {
+					consumptions.add(c.getConsumptionState());
+				}
 			}
-			
-			for (ResourceConsumption c : underRemoval) {
-				ArrayHandler.removeAndReplaceWithLast(state.consumptions, c.getConsumptionState());
+			for (int i = 0; i < underAddition.size(); i++) {
+				consumptions.add(underAddition.get(i).getConsumptionState());
 			}
 		}
-		return state;
+		return current;
 	}
 
 	/**
@@ -30,6 +30,7 @@ import hu.mta.sztaki.lpds.cloud.simulator.iaas.PhysicalMachine.ResourceAllocatio
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMManager.VMManagementException;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.AlterableResourceConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ConstantConstraints;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ResourceConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.pmiterators.PMIterator;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
 
@@ -51,12 +52,14 @@ public class FirstFitScheduler extends Scheduler {
 	 */
 	ResourceAllocation[] ras = new ResourceAllocation[5];
 	/**
-	 * the largest allocation that was possible to collect from all running PMs
-	 * in the infrastructure. this is important to determine the amount of
-	 * resources that need to become free before the scheduler would be able to
-	 * place the head of the queue to any of the PMs in the infrastructure.
+	 * the largest allocation that would be possible to collect from all
+	 * running PMs in the infrastructure. this is important to determine the
+	 * amount of resources that need to become free before the scheduler would
+	 * be able to place the head of the queue to any of the PMs in the
+	 * infrastructure. The PMs are only probed for this, so no allocation is
+	 * made for it.
 	 */
-	ResourceAllocation raBiggestNotSuitable = null;
+	ResourceConstraints biggestNotSuitable = null;
 	/**
 	 * the iterator of the running PMs allowing to easily traverse the PM set in
 	 * a predefined order. The iterator plays a crucial role in this
@@ -64,6 +67,26 @@ public class FirstFitScheduler extends Scheduler {
 	 * handling of the PMs.
 	 */
 	private final PMIterator it;
+	/**
+	 * the free capacity index of the running PMs. Only used if the PM iterator
+	 * offers the PMs in the order of the running machine list (otherwise it is
+	 * null).
+	 */
+	private final FreeCapacityIndex capacityIndex;
+	/**
+	 * The request for which all running PMs were last scanned because none of
+	 * them could host its first VM. Only used together with the capacity
+	 * index.
+	 */
+	private QueueingData scannedRequest = null;
+	/**
+	 * The version of the capacity index at the time of the last complete scan
+	 */
+	private long scannedVersion = -1;
+	/**
+	 * The biggest allocation offered during the last complete scan
+	 */
+	private ResourceConstraints scannedBiggest = null;
 
 	/**
 	 * the constructor of the scheduler that passes on the parent IaaS service
@@ -74,6 +97,7 @@ public class FirstFitScheduler extends Scheduler {
 	public FirstFitScheduler(IaaSService parent) {
 		super(parent);
 		it = instantiateIterator();
+		capacityIndex = it.iteratesInOrderOf(parent.runningMachines) ? new FreeCapacityIndex(parent) : null;
 	}
 
 	/**
@@ -103,6 +127,18 @@ public class FirstFitScheduler extends Scheduler {
 	 * The actual first fit scheduling implementation. This implementation
 	 * supports requests with multiple VMs. It assumes that users want to deploy
 	 * all VMs or nothing so it waits until all VMs could be deployed at once.
+	 * 
+	 * If the PMs are traversed in the order of the running machine list, then
+	 * the PMs without enough free resources are skipped with the help of the
+	 * free capacity index. When the index shows that no PM could host the
+	 * first VM of the request, all PMs are scanned for the biggest possible
+	 * allocation. The result of this scan is reused for the same request
+	 * until the free capacity of a PM changes, so repeated scheduling
+	 * attempts in a saturated cloud do not go through all PMs again.
+	 * 
+	 * <i>NOTE:</i> the index does not follow the free storage of the PMs.
+	 * Thus the result of the scan is not reused if some PMs were skipped
+	 * because of their storage.
 	 */
 	@Override
 	protected ConstantConstraints scheduleQueued() {
@@ -116,17 +152,43 @@ public class FirstFitScheduler extends Scheduler {
 			while (queue.size() > 0 && processableRequest) {
 				request = queue.get(0);
 				vmNum = 0;
+				boolean storageLimited = false;
 				do {
 					processableRequest = false;
+					boolean indexed = capacityIndex != null;
 					do {
+						if (indexed) {
+							// Jumping to the next PM that could host the VM
+							final int candidate = capacityIndex.firstFit(request.queuedRC,
+									currIterator.nextIndex(), currIterator.getMaxIndex());
+							if (candidate < 0) {
+								if (vmNum == 0 && request == scannedRequest
+										&& scannedVersion == capacityIndex.getVersion()) {
+									// Nothing changed since we last went
+									// through all PMs for this request
+									biggestNotSuitable = scannedBiggest;
+									break;
+								}
+								// None of the remaining PMs fit. We still go
+								// through all PMs (including the ones skipped
+								// before) to find the biggest possible
+								// allocation
+								indexed = false;
+								currIterator.restart(false);
+							} else {
+								currIterator.skipTo(candidate);
+							}
+						}
 						final PhysicalMachine pm = currIterator.next();
 						if (pm.localDisk.getFreeStorageCapacity() >= request.queuedVMs[vmNum].getVa().size) {
 							try {
-								allocation = pm.allocateResources(request.queuedRC, false,
-										PhysicalMachine.defaultAllocLen);
-								if (allocation != null) {
-									if (allocation.allocated.compareTo(request.queuedRC) >= 0) {
-										// Successful allocation
+								final ResourceConstraints offered = pm.probeAllocation(request.queuedRC, false);
+								if (offered != null) {
+									if (offered.compareTo(request.queuedRC) >= 0) {
+										// Successful allocation, only the chosen PM
+										// is really asked for the resources
+										allocation = pm.allocateResources(request.queuedRC, false,
+												PhysicalMachine.defaultAllocLen);
 										if (pm.freeCapacities.getRequiredCPUs() == 0 && currIterator.hasNext()) {
 											currIterator.next();
 										}
@@ -139,31 +201,35 @@ public class FirstFitScheduler extends Scheduler {
 										ras[vmNum] = allocation;
 										processableRequest = true;
 										break;
-									} else {
-										if (raBiggestNotSuitable == null) {
-											raBiggestNotSuitable = allocation;
-										} else {
-											if (allocation.allocated.compareTo(raBiggestNotSuitable.allocated) > 0) {
-												raBiggestNotSuitable.cancel();
-												raBiggestNotSuitable = allocation;
-											} else {
-												allocation.cancel();
-											}
-										}
+									} else if (biggestNotSuitable == null
+											|| offered.compareTo(biggestNotSuitable) > 0) {
+										biggestNotSuitable = offered;
 									}
 								}
 							} catch (VMManagementException e) {
 							}
+						} else {
+							storageLimited = true;
 						}
 					} while (currIterator.hasNext());
 					currIterator.restart(true);
 				} while (++vmNum < request.queuedVMs.length && processableRequest);
 				if (processableRequest) {
 					try {
-						for (int i = request.queuedVMs.length - 1; i >= 0; i--) {
-							vmNum--;
-							allocation = ras[i];
-							allocation.getHost().deployVM(request.queuedVMs[i], allocation, request.queuedRepo);
+						// The VMs of the request can share their VA transfers
+						if (request.queuedRepo != null) {
+							request.queuedRepo.startBulkDelivery();
+						}
+						try {
+							for (int i = request.queuedVMs.length - 1; i >= 0; i--) {
+								vmNum--;
+								allocation = ras[i];
+								allocation.getHost().deployVM(request.queuedVMs[i], allocation, request.queuedRepo);
+							}
+						} finally {
+							if (request.queuedRepo != null) {
+								request.queuedRepo.finishBulkDelivery();
+							}
 						}
 						manageQueueRemoval(request);
 					} catch (VMManagementException e) {
@@ -174,18 +240,20 @@ public class FirstFitScheduler extends Scheduler {
 						processableRequest = false;
 					}
 				} else {
+					if (capacityIndex != null && vmNum == 1 && !storageLimited) {
+						scannedRequest = request;
+						scannedVersion = capacityIndex.getVersion();
+						scannedBiggest = biggestNotSuitable;
+					}
 					AlterableResourceConstraints arc = new AlterableResourceConstraints(request.queuedRC);
 					arc.multiply(request.queuedVMs.length - vmNum + 1);
-					if (raBiggestNotSuitable != null) {
+					if (biggestNotSuitable != null) {
 						arc = new AlterableResourceConstraints(request.queuedRC);
-						arc.subtract(raBiggestNotSuitable.allocated);
+						arc.subtract(biggestNotSuitable);
 					}
 					returner = new ConstantConstraints(arc);
 				}
-				if (raBiggestNotSuitable != null) {
-					raBiggestNotSuitable.cancel();
-					raBiggestNotSuitable = null;
-				}
+				biggestNotSuitable = null;
 			}
 			vmNum--;
 			for (int i = 0; i < vmNum; i++) {
@@ -0,0 +1,344 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+
+package hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.IaaSService;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.PhysicalMachine;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.PhysicalMachine.State;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMManager;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ResourceConstraints;
+
+/**
+ * An index over the free capacities of the running PMs of an IaaS service.
+ * The index allows the rapid identification of the first running PM (in the
+ * order of the IaaS's running machine list) that has enough free CPUs,
+ * processing power and memory for a particular resource request.
+ * 
+ * The index is a segment tree with the maximum of the free resources (for
+ * each resource dimension separately) of the PMs in its subtrees. Queries
+ * descend to the leftmost subtree that could fit the request, thus they are
+ * logarithmic as long as the maxima of the different dimensions are offered
+ * by the same PMs. Otherwise a subtree can seem to fit the request without
+ * any of its PMs actually fitting it, so in the worst case (e.g., when the
+ * PMs with the most free CPUs have the least free memory) a query visits all
+ * the PMs and takes O(n) time.
+ * 
+ * The index is kept up to date with the free capacity change events of the
+ * PMs. The entries of the changed PMs are only updated when the index is
+ * queried, and the complete index is rebuilt if the set of running PMs
+ * changes.
+ * 
+ * <i>NOTE:</i> the index only considers the computing resources. Callers
+ * still need to check the storage requirements and perform the actual
+ * allocation on the returned PM.
+ */
+public class FreeCapacityIndex {
+	/**
+	 * Allows a minor rounding difference between the index's free processing
+	 * and the calculations of the PM during allocation. This ensures that the
+	 * index never rules out a PM that could actually host a request.
+	 */
+	private static final double tolerance = 1 + 1e-9;
+
+	/**
+	 * The running machine list of the IaaS that determines the order of the
+	 * PMs in the index
+	 */
+	private final List<PhysicalMachine> pms;
+	/**
+	 * The maximum free processing (free CPUs times per core processing power)
+	 * in the subtrees. The leaves start at index 'leaves'.
+	 */
+	private double[] maxProcessing = new double[0];
+	/**
+	 * The maximum free per core processing power in the subtrees
+	 */
+	private double[] maxPerCore = new double[0];
+	/**
+	 * The maximum free memory in the subtrees
+	 */
+	private long[] maxMemory = new long[0];
+	/**
+	 * The number of leaves in the tree (a power of 2)
+	 */
+	private int leaves = 0;
+	/**
+	 * The number of PMs in the index
+	 */
+	private int pmCount = 0;
+	/**
+	 * The position of the indexed PMs in the running machine list. The PMs are
+	 * identified with their free capacity objects as these are the ones
+	 * received with the capacity change events.
+	 */
+	private final IdentityHashMap<ResourceConstraints, Integer> positions = new IdentityHashMap<ResourceConstraints, Integer>();
+	/**
+	 * The positions of the PMs that need to be updated before the next query
+	 */
+	private int[] dirty = new int[16];
+	/**
+	 * The number of items in the dirty array
+	 */
+	private int dirtyLen = 0;
+	/**
+	 * Shows the positions that are already listed in the dirty array
+	 */
+	private boolean[] dirtyFlags = new boolean[0];
+	/**
+	 * <i>true</i> if the set of running PMs changed since the last rebuild
+	 */
+	private boolean rebuildNeeded = true;
+	/**
+	 * Counts the free capacity and running state changes of the indexed PMs
+	 */
+	private long version = 0;
+
+	/**
+	 * Marks the PMs with changed free capacities for update
+	 */
+	private final VMManager.CapacityChangeEvent<ResourceConstraints> capacityListener = new VMManager.CapacityChangeEvent<ResourceConstraints>() {
+		@Override
+		public void capacityChanged(final ResourceConstraints newCapacity,
+				final List<ResourceConstraints> affectedCapacity) {
+			version++;
+			if (rebuildNeeded) {
+				return;
+			}
+			final Integer pos = positions.get(newCapacity);
+			if (pos != null && !dirtyFlags[pos]) {
+				dirtyFlags[pos] = true;
+				if (dirtyLen == dirty.length) {
+					dirty = Arrays.copyOf(dirty, dirtyLen * 2);
+				}
+				dirty[dirtyLen++] = pos;
+			}
+		}
+	};
+
+	/**
+	 * Marks the index for rebuild if PMs change their running state
+	 */
+	private final PhysicalMachine.StateChangeListener stateListener = new PhysicalMachine.StateChangeListener() {
+		@Override
+		public void stateChanged(final PhysicalMachine pm, final State oldState, final State newState) {
+			if (oldState.equals(State.RUNNING) || newState.equals(State.RUNNING)) {
+				version++;
+				rebuildNeeded = true;
+			}
+		}
+	};
+
+	/**
+	 * Creates the index for the running PMs of an IaaS service and subscribes
+	 * to the events of its current and future PMs.
+	 * 
+	 * @param parent
+	 *            the IaaS service whose running PMs should be indexed
+	 */
+	public FreeCapacityIndex(final IaaSService parent) {
+		pms = parent.runningMachines;
+		for (final PhysicalMachine pm : parent.machines) {
+			pm.subscribeStateChangeEvents(stateListener);
+			pm.subscribeToFreeCapacityChanges(capacityListener);
+		}
+		parent.subscribeToCapacityChanges(new VMManager.CapacityChangeEvent<PhysicalMachine>() {
+			@Override
+			public void capacityChanged(final ResourceConstraints newCapacity, final List<PhysicalMachine> alteredPMs) {
+				final boolean newRegistration = parent.isRegisteredHost(alteredPMs.get(0));
+				for (final PhysicalMachine pm : alteredPMs) {
+					if (newRegistration) {
+						pm.subscribeStateChangeEvents(stateListener);
+						pm.subscribeToFreeCapacityChanges(capacityListener);
+					} else {
+						pm.unsubscribeStateChangeEvents(stateListener);
+						pm.unsubscribeFromFreeCapacityChanges(capacityListener);
+					}
+				}
+				version++;
+				rebuildNeeded = true;
+			}
+		});
+	}
+
+	/**
+	 * Recreates the complete tree from the current running machine list.
+	 */
+	private void rebuild() {
+		pmCount = pms.size();
+		leaves = 1;
+		while (leaves < pmCount) {
+			leaves <<= 1;
+		}
+		maxProcessing = new double[leaves * 2];
+		maxPerCore = new double[leaves * 2];
+		maxMemory = new long[leaves * 2];
+		Arrays.fill(maxProcessing, -1);
+		Arrays.fill(maxPerCore, -1);
+		Arrays.fill(maxMemory, -1);
+		dirtyFlags = new boolean[pmCount];
+		dirtyLen = 0;
+		positions.clear();
+		for (int i = 0; i < pmCount; i++) {
+			final PhysicalMachine pm = pms.get(i);
+			positions.put(pm.freeCapacities, i);
+			setLeaf(i, pm);
+		}
+		for (int node = leaves - 1; node > 0; node--) {
+			pullUp(node);
+		}
+		rebuildNeeded = false;
+	}
+
+	/**
+	 * Copies the current free capacities of a PM to its leaf (the inner nodes
+	 * are not updated)
+	 * 
+	 * @param pos
+	 *            the position of the PM in the running machine list
+	 * @param pm
+	 *            the PM itself
+	 */
+	private void setLeaf(final int pos, final PhysicalMachine pm) {
+		final int leaf = leaves + pos;
+		final ResourceConstraints free = pm.freeCapacities;
+		maxProcessing[leaf] = free.getRequiredCPUs() * pm.getCapacities().getRequiredProcessingPower();
+		maxPerCore[leaf] = free.getRequiredProcessingPower();
+		maxMemory[leaf] = free.getRequiredMemory();
+	}
+
+	/**
+	 * Recalculates the maxima of an inner node from its children
+	 * 
+	 * @param node
+	 *            the inner node to update
+	 */
+	private void pullUp(final int node) {
+		final int l = node * 2;
+		final int r = l + 1;
+		maxProcessing[node] = Math.max(maxProcessing[l], maxProcessing[r]);
+		maxPerCore[node] = Math.max(maxPerCore[l], maxPerCore[r]);
+		maxMemory[node] = Math.max(maxMemory[l], maxMemory[r]);
+	}
+
+	/**
+	 * Brings the index up to date with the changes since the last query.
+	 */
+	private void refresh() {
+		if (rebuildNeeded || pmCount != pms.size()) {
+			if (!rebuildNeeded) {
+				// The running machine list changed before our state listener
+				// was notified
+				version++;
+			}
+			rebuild();
+			return;
+		}
+		for (int i = 0; i < dirtyLen; i++) {
+			final int pos = dirty[i];
+			dirtyFlags[pos] = false;
+			setLeaf(pos, pms.get(pos));
+			for (int node = (leaves + pos) / 2; node > 0; node /= 2) {
+				pullUp(node);
+			}
+		}
+		dirtyLen = 0;
+	}
+
+	/**
+	 * Determines if the maxima of a tree node would allow the hosting of a
+	 * request. For leaves this is exactly the condition of the allocation
+	 * (except for the storage and allocation type checks).
+	 */
+	private boolean couldFit(final int node, final double processing, final double perCore, final long memory) {
+		return maxProcessing[node] > 0 && maxProcessing[node] * tolerance >= processing
+				&& maxPerCore[node] >= perCore && maxMemory[node] >= memory;
+	}
+
+	/**
+	 * Allows users of the index to determine if the free capacities of the
+	 * running PMs could have changed since they last looked at them.
+	 * 
+	 * @return a value that changes every time the free capacity or the
+	 *         running state of an indexed PM changes
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Finds the first running PM that has enough free resources to host the
+	 * given request.
+	 * 
+	 * @param rc
+	 *            the resource request to be hosted
+	 * @param from
+	 *            the position (in the running machine list) from which the
+	 *            search should start
+	 * @param to
+	 *            the position (exclusive) until the search should go
+	 * @return the position of the first suitable PM in the running machine
+	 *         list or -1 if there is no suitable PM in the given range
+	 */
+	public int firstFit(final ResourceConstraints rc, final int from, final int to) {
+		refresh();
+		final int limit = Math.min(to, pmCount);
+		if (from >= limit) {
+			return -1;
+		}
+		return find(1, 0, leaves, from, limit, rc.getRequiredCPUs() * rc.getRequiredProcessingPower(),
+				rc.getRequiredProcessingPower(), rc.getRequiredMemory());
+	}
+
+	/**
+	 * Finds the leftmost suitable leaf in the subtree of the node.
+	 * 
+	 * @param node
+	 *            the root of the subtree
+	 * @param lo
+	 *            the first position covered by the subtree
+	 * @param hi
+	 *            the first position after the subtree
+	 * @return the position of the suitable PM or -1 if there is none in the
+	 *         requested range of the subtree
+	 */
+	private int find(final int node, final int lo, final int hi, final int from, final int to,
+			final double processing, final double perCore, final long memory) {
+		if (hi <= from || lo >= to || !couldFit(node, processing, perCore, memory)) {
+			return -1;
+		}
+		if (node >= leaves) {
+			return lo;
+		}
+		final int mid = (lo + hi) / 2;
+		final int left = find(node * 2, lo, mid, from, to, processing, perCore, memory);
+		return left >= 0 ? left : find(node * 2 + 1, mid, hi, from, to, processing, perCore, memory);
+	}
+}
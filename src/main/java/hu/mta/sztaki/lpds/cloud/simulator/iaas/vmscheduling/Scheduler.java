@@ -26,9 +26,9 @@ package hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -98,16 +98,117 @@ public abstract class Scheduler {
 	 */
 	protected UnalterableConstraintsPropagator publicTQ = new UnalterableConstraintsPropagator(totalQueued);
 	/**
-	 * This field contains an automatically updated list of all machines in the
-	 * parent IaaS. The list is kept in the order of the PM's size to allow
-	 * rapid decisions on the possible fitting of VM requests.
+	 * A group of PMs in the parent IaaS that have the same overcommitted
+	 * capacities (i.e., the same amount of resources can be allocated on
+	 * them).
 	 */
-	private ArrayList<PhysicalMachine> orderedPMcache = new ArrayList<PhysicalMachine>();
+	private static class CapacityClass {
+		/**
+		 * the overcommitted capacities of the PMs in the class
+		 */
+		final ResourceConstraints capacities;
+		/**
+		 * the number of PMs in the class
+		 */
+		int count = 0;
+
+		/**
+		 * Creates an empty class for PMs of the given size
+		 * 
+		 * @param capacities
+		 *            the overcommitted capacities of the PMs in the class
+		 */
+		CapacityClass(final ResourceConstraints capacities) {
+			this.capacities = capacities;
+		}
+
+		/**
+		 * Determines how many VMs of a request could be hosted on a single
+		 * (otherwise empty) PM of this class.
+		 * 
+		 * @param rc
+		 *            the resource requirements of a single VM
+		 * @param maxVMs
+		 *            the number of VMs in the request
+		 * @return the number of hostable VMs, at most maxVMs
+		 */
+		int hostableVMs(final ResourceConstraints rc, final int maxVMs) {
+			final AlterableResourceConstraints biggestHostable = new AlterableResourceConstraints(rc);
+			int hostable = 0;
+			while (hostable < maxVMs && biggestHostable.compareTo(capacities) <= 0) {
+				hostable++;
+				biggestHostable.singleAdd(rc);
+			}
+			return hostable;
+		}
+	}
+
+	/**
+	 * Tracks the capacity class of a registered PM. The changes of the PM's
+	 * overcommit ratios are announced as free capacity changes, so the PM is
+	 * moved to its new class when its overcommitted capacities are replaced.
+	 */
+	private class CapacityClassMembership implements VMManager.CapacityChangeEvent<ResourceConstraints> {
+		/**
+		 * the PM tracked
+		 */
+		final PhysicalMachine pm;
+		/**
+		 * the capacities with which the PM was counted in its class
+		 */
+		ResourceConstraints counted;
+
+		/**
+		 * Counts the PM in the class of its current overcommitted capacities
+		 * 
+		 * @param pm
+		 *            the PM to be tracked
+		 */
+		CapacityClassMembership(final PhysicalMachine pm) {
+			this.pm = pm;
+			join();
+		}
+
+		/**
+		 * Counts the PM in the class of its current overcommitted capacities
+		 */
+		private void join() {
+			counted = pm.getOvercommittedCapacities();
+			getCapacityClass(counted, true).count++;
+		}
+
+		/**
+		 * Removes the PM from the class it was counted in (and drops the class
+		 * if it becomes empty)
+		 */
+		void leave() {
+			final CapacityClass cc = getCapacityClass(counted, false);
+			if (cc != null && --cc.count == 0) {
+				capacityClasses.remove(cc);
+			}
+		}
+
+		@Override
+		public void capacityChanged(final ResourceConstraints newCapacity,
+				final List<ResourceConstraints> newlyFreeResources) {
+			if (pm.getOvercommittedCapacities() != counted) {
+				leave();
+				join();
+			}
+		}
+	}
+
 	/**
-	 * current length of the pm cache so we don't need to query its size all the
-	 * time
+	 * An automatically updated summary of the machines in the parent IaaS. The
+	 * PMs are grouped by their overcommitted capacities, this allows rapid
+	 * decisions on the possible fitting of VM requests as the number of
+	 * distinct PM sizes is usually small.
 	 */
-	private int pmCacheLen;
+	private final ArrayList<CapacityClass> capacityClasses = new ArrayList<CapacityClass>();
+	/**
+	 * The capacity class memberships of the PMs registered in the parent IaaS
+	 */
+	private final IdentityHashMap<PhysicalMachine, CapacityClassMembership> memberships = new IdentityHashMap<PhysicalMachine, CapacityClassMembership>();
 	/**
 	 * the manager of those objects who shown interest in receiving queuing
 	 * related event notifications
@@ -208,11 +309,11 @@ public abstract class Scheduler {
 				final int pmNum = alteredPMs.size();
 				if (newRegistration) {
 					// Increased pm count
-					orderedPMcache.addAll(alteredPMs);
-					Collections.sort(orderedPMcache, pmComparator);
-					pmCacheLen += pmNum;
 					for (int i = 0; i < pmNum; i++) {
 						final PhysicalMachine pm = alteredPMs.get(i);
+						final CapacityClassMembership ccm = new CapacityClassMembership(pm);
+						memberships.put(pm, ccm);
+						pm.subscribeToFreeCapacityChanges(ccm);
 						pm.subscribeStateChangeEvents(pmstateChanged);
 						pm.subscribeToIncreasingFreeapacityChanges(freeCapacity);
 					}
@@ -220,16 +321,44 @@ public abstract class Scheduler {
 					// Decreased pm count
 					for (int i = 0; i < pmNum; i++) {
 						final PhysicalMachine pm = alteredPMs.get(i);
-						orderedPMcache.remove(pm);
+						final CapacityClassMembership ccm = memberships.remove(pm);
+						if (ccm != null) {
+							ccm.leave();
+							pm.unsubscribeFromFreeCapacityChanges(ccm);
+						}
 						pm.unsubscribeStateChangeEvents(pmstateChanged);
 						pm.unsubscribeFromIncreasingFreeCapacityChanges(freeCapacity);
 					}
-					pmCacheLen -= pmNum;
 				}
 			}
 		});
 	}
 
+	/**
+	 * Looks up the capacity class of PMs with a particular size
+	 * 
+	 * @param capacities
+	 *            the overcommitted capacities of the PM in question
+	 * @param create
+	 *            <i>true</i> if a new class should be created when there is
+	 *            no class for this size yet
+	 * @return the capacity class, or null if it does not exist and it was not
+	 *         requested to be created
+	 */
+	private CapacityClass getCapacityClass(final ResourceConstraints capacities, final boolean create) {
+		for (final CapacityClass cc : capacityClasses) {
+			if (cc.capacities.compareTo(capacities) == 0) {
+				return cc;
+			}
+		}
+		if (!create) {
+			return null;
+		}
+		final CapacityClass cc = new CapacityClass(capacities);
+		capacityClasses.add(cc);
+		return cc;
+	}
+
 	/**
 	 * The main entry point to the schedulers. This function checks if a request
 	 * could be possibly hosted on the IaaS's infrastructure, if so then it
@@ -256,23 +385,13 @@ public abstract class Scheduler {
 		final long currentTime = Timed.getFireCount();
 		final QueueingData qd = new QueueingData(vms, rc, vaSource, schedulingConstraints, currentTime);
 
-		int hostableVMs = 0;
-		boolean hostable = false;
-		for (int pmid = 0; pmid < pmCacheLen; pmid++) {
-			PhysicalMachine machine = orderedPMcache.get(pmid);
-			AlterableResourceConstraints biggestHostable = new AlterableResourceConstraints(rc);
-			for (int i = 1; i <= vms.length; i++, hostableVMs++) {
-				if (!machine.isHostableRequest(biggestHostable)) {
-					break;
-				}
-				biggestHostable.singleAdd(rc);
-			}
-			if (hostableVMs >= vms.length) {
-				hostable = true;
-				break;
-			}
+		long hostableVMs = 0;
+		final int ccLen = capacityClasses.size();
+		for (int i = 0; i < ccLen && hostableVMs < vms.length; i++) {
+			final CapacityClass cc = capacityClasses.get(i);
+			hostableVMs += (long) cc.hostableVMs(rc, vms.length) * cc.count;
 		}
-		if (hostable) {
+		if (hostableVMs >= vms.length) {
 			boolean wasEmpty = queue.isEmpty();
 			queue.add(qd);
 			totalQueued.singleAdd(qd.cumulativeRC);
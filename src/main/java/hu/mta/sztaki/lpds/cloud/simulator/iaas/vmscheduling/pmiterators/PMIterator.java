@@ -115,6 +115,57 @@ public class PMIterator implements Iterator<PhysicalMachine> {
 		marked = index - 1;
 	}
 
+	/**
+	 * Determines the position (in the PM list) of the PM that is going to be
+	 * offered by the next call to next().
+	 * 
+	 * @return the position of the next PM
+	 */
+	public int nextIndex() {
+		return index;
+	}
+
+	/**
+	 * Determines the number of PMs this iteration goes through
+	 * 
+	 * @return the PM list's length at the last reset
+	 */
+	public int getMaxIndex() {
+		return maxIndex;
+	}
+
+	/**
+	 * Allows the iteration to continue from a later position in the PM list.
+	 * This is only meaningful for iterators that offer the PMs in the order of
+	 * the PM list (e.g., when an external index already determined which PMs
+	 * should be skipped).
+	 * 
+	 * @param position
+	 *            the position of the PM to be offered by the next call to
+	 *            next()
+	 */
+	public void skipTo(final int position) {
+		index = position;
+	}
+
+	/**
+	 * Determines if the iterator offers the PMs of a particular list in their
+	 * order in the list, and if skipTo can be used to jump ahead in this
+	 * order. Schedulers can use this to replace parts of the iteration with
+	 * an index over the list.
+	 * 
+	 * Subclasses are not assumed to keep the order, those that keep it should
+	 * override this function.
+	 * 
+	 * @param list
+	 *            the PM list the order of which is checked
+	 * @return <i>true</i> if the iterator goes through the given list in its
+	 *         order
+	 */
+	public boolean iteratesInOrderOf(final List<PhysicalMachine> list) {
+		return getClass() == PMIterator.class && pmList == list;
+	}
+
 	@Override
 	public boolean hasNext() {
 		return index < maxIndex;
@@ -225,6 +225,56 @@ public class NetworkNode {
 		}
 	}
 
+	/**
+	 * This function allows the simplified creation of a single transfer object
+	 * that delivers the same data to several network nodes at once (i.e., it
+	 * models a multicast transfer).
+	 * 
+	 * The sender only transmits the data once, so the multicast occupies a
+	 * single share of the sender's outgoing network connection. The transfer
+	 * is received at the pace of the target with the slowest incoming network
+	 * connection, and only this target's incoming connection is occupied by
+	 * the transfer. The transfer starts after the largest latency between the
+	 * sender and the targets has passed.
+	 * 
+	 * @param size
+	 *            The amount of data to be delivered to each target (in bytes)
+	 * @param limit
+	 *            the maximum bandwidth allowed to be available for the
+	 *            transfer (in bytes/tick)
+	 * @param from
+	 *            The network node sending the data
+	 * @param to
+	 *            The network nodes receiving the data (none of them can be
+	 *            the sender)
+	 * @param e
+	 *            The object to be notified when all the targets received the
+	 *            data
+	 * @return The consumption object representing the multicast
+	 * @throws NetworkException
+	 *             if some of the targets are not connected to the sender
+	 */
+	public static ResourceConsumption initMulticastTransfer(final long size, final double limit,
+			final NetworkNode from, final NetworkNode[] to, final ResourceConsumption.ConsumptionEvent e)
+			throws NetworkException {
+		if (to.length == 0) {
+			throw new IllegalStateException("There should be at least one receiver of a multicast");
+		}
+		int latency = 0;
+		NetworkNode slowest = null;
+		for (final NetworkNode target : to) {
+			if (target == from) {
+				throw new IllegalStateException("The sender cannot receive its own multicast");
+			}
+			latency = Math.max(latency, checkConnectivity(from, target));
+			if (slowest == null
+					|| target.inbws.getPerTickProcessingPower() < slowest.inbws.getPerTickProcessingPower()) {
+				slowest = target;
+			}
+		}
+		return new SingleTransfer(latency, size, limit, slowest.inbws, from.outbws, e);
+	}
+
 	/**
 	 * This function allows the simplified creation of singletransfer objects
 	 * for modeling the operation of writing data to the disk/network of this
@@ -0,0 +1,249 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+package hu.mta.sztaki.lpds.cloud.simulator.io;
+
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
+import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Allows repositories (typically the local disks of physical machines) to
+ * serve the contents of a central repository. When a delivery is requested
+ * from the central repository, the distribution selects the source of the
+ * transfer amongst the central repository and its peers that already store
+ * the requested object.
+ * 
+ * The source is selected to minimize the estimated completion time of the
+ * delivery: the latency between the source and the target plus the time to
+ * send the object if the source's outgoing network connection is shared
+ * equally amongst its ongoing deliveries (only the deliveries initiated by
+ * this distribution are considered). Ties are resolved in favor of the central
+ * repository, then in the order of the peer registrations.
+ * 
+ * Peers only serve objects they completely store. Thus, for virtual
+ * appliances, PMs become peers once they received the appliance (e.g., with
+ * a VACache on their local disk).
+ */
+public class PeerToPeerDistribution {
+	/**
+	 * The repository which is helped by the peers
+	 */
+	public final Repository central;
+	/**
+	 * The repositories that can serve the contents of the central repository
+	 */
+	private final ArrayList<Repository> peers = new ArrayList<Repository>();
+	/**
+	 * The number of ongoing deliveries per source (sources without ongoing
+	 * deliveries are not listed).
+	 */
+	private final IdentityHashMap<Repository, int[]> activeDeliveries = new IdentityHashMap<Repository, int[]>();
+	/**
+	 * The number of deliveries served by the central repository
+	 */
+	private long centralDeliveries = 0;
+	/**
+	 * The number of deliveries served by the peers
+	 */
+	private long peerDeliveries = 0;
+
+	/**
+	 * Creates a new peer to peer distribution and associates it with the
+	 * central repository. Any previously associated distribution of the
+	 * repository is replaced.
+	 * 
+	 * @param central
+	 *            the repository which will be helped by the peers
+	 */
+	public PeerToPeerDistribution(final Repository central) {
+		this.central = central;
+		central.peerDistribution = this;
+	}
+
+	/**
+	 * Allows a new repository to serve the contents of the central one.
+	 * 
+	 * @param peer
+	 *            the new peer
+	 */
+	public void addPeer(final Repository peer) {
+		if (peer == central) {
+			throw new IllegalStateException("The central repository cannot be its own peer");
+		}
+		if (!peers.contains(peer)) {
+			peers.add(peer);
+		}
+	}
+
+	/**
+	 * Stops a repository from serving the contents of the central one.
+	 * Deliveries already initiated from the peer are not affected.
+	 * 
+	 * @param peer
+	 *            the peer to remove
+	 * @return <i>true</i> if the repository was a peer
+	 */
+	public boolean removePeer(final Repository peer) {
+		return peers.remove(peer);
+	}
+
+	/**
+	 * Delivers a storage object to the target from the best suited source.
+	 * 
+	 * @param id
+	 *            the id of the storage object to deliver
+	 * @param newId
+	 *            the id of the object in the target (null if unchanged)
+	 * @param target
+	 *            the repository to deliver to
+	 * @param ev
+	 *            the event to be fired when the delivery completes
+	 * @return <i>true</i> if the delivery was initiated
+	 * @throws NetworkException
+	 *             if none of the potential sources are connected to the
+	 *             target
+	 */
+	boolean deliver(final String id, final String newId, final Repository target,
+			final ResourceConsumption.ConsumptionEvent ev) throws NetworkException {
+		Repository selected = null;
+		double bestCost = Double.MAX_VALUE;
+		final StorageObject so = central.lookup(id);
+		if (so != null) {
+			bestCost = estimateCost(central, target, so.size);
+			selected = bestCost == Double.MAX_VALUE ? null : central;
+		}
+		for (final Repository peer : peers) {
+			if (peer == target) {
+				continue;
+			}
+			final StorageObject peerCopy = peer.lookup(id);
+			if (peerCopy != null) {
+				final double cost = estimateCost(peer, target, peerCopy.size);
+				if (cost < bestCost) {
+					bestCost = cost;
+					selected = peer;
+				}
+			}
+		}
+		if (selected == null) {
+			// Reports the issues of the central repository
+			return central.deliverContent(id, newId, target, ev);
+		}
+		final Repository source = selected;
+		final boolean initiated = source.deliverContent(id, newId, target, new ResourceConsumption.ConsumptionEvent() {
+			@Override
+			public void conComplete() {
+				deliveryDone(source);
+				if (ev != null) {
+					ev.conComplete();
+				}
+			}
+
+			@Override
+			public void conCancelled(final ResourceConsumption problematic) {
+				deliveryDone(source);
+				if (ev != null) {
+					ev.conCancelled(problematic);
+				}
+			}
+		});
+		if (initiated) {
+			final int[] active = activeDeliveries.get(source);
+			if (active == null) {
+				activeDeliveries.put(source, new int[] { 1 });
+			} else {
+				active[0]++;
+			}
+			if (source == central) {
+				centralDeliveries++;
+			} else {
+				peerDeliveries++;
+			}
+		}
+		return initiated;
+	}
+
+	/**
+	 * Estimates the time needed for a source to deliver an object
+	 * 
+	 * @param source
+	 *            the potential source of the delivery
+	 * @param target
+	 *            the repository to deliver to
+	 * @param size
+	 *            the size of the object to deliver
+	 * @return the estimated number of ticks until the delivery completes or
+	 *         Double.MAX_VALUE if the source is not connected to the target
+	 */
+	private double estimateCost(final Repository source, final Repository target, final long size) {
+		final int latency;
+		try {
+			latency = NetworkNode.checkConnectivity(source, target);
+		} catch (NetworkException e) {
+			return Double.MAX_VALUE;
+		}
+		final int[] active = activeDeliveries.get(source);
+		final int sharing = active == null ? 1 : active[0] + 1;
+		return latency + (double) size * sharing / source.outbws.getPerTickProcessingPower();
+	}
+
+	/**
+	 * Updates the load of a source after one of its deliveries finished
+	 * 
+	 * @param source
+	 *            the source which finished a delivery
+	 */
+	private void deliveryDone(final Repository source) {
+		final int[] active = activeDeliveries.get(source);
+		if (--active[0] == 0) {
+			activeDeliveries.remove(source);
+		}
+	}
+
+	/**
+	 * @return the number of deliveries served by the central repository
+	 */
+	public long getCentralDeliveries() {
+		return centralDeliveries;
+	}
+
+	/**
+	 * @return the number of deliveries served by the peers
+	 */
+	public long getPeerDeliveries() {
+		return peerDeliveries;
+	}
+
+	/**
+	 * @return the number of repositories that can serve the contents of the
+	 *         central one
+	 */
+	public int getPeerCount() {
+		return peers.size();
+	}
+}
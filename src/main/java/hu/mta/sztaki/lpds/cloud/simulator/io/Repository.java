@@ -28,10 +28,13 @@ package hu.mta.sztaki.lpds.cloud.simulator.io;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -72,6 +75,30 @@ public class Repository extends NetworkNode {
 	 * The amount of contents that are about to arrive.
 	 */
 	private long promisedStorage = 0;
+	/**
+	 * Shows if the deliveries requested within bulks should be merged into
+	 * multicast transfers
+	 */
+	private boolean multicastBulkDeliveries = false;
+	/**
+	 * The nesting level of the currently open bulk deliveries
+	 */
+	private int bulkDepth = 0;
+	/**
+	 * The deliveries collected during the current bulk, grouped by the ids of
+	 * the storage objects to deliver.
+	 */
+	private final LinkedHashMap<String, ArrayList<PendingDelivery>> bulkDeliveries = new LinkedHashMap<String, ArrayList<PendingDelivery>>();
+	/**
+	 * The peers that help this repository delivering its contents. If null,
+	 * all deliveries are served by this repository.
+	 */
+	PeerToPeerDistribution peerDistribution = null;
+	/**
+	 * The virtual appliance cache that keeps appliances on this repository for
+	 * VM deployments. If null, there is no caching.
+	 */
+	VACache vaCache = null;
 
 	/**
 	 * Constructor for repository objects
@@ -215,18 +242,50 @@ public class Repository extends NetworkNode {
 	 *            If the target is the same repository please check the specific
 	 *            requirements for newId!
 	 * @param ev
-	 *            the event to be fired if the transfer is completed
+	 *            the event to be fired if the transfer is completed (or
+	 *            cancelled)
 	 * @return true if the transfer was successfully initiated, false otherwise
 	 *         (the system will not fire a transfer event if false is returned!)
 	 */
 	public boolean requestContentDelivery(final String id, final String newId, final Repository target,
 			final ResourceConsumption.ConsumptionEvent ev) throws NetworkException {
+		if (peerDistribution != null && target != null && target != this) {
+			return peerDistribution.deliver(id, newId, target, ev);
+		}
+		return deliverContent(id, newId, target, ev);
+	}
+
+	/**
+	 * Does the actual delivery of a storage object from this repository
+	 * without considering peers. The parameters and the return value are
+	 * identical to requestContentDelivery.
+	 */
+	boolean deliverContent(final String id, final String newId, final Repository target,
+			final ResourceConsumption.ConsumptionEvent ev) throws NetworkException {
 		if (target == null || (this == target && (newId == null || newId.equals(id))))
 			return false;
 		final StorageObject totransfer = contents.get(id);
 		if (totransfer == null) {
 			return false;
 		}
+		if (bulkDepth > 0 && multicastBulkDeliveries && target != this) {
+			// The delivery is postponed until the end of the bulk, so it can
+			// be merged with the other deliveries of the same object
+			checkConnectivity(this, target);
+			return manageStoragePromise(totransfer.size, id, target, new MainStorageActivity() {
+				@Override
+				public void doStorage() {
+					ArrayList<PendingDelivery> deliveries = bulkDeliveries.get(id);
+					if (deliveries == null) {
+						// Ensures the object stays until the bulk is finished
+						underTransfer.add(id);
+						deliveries = new ArrayList<PendingDelivery>();
+						bulkDeliveries.put(id, deliveries);
+					}
+					deliveries.add(new PendingDelivery(newId, target, ev));
+				}
+			});
+		}
 		return manageStoragePromise(totransfer.size, id, target, new MainStorageActivity() {
 			@Override
 			public void doStorage() throws NetworkException {
@@ -236,13 +295,15 @@ public class Repository extends NetworkNode {
 					@Override
 					public void conComplete() {
 						underTransfer.remove(id);
-						final StorageObject toRegister = (target == Repository.this || newId != null)
-								? totransfer.newCopy(newId) : totransfer;
+						deliveryComplete(totransfer, newId, target, ev);
+					}
 
+					@Override
+					public void conCancelled(final ResourceConsumption problematic) {
+						underTransfer.remove(id);
 						target.promisedStorage -= totransfer.size;
-						target.registerObject(toRegister);
 						if (ev != null) {
-							ev.conComplete();
+							ev.conCancelled(problematic);
 						}
 					}
 				});
@@ -250,6 +311,171 @@ public class Repository extends NetworkNode {
 		});
 	}
 
+	/**
+	 * Registers a transferred storage object in its target repository and
+	 * notifies the entity who requested the transfer.
+	 * 
+	 * @param totransfer
+	 *            the storage object that arrived
+	 * @param newId
+	 *            the new id of the storage object in the target (null if the
+	 *            id is unchanged)
+	 * @param target
+	 *            the repository where the object arrived
+	 * @param ev
+	 *            the event to be fired after the registration (can be null)
+	 */
+	private void deliveryComplete(final StorageObject totransfer, final String newId, final Repository target,
+			final ResourceConsumption.ConsumptionEvent ev) {
+		final StorageObject toRegister = (target == this || newId != null) ? totransfer.newCopy(newId) : totransfer;
+		target.promisedStorage -= totransfer.size;
+		target.registerObject(toRegister);
+		if (ev != null) {
+			ev.conComplete();
+		}
+	}
+
+	/**
+	 * Allows the merging of the deliveries of the same storage object to
+	 * several targets (e.g., when the same VA is needed for lots of VMs). If
+	 * multicasting is enabled, then the deliveries requested between a
+	 * startBulkDelivery and a finishBulkDelivery call are collected and the
+	 * deliveries of the same object are done with a single multicast
+	 * transfer (see NetworkNode.initMulticastTransfer) when the bulk is
+	 * finished.
+	 * 
+	 * Bulks can be nested, the deliveries are started when the outermost bulk
+	 * is finished.
+	 */
+	public void startBulkDelivery() {
+		bulkDepth++;
+	}
+
+	/**
+	 * Finishes the current bulk of deliveries. If this was the outermost bulk,
+	 * then the collected deliveries are started.
+	 * 
+	 * @throws NetworkException
+	 *             if the transfers could not be started because of
+	 *             connectivity issues (the deliveries of the bulk that were
+	 *             not started yet are dropped without notifying their events)
+	 */
+	public void finishBulkDelivery() throws NetworkException {
+		if (bulkDepth == 0) {
+			throw new IllegalStateException("There is no bulk delivery to finish");
+		}
+		if (--bulkDepth != 0 || bulkDeliveries.isEmpty()) {
+			return;
+		}
+		final Iterator<Map.Entry<String, ArrayList<PendingDelivery>>> it = bulkDeliveries.entrySet().iterator();
+		try {
+			while (it.hasNext()) {
+				final Map.Entry<String, ArrayList<PendingDelivery>> bulk = it.next();
+				final String id = bulk.getKey();
+				final ArrayList<PendingDelivery> deliveries = bulk.getValue();
+				final StorageObject totransfer = contents.get(id);
+				final Repository[] targets = new Repository[deliveries.size()];
+				for (int i = 0; i < targets.length; i++) {
+					targets[i] = deliveries.get(i).target;
+				}
+				initMulticastTransfer(totransfer.size, ResourceConsumption.unlimitedProcessing, this, targets,
+						new ConsumptionEventAdapter() {
+							@Override
+							public void conComplete() {
+								underTransfer.remove(id);
+								for (final PendingDelivery pd : deliveries) {
+									deliveryComplete(totransfer, pd.newId, pd.target, pd.ev);
+								}
+							}
+
+							@Override
+							public void conCancelled(final ResourceConsumption problematic) {
+								bulkCancelled(id, totransfer, deliveries);
+								for (final PendingDelivery pd : deliveries) {
+									if (pd.ev != null) {
+										pd.ev.conCancelled(problematic);
+									}
+								}
+							}
+						});
+				it.remove();
+			}
+		} finally {
+			// The deliveries that could not be started are dropped
+			for (final Map.Entry<String, ArrayList<PendingDelivery>> bulk : bulkDeliveries.entrySet()) {
+				bulkCancelled(bulk.getKey(), contents.get(bulk.getKey()), bulk.getValue());
+			}
+			bulkDeliveries.clear();
+		}
+	}
+
+	/**
+	 * Releases the storage object and the promised storage of the targets of
+	 * a bulk delivery that will not complete.
+	 * 
+	 * @param id
+	 *            the id of the delivered storage object
+	 * @param totransfer
+	 *            the delivered storage object
+	 * @param deliveries
+	 *            the deliveries of the object in the bulk
+	 */
+	private void bulkCancelled(final String id, final StorageObject totransfer,
+			final ArrayList<PendingDelivery> deliveries) {
+		underTransfer.remove(id);
+		for (final PendingDelivery pd : deliveries) {
+			pd.target.promisedStorage -= totransfer.size;
+		}
+	}
+
+	/**
+	 * Enables or disables the merging of the deliveries requested within bulks
+	 * (see startBulkDelivery). Multicasting is disabled by default.
+	 * 
+	 * @param multicast
+	 *            <i>true</i> if deliveries of the same object within a bulk
+	 *            should be done with a single multicast transfer
+	 */
+	public void setMulticastBulkDeliveries(final boolean multicast) {
+		if (bulkDepth != 0) {
+			throw new IllegalStateException("Cannot change the multicast behavior during a bulk delivery");
+		}
+		multicastBulkDeliveries = multicast;
+	}
+
+	/**
+	 * Determines if deliveries of the same object within bulks are merged.
+	 * 
+	 * @return <i>true</i> if multicast transfers are used for bulks
+	 */
+	public boolean isMulticastingBulkDeliveries() {
+		return multicastBulkDeliveries;
+	}
+
+	/**
+	 * A delivery request that waits for the end of the current bulk.
+	 */
+	private static class PendingDelivery {
+		/**
+		 * the id of the delivered object in the target (null if unchanged)
+		 */
+		final String newId;
+		/**
+		 * the repository to deliver to
+		 */
+		final Repository target;
+		/**
+		 * the event to be fired when the delivery completes
+		 */
+		final ResourceConsumption.ConsumptionEvent ev;
+
+		PendingDelivery(final String newId, final Repository target, final ResourceConsumption.ConsumptionEvent ev) {
+			this.newId = newId;
+			this.target = target;
+			this.ev = ev;
+		}
+	}
+
 	/**
 	 * An internal interface for managing storage related operations
 	 * 
@@ -424,4 +650,26 @@ public class Repository extends NetworkNode {
 	public long getFreeStorageCapacity() {
 		return maxStorageCapacity - currentStorageUse - promisedStorage;
 	}
+
+	/**
+	 * Allows VMs to determine if their appliances could be cached on this
+	 * repository.
+	 * 
+	 * @return the virtual appliance cache of the repository or <i>null</i> if
+	 *         there is none.
+	 */
+	public VACache getVACache() {
+		return vaCache;
+	}
+
+	/**
+	 * Allows to determine if other repositories help this one delivering its
+	 * contents.
+	 * 
+	 * @return the peer to peer distribution of the repository or <i>null</i>
+	 *         if there is none.
+	 */
+	public PeerToPeerDistribution getPeerDistribution() {
+		return peerDistribution;
+	}
 }
@@ -0,0 +1,420 @@
+/*
+ *  ========================================================================
+ *  DIScrete event baSed Energy Consumption simulaTor 
+ *    					             for Clouds and Federations (DISSECT-CF)
+ *  ========================================================================
+ *  
+ *  This file is part of DISSECT-CF.
+ *  
+ *  DISSECT-CF is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or (at
+ *  your option) any later version.
+ *  
+ *  DISSECT-CF is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ *  General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with DISSECT-CF.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ *  (C) Copyright 2014, Gabor Kecskemeti (gkecskem@dps.uibk.ac.at,
+ *   									  kecskemeti.gabor@sztaki.mta.hu)
+ */
+
+package hu.mta.sztaki.lpds.cloud.simulator.io;
+
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
+import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps copies of recently deployed virtual appliances on a repository
+ * (typically on the local disk of a physical machine). When a VM is deployed
+ * with a virtual appliance that is already cached, its disk is cloned from the
+ * cached copy instead of transferring the appliance again from its remote
+ * source.
+ * 
+ * On a cache miss the appliance is first transferred to the cache (keeping its
+ * original id) and the VM's disk is cloned from there afterwards. Deployments
+ * requesting the same appliance while it is being transferred to the cache
+ * wait for that transfer instead of initiating new ones. If the transfer is
+ * cancelled, all the deployments waiting for it are cancelled as well.
+ * 
+ * The cache uses at most the specified capacity from the repository. If a new
+ * appliance or a VM's disk would not fit, the cache evicts appliances
+ * according to its eviction policy. Appliances that are being cloned are never
+ * evicted. If the cache cannot make room for a new appliance, the VM's disk is
+ * transferred directly from the appliance's source as if there were no cache.
+ * 
+ * The cache is associated with the repository at its construction time and is
+ * only used by the VMs that are deployed with a remote appliance source (i.e.,
+ * the cache has no effect on entirely local or remotely running VMs).
+ */
+public class VACache {
+	/**
+	 * The ways the cache can choose the appliances to be dropped if there is
+	 * not enough space for a new one.
+	 */
+	public static enum EvictionPolicy {
+		/**
+		 * the least recently used appliance is dropped first
+		 */
+		LRU,
+		/**
+		 * the least frequently used appliance is dropped first. Ties are
+		 * resolved by dropping the least recently used one.
+		 */
+		LFU
+	}
+
+	/**
+	 * The data the cache needs to know about a cached appliance.
+	 */
+	private static class CacheEntry {
+		/**
+		 * the size of the appliance in bytes
+		 */
+		final long size;
+		/**
+		 * the number of deployments that used this appliance
+		 */
+		long uses;
+
+		CacheEntry(final long size, final long uses) {
+			this.size = size;
+			this.uses = uses;
+		}
+	}
+
+	/**
+	 * A deployment waiting for the completion of a cache fill.
+	 */
+	private static class PendingClone {
+		final Repository source;
+		final String diskid;
+		final ResourceConsumption.ConsumptionEvent ev;
+
+		PendingClone(final Repository source, final String diskid, final ResourceConsumption.ConsumptionEvent ev) {
+			this.source = source;
+			this.diskid = diskid;
+			this.ev = ev;
+		}
+	}
+
+	/**
+	 * The repository on which the appliances are cached
+	 */
+	public final Repository disk;
+	/**
+	 * The maximum amount of bytes the cached appliances can occupy on the disk
+	 */
+	public final long capacity;
+	/**
+	 * The way the cache drops appliances if there is not enough space
+	 */
+	public final EvictionPolicy policy;
+	/**
+	 * The cached appliances in their least recently used order (i.e., the
+	 * first item is the least recently used appliance).
+	 */
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	/**
+	 * The appliances that are currently transferred to the cache, together
+	 * with the deployments that wait for them.
+	 */
+	private final HashMap<String, ArrayList<PendingClone>> underFill = new HashMap<String, ArrayList<PendingClone>>();
+	/**
+	 * The amount of bytes occupied (or reserved for appliances under transfer)
+	 * by the cache.
+	 */
+	private long usedCapacity = 0;
+	/**
+	 * The number of deployments that did not need to transfer their appliance
+	 * from its source.
+	 */
+	private long hits = 0;
+	/**
+	 * The number of deployments that needed to transfer their appliance from
+	 * its source.
+	 */
+	private long misses = 0;
+	/**
+	 * The number of appliances dropped from the cache.
+	 */
+	private long evictions = 0;
+
+	/**
+	 * Creates a new cache and associates it with the repository. Any
+	 * previously associated cache of the repository is replaced (but its
+	 * appliances are left on the repository).
+	 * 
+	 * @param disk
+	 *            the repository on which the appliances will be cached
+	 * @param capacity
+	 *            the maximum amount of bytes the cache can occupy on the disk
+	 * @param policy
+	 *            determines the appliance to be dropped if there is not enough
+	 *            space for a new one
+	 */
+	public VACache(final Repository disk, final long capacity, final EvictionPolicy policy) {
+		if (capacity <= 0) {
+			throw new IllegalStateException("The cache must have a positive capacity");
+		}
+		this.disk = disk;
+		this.capacity = capacity;
+		this.policy = policy;
+		disk.vaCache = this;
+	}
+
+	/**
+	 * Creates the disk of a VM on the cache's repository from the given
+	 * virtual appliance. Uses the cached copy of the appliance if possible,
+	 * otherwise transfers the appliance to the cache first.
+	 * 
+	 * @param va
+	 *            the appliance from which the VM's disk is created
+	 * @param source
+	 *            the repository which stores the appliance
+	 * @param diskid
+	 *            the storage id of the VM's disk on the cache's repository
+	 * @param ev
+	 *            the event to be fired when the VM's disk is ready
+	 * @return <i>true</i> if the creation of the disk was successfully
+	 *         initiated, <i>false</i> otherwise (the event will not be fired
+	 *         in this case)
+	 * @throws NetworkException
+	 *             if the appliance's source is not connected to the cache's
+	 *             repository
+	 */
+	public boolean deliver(final VirtualAppliance va, final Repository source, final String diskid,
+			final ResourceConsumption.ConsumptionEvent ev) throws NetworkException {
+		CacheEntry cached = entries.get(va.id);
+		if (cached != null && disk.lookup(va.id) == null) {
+			// The appliance was removed from the repository without the
+			// cache's knowledge
+			usedCapacity -= entries.remove(va.id).size;
+			cached = null;
+		}
+		if (cached != null) {
+			hits++;
+			cached.uses++;
+			return cloneToDisk(va, diskid, ev);
+		}
+		final ArrayList<PendingClone> waiting = underFill.get(va.id);
+		if (waiting != null) {
+			hits++;
+			waiting.add(new PendingClone(source, diskid, ev));
+			return true;
+		}
+		if (disk.lookup(va.id) != null) {
+			// The appliance was placed on the repository independently from
+			// the cache, it is used but not managed by the cache
+			hits++;
+			return cloneToDisk(va, diskid, ev);
+		}
+		misses++;
+		// Room for both the cached appliance and the VM's disk
+		if (va.size > capacity || !evict(va.size, 2 * va.size, null)) {
+			return source.requestContentDelivery(va.id, diskid, disk, ev);
+		}
+		final ArrayList<PendingClone> pending = new ArrayList<PendingClone>();
+		pending.add(new PendingClone(source, diskid, ev));
+		underFill.put(va.id, pending);
+		final boolean filling = source.requestContentDelivery(va.id, disk, new ConsumptionEventAdapter() {
+			@Override
+			public void conComplete() {
+				fillComplete(va);
+			}
+
+			@Override
+			public void conCancelled(final ResourceConsumption problematic) {
+				fillCancelled(va, problematic);
+			}
+		});
+		if (!filling) {
+			underFill.remove(va.id);
+			return source.requestContentDelivery(va.id, diskid, disk, ev);
+		}
+		usedCapacity += va.size;
+		return true;
+	}
+
+	/**
+	 * Registers the newly arrived appliance in the cache and creates the disks
+	 * of all the VMs that waited for it. The VMs whose disk cannot be created
+	 * (neither from the cache nor from the appliance's source) are notified
+	 * with a cancellation without a problematic consumption.
+	 * 
+	 * @param va
+	 *            the appliance that arrived to the cache's repository
+	 */
+	private void fillComplete(final VirtualAppliance va) {
+		final ArrayList<PendingClone> pending = underFill.remove(va.id);
+		entries.put(va.id, new CacheEntry(va.size, pending.size()));
+		for (final PendingClone pc : pending) {
+			try {
+				if (!cloneToDisk(va, pc.diskid, pc.ev)
+						&& !pc.source.requestContentDelivery(va.id, pc.diskid, disk, pc.ev)) {
+					System.err.println("WARNING: could not create disk " + pc.diskid + " on " + disk.getName());
+					pc.ev.conCancelled(null);
+				}
+			} catch (NetworkException e) {
+				System.err.println("WARNING: there are connectivity issues in the system." + e.getMessage());
+				pc.ev.conCancelled(null);
+			}
+		}
+	}
+
+	/**
+	 * Releases the space reserved for an appliance whose transfer to the cache
+	 * was cancelled and notifies all the VMs that waited for it.
+	 * 
+	 * @param va
+	 *            the appliance that did not arrive to the cache's repository
+	 * @param problematic
+	 *            the cancelled transfer
+	 */
+	private void fillCancelled(final VirtualAppliance va, final ResourceConsumption problematic) {
+		final ArrayList<PendingClone> pending = underFill.remove(va.id);
+		usedCapacity -= va.size;
+		for (final PendingClone pc : pending) {
+			pc.ev.conCancelled(problematic);
+		}
+	}
+
+	/**
+	 * Creates a VM's disk from the appliance on the cache's repository. Evicts
+	 * other appliances if there is not enough space for the disk.
+	 * 
+	 * @param va
+	 *            the appliance to clone
+	 * @param diskid
+	 *            the storage id of the VM's disk
+	 * @param ev
+	 *            the event to be fired when the disk is ready
+	 * @return <i>true</i> if the cloning was successfully initiated
+	 * @throws NetworkException
+	 *             never, the cloning does not involve network transfers
+	 */
+	private boolean cloneToDisk(final VirtualAppliance va, final String diskid,
+			final ResourceConsumption.ConsumptionEvent ev) throws NetworkException {
+		evict(0, va.size, va.id);
+		return disk.duplicateContent(va.id, diskid, ev);
+	}
+
+	/**
+	 * Drops appliances from the cache until the requested amount of space
+	 * becomes available.
+	 * 
+	 * @param cacheNeed
+	 *            the amount of bytes that should become available in the
+	 *            cache
+	 * @param diskNeed
+	 *            the amount of bytes that should become free on the
+	 *            repository
+	 * @param keep
+	 *            the id of the appliance that must not be dropped (can be
+	 *            null)
+	 * @return <i>true</i> if the requested space is available
+	 */
+	private boolean evict(final long cacheNeed, final long diskNeed, final String keep) {
+		while (usedCapacity + cacheNeed > capacity || disk.getFreeStorageCapacity() < diskNeed) {
+			String victim = null;
+			long victimUses = Long.MAX_VALUE;
+			// Lookups would reorder the entries, so they are iterated directly
+			for (final Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+				final String id = e.getKey();
+				if (id.equals(keep) || disk.underTransfer.contains(id)) {
+					continue;
+				}
+				final long uses = e.getValue().uses;
+				if (policy == EvictionPolicy.LRU) {
+					victim = id;
+					break;
+				} else if (uses < victimUses) {
+					victim = id;
+					victimUses = uses;
+				}
+			}
+			if (victim == null) {
+				return false;
+			}
+			disk.deregisterObject(victim);
+			usedCapacity -= entries.remove(victim).size;
+			evictions++;
+		}
+		return true;
+	}
+
+	/**
+	 * Determines if an appliance is readily available in the cache.
+	 * 
+	 * @param vaid
+	 *            the id of the appliance
+	 * @return <i>true</i> if the appliance is cached
+	 */
+	public boolean isCached(final String vaid) {
+		return entries.containsKey(vaid);
+	}
+
+	/**
+	 * @return the number of cached appliances
+	 */
+	public int getCachedCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the amount of bytes occupied or reserved by the cache
+	 */
+	public long getUsedCapacity() {
+		return usedCapacity;
+	}
+
+	/**
+	 * @return the number of deployments that did not need to transfer their
+	 *         appliance from its source
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of deployments that needed to transfer their
+	 *         appliance from its source
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of appliances dropped from the cache because of
+	 *         space constraints
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the ratio of the deployments that did not need to transfer
+	 *         their appliance from its source. 0 if there were no deployments
+	 *         yet.
+	 */
+	public double getHitRatio() {
+		final long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "VACache(" + policy + " " + usedCapacity + "/" + capacity + " hits: " + hits + " misses: " + misses
+				+ " evictions: " + evictions + ")";
+	}
+}
@@ -126,6 +126,16 @@ public class StateDependentEventHandler<T, P> {
 		}
 	}
 
+	/**
+	 * Determines if there is anyone subscribed to the events
+	 * 
+	 * @return <i>true</i> if there are listeners (including the ones that
+	 *         will only be subscribed after the current notification round)
+	 */
+	public boolean hasListeners() {
+		return !listeners.isEmpty() || !newListeners.isEmpty();
+	}
+
 	/**
 	 * Sends out the notifications via the user defined event handler for all
 	 * currently listed listeners. If there are new/cancelled subscriptions then
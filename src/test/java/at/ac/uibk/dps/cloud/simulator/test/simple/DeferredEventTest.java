@@ -86,6 +86,28 @@ public class DeferredEventTest extends TestFoundation {
 				dt.eventFired);
 	}
 
+	@Test(timeout = 100)
+	public void simultaneousEventCancelTest() {
+		final DeferredTester[] performer = new DeferredTester[limit];
+		for (int i = 0; i < limit; i++) {
+			performer[i] = new DeferredTester(delayDistribution[i] % 3 + 10);
+		}
+		final DeferredTester later = new DeferredTester(20);
+		// Cancelling every second event in a shuffled order
+		for (int i = 0; i < limit; i++) {
+			final int j = delayDistribution[i] % limit;
+			if (j % 2 == 0) {
+				performer[j].cancel();
+			}
+		}
+		Timed.simulateUntilLastEvent();
+		for (int i = 0; i < limit; i++) {
+			Assert.assertEquals("Only the not cancelled events should arrive",
+					!performer[i].isCancelled(), performer[i].eventFired);
+		}
+		Assert.assertTrue("Deferred event was not received", later.eventFired);
+	}
+
 	@Test(timeout = 100)
 	public void immediateFireTest() {
 		Assert.assertTrue("Deferred event was not received",
@@ -27,6 +27,7 @@ package at.ac.uibk.dps.cloud.simulator.test.simple.cloud;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -257,6 +258,31 @@ public class IaaSServiceTest extends IaaSRelatedFoundation {
 		Assert.assertEquals("All VMs should be destroyed by now", vms.size(), shutDownVMs);
 	}
 
+	@Test(timeout = 100)
+	public void overcommittedVMRequestTest() throws VMManagementException, NetworkException {
+		constructMinimalIaaS();
+		final ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+		for (IaaSService iaas : services) {
+			final PhysicalMachine pm = iaas.machines.get(0);
+			final Repository repo = iaas.repositories.get(0);
+			final VirtualAppliance va = (VirtualAppliance) repo.contents().iterator().next();
+			pm.setOvercommitRatios(3, 3);
+			pm.setOvercommitRatios(2, 2);
+			try {
+				iaas.requestVM(va, pm.getCapacities(), repo, 3);
+				Assert.fail("The request should not fit even the overcommitted PM");
+			} catch (VMManagementException e) {
+				// expected
+			}
+			vms.addAll(Arrays.asList(iaas.requestVM(va, pm.getCapacities(), repo, 2)));
+		}
+		Timed.simulateUntilLastEvent();
+		for (VirtualMachine vm : vms) {
+			Assert.assertEquals("The overcommitted PMs should run all VMs", VirtualMachine.State.RUNNING,
+					vm.getState());
+		}
+	}
+
 	@Test(timeout = 100)
 	public void notRunVMTerminationTest() {
 		ArrayList<Exception> exs = new ArrayList<Exception>();
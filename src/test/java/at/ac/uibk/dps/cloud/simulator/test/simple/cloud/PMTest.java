@@ -579,6 +579,166 @@ public class PMTest extends IaaSRelatedFoundation {
 				Timed.getNextFire());
 	}
 
+	@Test(timeout = 100)
+	public void allocationProbing() throws VMManagementException,
+			NetworkException {
+		preparePM();
+		final ResourceConstraints before = new ConstantConstraints(
+				pm.freeCapacities);
+		final ResourceConstraints overCPUConstraints = new ConstantConstraints(
+				pm.getCapacities().getRequiredCPUs() * 2,
+				pm.getCapacities().getRequiredProcessingPower(),
+				pm.getCapacities().getRequiredMemory());
+		final ResourceConstraints probed = pm.probeAllocation(smallConstraints,
+				true);
+		Assert.assertTrue("Probing should not change the free capacities",
+				before.compareTo(pm.freeCapacities) == 0);
+		Assert.assertNull("Strict probes should not offer partial resources",
+				pm.probeAllocation(overCPUConstraints, true));
+		final ResourceConstraints probedPartial = pm.probeAllocation(
+				overCPUConstraints, false);
+		Assert.assertEquals("Probing should not create allocations", -1,
+				Timed.getNextFire());
+		ResourceAllocation ra = pm.allocateResources(smallConstraints, true,
+				PhysicalMachine.defaultAllocLen);
+		Assert.assertTrue(
+				"The probe should offer the same resources as the allocation",
+				probed.compareTo(ra.allocated) == 0);
+		ra.cancel();
+		ra = pm.allocateResources(overCPUConstraints, false,
+				PhysicalMachine.defaultAllocLen);
+		Assert.assertTrue(
+				"The partial probe should offer the same resources as the allocation",
+				probedPartial.compareTo(ra.allocated) == 0);
+		ra.cancel();
+		pm.switchoff(null);
+		Timed.simulateUntilLastEvent();
+		try {
+			pm.probeAllocation(smallConstraints, true);
+			Assert.fail("Switched off PMs should not be probed");
+		} catch (VMManagementException e) {
+			// Expected
+		}
+	}
+
+	@Test(timeout = 100)
+	public void manyInFlightAllocations() throws VMManagementException {
+		preparePM();
+		final ResourceConstraints before = new ConstantConstraints(
+				pm.freeCapacities);
+		final ResourceConstraints tiny = new ConstantConstraints(
+				pm.getCapacities().getRequiredCPUs() / 10000,
+				pm.getCapacities().getRequiredProcessingPower(),
+				pm.getCapacities().getRequiredMemory() / 10000);
+		final ResourceAllocation[] ras = new ResourceAllocation[2000];
+		for (int i = 0; i < ras.length; i++) {
+			ras[i] = pm.allocateResources(tiny, true,
+					PhysicalMachine.defaultAllocLen);
+		}
+		for (int i = 0; i < ras.length; i += 2) {
+			Assert.assertTrue("Should be able to cancel the allocation",
+					pm.cancelAllocation(ras[i]));
+			// Repeated cancellation should not free the resources again
+			ras[i].cancel();
+		}
+		for (int i = 0; i < ras.length; i += 2) {
+			ras[i] = pm.allocateResources(tiny, true,
+					PhysicalMachine.defaultAllocLen);
+		}
+		for (int i = 0; i < ras.length; i++) {
+			Assert.assertTrue("All allocations should be known by the PM",
+					pm.cancelAllocation(ras[i]));
+		}
+		Assert.assertEquals(
+				"After all cancellations the PM should have all its CPUs free",
+				before.getRequiredCPUs(),
+				pm.freeCapacities.getRequiredCPUs(), 0.000001);
+		Assert.assertEquals(
+				"After all cancellations the PM should have all its memory free",
+				before.getRequiredMemory(),
+				pm.freeCapacities.getRequiredMemory());
+		Assert.assertEquals("No allocation should expire", -1,
+				Timed.getNextFire());
+	}
+
+	@Test(timeout = 100)
+	public void overcommittedAllocations() throws VMManagementException,
+			NetworkException {
+		preparePM();
+		try {
+			pm.setOvercommitRatios(0.5, 1);
+			Assert.fail("Should not accept overcommit ratios below 1");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		pm.setOvercommitRatios(2, 2);
+		Assert.assertEquals("Free CPUs should reflect the overcommit",
+				2 * reqcores, pm.freeCapacities.getRequiredCPUs(), 0);
+		Assert.assertEquals("Free memory should reflect the overcommit",
+				2 * reqmem, pm.freeCapacities.getRequiredMemory());
+		Assert.assertEquals("Physical capacities should not change",
+				reqcores, pm.getCapacities().getRequiredCPUs(), 0);
+		final VirtualMachine[] vms = requestVMs(pm.getCapacities(), null, 2);
+		Assert.assertNotNull("Overcommitted PMs should host both VMs", vms[1]);
+		Timed.simulateUntilLastEvent();
+		try {
+			pm.setOvercommitRatios(1, 1);
+			Assert.fail("Should not change the ratios while hosting VMs");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		Assert.assertEquals("CPUs should be committed twice", 2,
+				pm.getCPUCommitment(), 0.000001);
+		Assert.assertEquals("Memory should be committed twice", 2,
+				pm.getMemoryCommitment(), 0.000001);
+		final double taskLen = 100 * pm.getPerTickProcessingPower();
+		final long before = Timed.getFireCount();
+		for (VirtualMachine vm : vms) {
+			vm.newComputeTask(taskLen, ResourceConsumption.unlimitedProcessing,
+					new ConsumptionEventAdapter());
+		}
+		Timed.simulateUntil(Timed.getFireCount() + 10);
+		Assert.assertEquals("The PM should be fully utilized", 1,
+				pm.getCPUUtilization(), 0.000001);
+		Assert.assertEquals("The VMs should demand twice the PM's capacity",
+				2, pm.getCPUContention(), 0.000001);
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The VMs should share the physical CPUs fairly",
+				200, Timed.getFireCount() - before, 2);
+		Assert.assertEquals("Idle PMs should not have contention", 0,
+				pm.getCPUContention(), 0);
+		for (VirtualMachine vm : vms) {
+			vm.destroy(false);
+		}
+		Timed.simulateUntilLastEvent();
+		pm.setOvercommitRatios(1, 1);
+		Assert.assertTrue("Without overcommit all physical resources should be free",
+				pm.freeCapacities.compareTo(pm.getCapacities()) == 0);
+	}
+
+	@Test(timeout = 100)
+	public void mixedOvercommitChange() throws VMManagementException,
+			NetworkException {
+		preparePM();
+		pm.setOvercommitRatios(2, 1);
+		final ArrayList<ResourceConstraints> eventReceived = new ArrayList<ResourceConstraints>();
+		pm.subscribeToIncreasingFreeapacityChanges(new PhysicalMachine.CapacityChangeEvent<ResourceConstraints>() {
+			@Override
+			public void capacityChanged(ResourceConstraints newCapacity,
+					List<ResourceConstraints> newlyFreeCapacity) {
+				eventReceived.add(newCapacity);
+			}
+		});
+		pm.setOvercommitRatios(1, 2);
+		Assert.assertEquals("The growing memory should be reported even if the CPUs shrink",
+				1, eventReceived.size());
+		Assert.assertEquals("Free memory should reflect the overcommit",
+				2 * reqmem, pm.freeCapacities.getRequiredMemory());
+		pm.setOvercommitRatios(1, 1);
+		Assert.assertEquals("Shrinking capacities should not be reported", 1,
+				eventReceived.size());
+	}
+
 	@Test(expected = VMManagementException.class, timeout = 100)
 	public void duplicateVMStartup() throws VMManagementException,
 			NetworkException {
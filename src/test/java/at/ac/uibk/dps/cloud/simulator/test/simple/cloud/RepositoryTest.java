@@ -26,7 +26,9 @@
 package at.ac.uibk.dps.cloud.simulator.test.simple.cloud;
 
 import hu.mta.sztaki.lpds.cloud.simulator.Timed;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
+import hu.mta.sztaki.lpds.cloud.simulator.io.PeerToPeerDistribution;
 import hu.mta.sztaki.lpds.cloud.simulator.io.Repository;
 import hu.mta.sztaki.lpds.cloud.simulator.io.StorageObject;
 import hu.mta.sztaki.lpds.cloud.simulator.util.SeedSyncer;
@@ -283,4 +285,66 @@ public class RepositoryTest extends ConsumptionEventFoundation {
 		genericCircularTest(3, 10000000L, new int[] { 0, 1, 2, 2 }, new int[] {
 				1, 0, 1, 0 }, new long[] { 103, 218, 269, 246 });
 	}
+
+	@Test(timeout = 100)
+	public void peerToPeerDelivery() throws NetworkException {
+		final HashMap<String, Integer> lm = NetworkNodeTest.setupALatencyMap();
+		lm.put("Peer", 1);
+		lm.put("OtherTarget", NetworkNodeTest.targetlat);
+		final Repository central = new Repository(storageCapacity, NetworkNodeTest.sourceName, NetworkNodeTest.inBW,
+				NetworkNodeTest.outBW, NetworkNodeTest.diskBW, lm);
+		final Repository peer = new Repository(storageCapacity, "Peer", NetworkNodeTest.inBW, NetworkNodeTest.outBW,
+				NetworkNodeTest.diskBW, lm);
+		final Repository otherTarget = new Repository(storageCapacity, "OtherTarget", NetworkNodeTest.inBW,
+				NetworkNodeTest.outBW, NetworkNodeTest.diskBW, lm);
+		central.registerObject(so);
+		peer.registerObject(so);
+		final PeerToPeerDistribution p2p = new PeerToPeerDistribution(central);
+		p2p.addPeer(peer);
+		final long before = Timed.getFireCount();
+		Assert.assertTrue("Delivery should start",
+				central.requestContentDelivery(storageObjectID, target, new ConsumptionEventAssert()));
+		Assert.assertTrue("Delivery should start",
+				central.requestContentDelivery(storageObjectID, otherTarget, new ConsumptionEventAssert()));
+		Assert.assertEquals("The central repository should serve the first delivery", 1,
+				p2p.getCentralDeliveries());
+		Assert.assertEquals("The peer should serve the second delivery", 1, p2p.getPeerDeliveries());
+		Timed.simulateUntilLastEvent();
+		Assert.assertNotNull("The object should arrive", target.lookup(storageObjectID));
+		Assert.assertNotNull("The object should arrive", otherTarget.lookup(storageObjectID));
+		Assert.assertTrue("The deliveries should not share the central repository's network",
+				Timed.getFireCount() - before < 2 * so.size / NetworkNodeTest.outBW);
+	}
+
+	@Test(timeout = 100)
+	public void cancelledMulticastBulkDelivery() throws NetworkException {
+		final HashMap<String, Integer> lm = NetworkNodeTest.setupALatencyMap();
+		lm.put("OtherTarget", NetworkNodeTest.targetlat);
+		source = new Repository(storageCapacity, NetworkNodeTest.sourceName, NetworkNodeTest.inBW,
+				NetworkNodeTest.outBW, NetworkNodeTest.diskBW, lm);
+		target = new Repository(storageCapacity, NetworkNodeTest.targetName, NetworkNodeTest.inBW,
+				NetworkNodeTest.outBW, NetworkNodeTest.diskBW, lm);
+		final Repository otherTarget = new Repository(storageCapacity, "OtherTarget", NetworkNodeTest.inBW,
+				NetworkNodeTest.outBW, NetworkNodeTest.diskBW, lm);
+		source.registerObject(so);
+		source.setMulticastBulkDeliveries(true);
+		final ConsumptionEventAdapter first = new ConsumptionEventAdapter();
+		final ConsumptionEventAdapter second = new ConsumptionEventAdapter();
+		source.startBulkDelivery();
+		Assert.assertTrue("Delivery should start", source.requestContentDelivery(storageObjectID, target, first));
+		Assert.assertTrue("Delivery should start",
+				source.requestContentDelivery(storageObjectID, otherTarget, second));
+		source.finishBulkDelivery();
+		while (source.outbws.underProcessing.isEmpty()) {
+			Timed.fire();
+		}
+		source.outbws.underProcessing.get(0).cancel();
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("All deliveries of the bulk should be cancelled", first.isCancelled() && second.isCancelled());
+		Assert.assertEquals("The promised storage should be released", storageCapacity,
+				target.getFreeStorageCapacity());
+		Assert.assertEquals("The promised storage should be released", storageCapacity,
+				otherTarget.getFreeStorageCapacity());
+		Assert.assertTrue("The object should not be under transfer anymore", source.deregisterObject(so));
+	}
 }
@@ -27,8 +27,10 @@ package at.ac.uibk.dps.cloud.simulator.test.simple.cloud;
 
 import hu.mta.sztaki.lpds.cloud.simulator.Timed;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionPool;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.MaxMinConsumer;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.MaxMinProvider;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ProfiledResourceConsumption;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption.ConsumptionEvent;
 
@@ -349,4 +351,147 @@ public class ResourceConsumptionTest extends ConsumptionEventFoundation {
 				"The restored consumption should fire the same event as the original one",
 				cae.isCompleted());
 	}
+
+	@Test(timeout = 100)
+	public void profiledConsumption() {
+		final ConsumptionEventAssert ev = new ConsumptionEventAssert();
+		final long start = Timed.getFireCount();
+		con = new ProfiledResourceConsumption(processingTasklen, new long[] { 0, aSecond, 2 * aSecond },
+				new double[] { permsProcessing / 2, 0, permsProcessing }, utilize, offer, ev);
+		Assert.assertTrue("Profiled consumption should register", con.registerConsumption());
+		Timed.simulateUntil(start + aSecond * 3 / 2);
+		Assert.assertFalse("No processing should happen without demand", con.isRegistered());
+		Assert.assertEquals("The first part of the profile should process half of the consumption",
+				processingTasklen / 2, con.getUnProcessed(), processingTasklen / 1000);
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("Profiled consumption should complete", ev.isCompleted());
+		Assert.assertEquals("The last part of the profile should use the full processing power",
+				start + 2 * aSecond + aSecond / 2, ev.getArrivedAt(), 1);
+	}
+
+	@Test(expected = IllegalStateException.class, timeout = 100)
+	public void malformedProfile() {
+		new ProfiledResourceConsumption(processingTasklen, new long[] { 0, 0 }, new double[] { 1, 1 }, utilize,
+				offer, new ConsumptionEventAssert());
+	}
+
+	private long[] runMixedLengthConsumptions() {
+		final ConsumptionEventAssert shortEv = new ConsumptionEventAssert();
+		final ConsumptionEventAssert longEv = new ConsumptionEventAssert();
+		final ResourceConsumption shortCon = new ResourceConsumption(processingTasklen / 3,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, shortEv);
+		final ResourceConsumption longCon = new ResourceConsumption(processingTasklen * 2,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, longEv);
+		shortCon.registerConsumption();
+		longCon.registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("Should not have any remaining processing", 0,
+				shortCon.getUnProcessed() + longCon.getUnProcessed(), 0);
+		return new long[] { shortEv.getArrivedAt() - before, longEv.getArrivedAt() - before };
+	}
+
+	@Test(timeout = 100)
+	public void fixedPointAccounting() {
+		final long[] floating = runMixedLengthConsumptions();
+		final double floatingTotal = offer.getTotalProcessed();
+		setupConsumption();
+		ResourceConsumption.setFixedPointScale(1000000000L);
+		try {
+			final long[] fixed = runMixedLengthConsumptions();
+			Assert.assertEquals("Short consumption should complete at the same time", floating[0], fixed[0], 1);
+			Assert.assertEquals("Long consumption should complete at the same time", floating[1], fixed[1], 1);
+			Assert.assertEquals("Should process the same amount", floatingTotal, offer.getTotalProcessed(),
+					processingTasklen / 1000000);
+			Assert.assertEquals("Provider and consumer should process the same amount",
+					offer.getTotalProcessed(), utilize.getTotalProcessed(), processingTasklen / 1000000);
+		} finally {
+			ResourceConsumption.setFixedPointScale(0);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void fixedPointRange() {
+		ResourceConsumption.setFixedPointScale(1000000000L);
+		try {
+			final MaxMinProvider fastOffer = new MaxMinProvider(1e11);
+			final MaxMinConsumer fastUtilize = new MaxMinConsumer(1e11);
+			final ConsumptionEventAssert bigEv = new ConsumptionEventAssert();
+			final ResourceConsumption big = new ResourceConsumption(1e10, ResourceConsumption.unlimitedProcessing,
+					fastUtilize, fastOffer, bigEv);
+			Assert.assertTrue("Big totals should use a coarser scale", big.isFixedPoint());
+			Assert.assertEquals("The total should be kept", 1e10, big.getUnProcessed(), 0);
+			final ConsumptionEventAssert fastEv = new ConsumptionEventAssert();
+			final ResourceConsumption fast = new ResourceConsumption(processingTasklen,
+					ResourceConsumption.unlimitedProcessing, fastUtilize, fastOffer, fastEv);
+			final long before = Timed.getFireCount();
+			Assert.assertTrue("Registration should succeed", big.registerConsumption());
+			Assert.assertTrue("Limits beyond the scale's range should be accepted", fast.registerConsumption());
+			Timed.simulateUntilLastEvent();
+			Assert.assertTrue("Both consumptions should complete", bigEv.isCompleted() && fastEv.isCompleted());
+			Assert.assertEquals("The fast consumption should complete in a tick", 1, fastEv.getArrivedAt() - before);
+			Assert.assertEquals("The big consumption should take the processing time", 1,
+					bigEv.getArrivedAt() - before, 1);
+		} finally {
+			ResourceConsumption.setFixedPointScale(0);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void pooledConsumptionReuse() {
+		final ConsumptionPool pool = new ConsumptionPool(false);
+		final ConsumptionEventAdapter first = new ConsumptionEventAdapter();
+		final ResourceConsumption pooled = pool.acquire(processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, first);
+		final long firstStart = Timed.getFireCount();
+		pooled.registerConsumption();
+		Timed.simulateUntilLastEvent();
+		final long firstDuration = Timed.getFireCount() - firstStart;
+		Assert.assertTrue("The pooled consumption should complete",
+				first.isCompleted());
+		pool.release(pooled);
+		try {
+			pooled.registerConsumption();
+			Assert.fail("Released consumptions should not be usable");
+		} catch (IllegalStateException ex) {
+			// Expected after release
+		}
+		try {
+			ResourceConsumption.registerConsumptions(new ResourceConsumption[] { pooled }, 1);
+			Assert.fail("Released consumptions should not be usable in bulk registrations");
+		} catch (IllegalStateException ex) {
+			// Expected after release
+		}
+		final ConsumptionEventAdapter second = new ConsumptionEventAdapter();
+		final ResourceConsumption reused = pool.acquire(processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, second);
+		Assert.assertSame("The released consumption should be reused",
+				pooled, reused);
+		Assert.assertEquals("The reused consumption should be reset",
+				processingTasklen, reused.getUnProcessed(), 0);
+		final long before = Timed.getFireCount();
+		reused.registerConsumption();
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The reused consumption should complete",
+				second.isCompleted());
+		Assert.assertFalse("The former event should not be notified again",
+				first.isCancelled());
+		Assert.assertEquals("The reused consumption should take its full time",
+				firstDuration, Timed.getFireCount() - before);
+		Assert.assertEquals("Only one consumption should be created", 1,
+				pool.getCreatedCount());
+		Assert.assertEquals("The consumption should be reused once", 1,
+				pool.getReusedCount());
+		final ConsumptionPool debugPool = new ConsumptionPool(true);
+		final ResourceConsumption quarantined = debugPool.acquire(
+				processingTasklen, ResourceConsumption.unlimitedProcessing,
+				utilize, offer, new ConsumptionEventAdapter());
+		quarantined.cancel();
+		debugPool.release(quarantined);
+		Assert.assertNotSame(
+				"Debug pools should not reuse released consumptions",
+				quarantined, debugPool.acquire(processingTasklen,
+						ResourceConsumption.unlimitedProcessing, utilize,
+						offer, new ConsumptionEventAdapter()));
+	}
 }
@@ -25,18 +25,25 @@
 
 package at.ac.uibk.dps.cloud.simulator.test.simple.cloud;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import at.ac.uibk.dps.cloud.simulator.test.CompletionCounter;
 import at.ac.uibk.dps.cloud.simulator.test.ConsumptionEventAssert;
 import at.ac.uibk.dps.cloud.simulator.test.ConsumptionEventFoundation;
 import hu.mta.sztaki.lpds.cloud.simulator.Timed;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.BatchConsumptionEvent;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.CompactTaskSet;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.GroupTelemetry;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.MaxMinConsumer;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.MaxMinProvider;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
@@ -274,6 +281,540 @@ public class ResourceSpreadingTest extends ConsumptionEventFoundation {
 				afterSingleCons - afterImmediate, afterImmediate - beforeImmediate);
 	}
 
+	@Test(timeout = 100)
+	public void suspendAndResumeInSingleTick() {
+		ConsumptionEventAssert ev = new ConsumptionEventAssert();
+		ResourceConsumption con = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, ev);
+		con.registerConsumption();
+		Timed.fire();
+		con.suspend();
+		con.registerConsumption();
+		Timed.fire();
+		Assert.assertEquals("The provider should list the resumed consumption only once", 1,
+				offer.underProcessing.size());
+		Assert.assertEquals("The consumer should list the resumed consumption only once", 1,
+				utilize.underProcessing.size());
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The resumed consumption should complete", ev.isCompleted());
+		Assert.assertTrue("No consumptions should remain after completion",
+				offer.underProcessing.isEmpty() && utilize.underProcessing.isEmpty());
+	}
+
+	@Test(timeout = 100)
+	public void manyConsumptionRemovals() {
+		final int count = 1000;
+		final ConsumptionEventAssert[] evs = new ConsumptionEventAssert[count];
+		final ResourceConsumption[] cons = new ResourceConsumption[count];
+		for (int i = 0; i < count; i++) {
+			evs[i] = new ConsumptionEventAssert();
+			cons[i] = new ResourceConsumption(ResourceConsumptionTest.processingTasklen * (1 + i % 7),
+					ResourceConsumption.unlimitedProcessing, utilize, offer, evs[i]);
+			cons[i].registerConsumption();
+		}
+		Timed.fire();
+		for (int i = 0; i < count; i += 3) {
+			cons[i].cancel();
+		}
+		Timed.simulateUntilLastEvent();
+		for (int i = 0; i < count; i++) {
+			Assert.assertTrue("Every consumption should receive its event", evs[i].isCompleted() ^ (i % 3 == 0));
+			Assert.assertEquals("Cancelled consumptions should be reported", i % 3 == 0, evs[i].isCancelled());
+		}
+		Assert.assertTrue("No consumptions should remain after completion",
+				offer.underProcessing.isEmpty() && utilize.underProcessing.isEmpty());
+	}
+
+	private class ChurningEvent extends ConsumptionEventAdapter {
+		int completions = 0;
+		final double len;
+
+		public ChurningEvent(final double len) {
+			this.len = len;
+		}
+
+		@Override
+		public void conComplete() {
+			completions++;
+			new ResourceConsumption(len, ResourceConsumption.unlimitedProcessing, utilize, offer, this)
+					.registerConsumption();
+		}
+	}
+
+	private static long allocatedBytes(final com.sun.management.ThreadMXBean mx) {
+		return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test(timeout = 5000)
+	public void steadyStateAllocations() {
+		final java.lang.management.ThreadMXBean plainMX = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(plainMX instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) plainMX;
+		Assume.assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+		final int parallelTasks = 8;
+		final int measuredCount = 20000;
+		final ResourceConsumption[] reference = new ResourceConsumption[measuredCount];
+		final ChurningEvent[] evs = new ChurningEvent[parallelTasks];
+		for (int i = 0; i < parallelTasks; i++) {
+			evs[i] = new ChurningEvent(ResourceConsumptionTest.processingTasklen * (i + 1));
+			evs[i].conComplete();
+		}
+		// Warming up so all internal lists and buffers reach their final size
+		Timed.simulateUntil(Timed.getFireCount() + 1000000);
+		// The cost of the consumption objects themselves
+		long before = allocatedBytes(mx);
+		for (int i = 0; i < measuredCount; i++) {
+			reference[i] = new ResourceConsumption(1, ResourceConsumption.unlimitedProcessing, utilize, offer,
+					evs[0]);
+		}
+		final long perConsumption = (allocatedBytes(mx) - before) / measuredCount;
+		int completionsBefore = 0;
+		for (ChurningEvent ev : evs) {
+			completionsBefore += ev.completions;
+		}
+		before = allocatedBytes(mx);
+		Timed.simulateUntil(Timed.getFireCount() + 10000000);
+		final long allocated = allocatedBytes(mx) - before;
+		int completions = -completionsBefore;
+		for (ChurningEvent ev : evs) {
+			completions += ev.completions;
+		}
+		Assert.assertTrue("There should be some completions to measure", completions > 1000);
+		Assert.assertTrue("Steady state processing should not allocate beyond the consumptions (allocated: "
+				+ allocated + " bytes for " + completions + " completions)",
+				allocated <= completions * perConsumption + 1024);
+	}
+
+	@Test(timeout = 100)
+	public void lazyTotalProcessing() {
+		ResourceConsumption con1 = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, new ConsumptionEventAssert());
+		ResourceConsumption con2 = new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 2,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, new ConsumptionEventAssert());
+		con1.registerConsumption();
+		con2.registerConsumption();
+		Timed.fire();
+		final double unprocessed = con1.getUnProcessed() + con2.getUnProcessed();
+		Timed.simulateUntil(Timed.getFireCount() + 100);
+		final double offerTotal = offer.getTotalProcessed();
+		final double utilizeTotal = utilize.getTotalProcessed();
+		Assert.assertTrue("Some processing should be reported", offerTotal > 0);
+		Assert.assertEquals("Querying the totals should not process the consumptions", unprocessed,
+				con1.getUnProcessed() + con2.getUnProcessed(), 0);
+		Assert.assertEquals("Provider and consumer should report the same amount", offerTotal, utilizeTotal, 1e-12);
+		// Snapshots need the consumptions processed
+		offer.getSpreaderState();
+		utilize.getSpreaderState();
+		Assert.assertEquals("The processing of the consumptions should not alter the totals", offerTotal,
+				offer.getTotalProcessed(), 1e-12);
+		Assert.assertEquals("The consumptions should be processed with the reported amount", unprocessed - utilizeTotal,
+				con1.getUnProcessed() + con2.getUnProcessed(), 1e-12);
+	}
+
+	private long runSharedProcessing(final int coalesced, final boolean useMultiplicity, final CompletionCounter ev) {
+		final ResourceConsumption single = new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 2,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, ev);
+		if (useMultiplicity) {
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+					utilize, offer, ev, coalesced).registerConsumption();
+		} else {
+			for (int i = 0; i < coalesced; i++) {
+				new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+						ResourceConsumption.unlimitedProcessing, utilize, offer, ev).registerConsumption();
+			}
+		}
+		single.registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		return ev.getLastCompletion() - before;
+	}
+
+	@Test(timeout = 100)
+	public void coalescedConsumptions() {
+		final int k = 3;
+		final CompletionCounter separateEv = new CompletionCounter();
+		final long separateDuration = runSharedProcessing(k, false, separateEv);
+		final double separateProcessed = offer.getTotalProcessed();
+		setup();
+		final CompletionCounter coalescedEv = new CompletionCounter();
+		final long coalescedDuration = runSharedProcessing(k, true, coalescedEv);
+		Assert.assertEquals("Every represented consumption should be reported complete", k + 1,
+				coalescedEv.getCompletions());
+		Assert.assertEquals("Coalesced consumptions should take as long as separate ones", separateDuration,
+				coalescedDuration);
+		Assert.assertEquals("Coalesced consumptions should process as much as separate ones", separateProcessed,
+				offer.getTotalProcessed(), separateProcessed * 1e-10);
+		Assert.assertEquals("The consumer should process the same amount", offer.getTotalProcessed(),
+				utilize.getTotalProcessed(), separateProcessed * 1e-10);
+	}
+
+	@Test(expected = IllegalStateException.class, timeout = 100)
+	public void invalidMultiplicity() {
+		new ResourceConsumption(1, ResourceConsumption.unlimitedProcessing, utilize, offer,
+				new ConsumptionEventAssert(), 0);
+	}
+
+	private long[] runSingleProviderGroup(final MaxMinConsumer limited) {
+		final MaxMinConsumer other = new MaxMinConsumer(ResourceConsumptionTest.permsProcessing);
+		final CompletionCounter otherEv = new CompletionCounter();
+		final CompletionCounter limitedEv = new CompletionCounter();
+		new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+				other, offer, otherEv, 3).registerConsumption();
+		new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+				limited, offer, limitedEv).registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("All consumptions should complete", 4, otherEv.getCompletions() + limitedEv.getCompletions());
+		return new long[] { otherEv.getLastCompletion() - before, limitedEv.getLastCompletion() - before };
+	}
+
+	@Test(timeout = 100)
+	public void singleProviderSharing() {
+		final long[] shared = runSingleProviderGroup(utilize);
+		Assert.assertEquals("Equal consumptions should finish together if only the provider limits them", shared[0],
+				shared[1]);
+		Assert.assertEquals("Processing should be shared equally among the consumptions",
+				(long) (4 * ResourceConsumptionTest.processingTasklen / ResourceConsumptionTest.permsProcessing),
+				shared[0]);
+		final long[] limited = runSingleProviderGroup(
+				new MaxMinConsumer(ResourceConsumptionTest.permsProcessing / 8));
+		Assert.assertTrue("The limited consumer should not get the equal share", limited[1] > shared[1]);
+		Assert.assertTrue("The unused share of the limited consumer should be given to the others",
+				limited[0] < shared[0]);
+	}
+
+	@Test(timeout = 100)
+	public void processorSharingCompletionOrder() {
+		final MaxMinProvider prov = new MaxMinProvider(1);
+		final CompletionCounter[] evs = new CompletionCounter[4];
+		final long t0 = Timed.getFireCount();
+		// Registered in reverse order of their sizes
+		for (int i = 3; i >= 0; i--) {
+			evs[i] = new CompletionCounter();
+			new ResourceConsumption((i + 1) * 1000, ResourceConsumption.unlimitedProcessing, new MaxMinConsumer(1),
+					prov, evs[i]).registerConsumption();
+		}
+		final CompletionCounter cancelledEv = new CompletionCounter();
+		final ResourceConsumption cancelled = new ResourceConsumption(5000, ResourceConsumption.unlimitedProcessing,
+				new MaxMinConsumer(1), prov, cancelledEv);
+		cancelled.registerConsumption();
+		Timed.simulateUntil(t0 + 1000);
+		cancelled.cancel();
+		final CompletionCounter lateEv = new CompletionCounter();
+		new ResourceConsumption(100, ResourceConsumption.unlimitedProcessing, new MaxMinConsumer(1), prov, lateEv)
+				.registerConsumption();
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The cancelled consumption should not complete", 0, cancelledEv.getCompletions());
+		Assert.assertEquals("The late consumption should complete first", 1500, lateEv.getLastCompletion() - t0, 1);
+		// 200 units were processed from each consumption in the first 1000
+		// ticks, then 100 more while the late one was present
+		final long[] expected = { 4300, 7300, 9300, 10300 };
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals("Consumption " + i + " should complete once", 1, evs[i].getCompletions());
+			Assert.assertEquals("Consumption " + i + " should complete as with processor sharing", expected[i],
+					evs[i].getLastCompletion() - t0, 1);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void quantizedCompletions() {
+		final long quantum = 5000;
+		ResourceSpreader.resetQuantizationErrorBound();
+		ResourceSpreader.setCompletionQuantum(quantum);
+		try {
+			final CompletionCounter ev = new CompletionCounter();
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+					utilize, offer, ev).registerConsumption();
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 1.2,
+					ResourceConsumption.unlimitedProcessing, utilize, offer, ev).registerConsumption();
+			final long before = Timed.getFireCount();
+			Timed.simulateUntil(before + quantum * 2);
+			Assert.assertEquals("Both consumptions should complete in the first quantum", 2, ev.getCompletions());
+			Assert.assertEquals("The completions should be reported at the end of the quantum", quantum,
+					ev.getLastCompletion() - before);
+			Assert.assertEquals("All processing should be done",
+					ResourceConsumptionTest.processingTasklen * 2.2, offer.getTotalProcessed(),
+					ResourceConsumptionTest.processingTasklen * 1e-10);
+			final long bound = ResourceSpreader.getQuantizationErrorBound();
+			Assert.assertTrue("The error bound should reflect the rounding", bound > 0 && bound < quantum);
+		} finally {
+			ResourceSpreader.setCompletionQuantum(1);
+		}
+	}
+
+	private long runQuantizedPair(final boolean metered) {
+		final MaxMinProvider prov = new MaxMinProvider(1);
+		final MaxMinConsumer cons = new MaxMinConsumer(1);
+		final CompletionCounter ev = new CompletionCounter();
+		new ResourceConsumption(1000, ResourceConsumption.unlimitedProcessing, cons, prov, ev).registerConsumption();
+		new ResourceConsumption(3000, ResourceConsumption.unlimitedProcessing, cons, prov, ev).registerConsumption();
+		final long before = Timed.getFireCount();
+		if (metered) {
+			double lastTotal = 0;
+			while (ev.getCompletions() < 2) {
+				Timed.simulateUntil(Timed.getFireCount() + 7);
+				final double total = prov.getTotalProcessed();
+				Assert.assertTrue("The metered total should not decrease", total >= lastTotal);
+				Assert.assertTrue("The consumer should not process more than it got", cons.getTotalProcessed() <= total);
+				lastTotal = total;
+			}
+			Assert.assertEquals("All processing should be metered", 4000, prov.getTotalProcessed(), 1e-6);
+		} else {
+			Timed.simulateUntilLastEvent();
+		}
+		Assert.assertEquals("Both consumptions should complete", 2, ev.getCompletions());
+		return ev.getLastCompletion() - before;
+	}
+
+	@Test(timeout = 100)
+	public void quantizedCompletionsWithMetering() {
+		final long quantum = 5000;
+		ResourceSpreader.resetQuantizationErrorBound();
+		ResourceSpreader.setCompletionQuantum(quantum);
+		try {
+			final long unmetered = runQuantizedPair(false);
+			Assert.assertEquals("The completions should be postponed to the quanta", 2 * quantum, unmetered);
+			Assert.assertEquals("Metering should not undo the quantization", unmetered, runQuantizedPair(true));
+			// The exact simulation would complete the pair at 4000
+			Assert.assertTrue("The error bound should cover the accumulated delay",
+					ResourceSpreader.getQuantizationErrorBound() >= unmetered - 4000);
+		} finally {
+			ResourceSpreader.setCompletionQuantum(1);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void weightedSharing() {
+		final ConsumptionEventAssert lightEv = new ConsumptionEventAssert();
+		final ConsumptionEventAssert heavyEv = new ConsumptionEventAssert();
+		final ResourceConsumption light = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, lightEv);
+		final ResourceConsumption heavy = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, heavyEv);
+		heavy.setWeight(3);
+		light.registerConsumption();
+		heavy.registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The heavy consumption should receive three quarters of the resources",
+				(double) aSecond * 4 / 3, heavyEv.getArrivedAt() - before, 2);
+		Assert.assertEquals("The light consumption should use all resources after the heavy one completed",
+				(double) aSecond * 2, lightEv.getArrivedAt() - before, 2);
+	}
+
+	@Test(timeout = 100)
+	public void prioritySharing() {
+		final ConsumptionEventAssert lowEv = new ConsumptionEventAssert();
+		final ConsumptionEventAssert highEv = new ConsumptionEventAssert();
+		final ResourceConsumption low = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, lowEv);
+		final ResourceConsumption high = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, offer, highEv);
+		high.setPriorityClass(1);
+		low.registerConsumption();
+		high.registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntil(before + aSecond / 2);
+		Assert.assertEquals("The low priority consumption should not be processed while the high one is running",
+				ResourceConsumptionTest.processingTasklen, low.getUnProcessed(), 0);
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The high priority consumption should receive all resources",
+				aSecond, highEv.getArrivedAt() - before, 1);
+		Assert.assertEquals("The low priority consumption should only be processed after the high one",
+				aSecond * 2, lowEv.getArrivedAt() - before, 1);
+	}
+
+	@Test(timeout = 100)
+	public void groupTelemetry() throws IOException {
+		GroupTelemetry.reset();
+		GroupTelemetry.setEnabled(true);
+		try {
+			final MaxMinProvider otherOffer = new MaxMinProvider(ResourceConsumptionTest.permsProcessing);
+			final MaxMinConsumer otherUtilize = new MaxMinConsumer(ResourceConsumptionTest.permsProcessing);
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 4,
+					ResourceConsumption.unlimitedProcessing, utilize, offer, new ConsumptionEventAssert())
+							.registerConsumption();
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 4,
+					ResourceConsumption.unlimitedProcessing, otherUtilize, otherOffer, new ConsumptionEventAssert())
+							.registerConsumption();
+			Timed.fire();
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+					utilize, otherOffer, new ConsumptionEventAssert()).registerConsumption();
+			Timed.fire();
+			final ResourceSpreader.FreqSyncer merged = offer.getSyncer();
+			Assert.assertSame("The groups should be merged", merged, otherOffer.getSyncer());
+			Assert.assertEquals("The merged group should have all spreaders", 4, merged.getDGLen());
+			Assert.assertEquals("A single merge should be recorded", 1, GroupTelemetry.getMerges());
+			Assert.assertEquals("The merged group should know about its merge", 1, merged.getMergeCount());
+			Timed.simulateUntilLastEvent();
+			Assert.assertEquals("The merged group should split once the linking consumption completes", 1,
+					GroupTelemetry.getSplits());
+			Assert.assertEquals("Every frequency update should be recorded", GroupTelemetry.getFreqUpdates(),
+					GroupTelemetry.getGroupSizes().getCount());
+			Assert.assertEquals("The largest group had four spreaders", 4, GroupTelemetry.getGroupSizes().getMax());
+			Assert.assertEquals("The largest group had two providers", 2, GroupTelemetry.getProviderCounts().getMax());
+			Assert.assertTrue("The generic scheduler should have been used for the two provider group",
+					GroupTelemetry.getSolverIterations().getMax() > 0);
+			final StringBuilder sb = new StringBuilder();
+			GroupTelemetry.export(sb);
+			Assert.assertTrue("The export should contain the group sizes", sb.toString().contains("groupSize,4,"));
+		} finally {
+			GroupTelemetry.setEnabled(false);
+			GroupTelemetry.reset();
+		}
+	}
+
+	private class BatchCounter extends ConsumptionEventAdapter implements BatchConsumptionEvent {
+		final ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+		final ArrayList<Long> batchTimes = new ArrayList<Long>();
+		boolean followUp = true;
+
+		@Override
+		public void conComplete() {
+			Assert.fail("Batch events should not receive individual completions");
+		}
+
+		@Override
+		public void conBatchComplete(final List<ResourceConsumption> completed) {
+			batchSizes.add(completed.size());
+			batchTimes.add(Timed.getFireCount());
+			if (followUp) {
+				followUp = false;
+				new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+						ResourceConsumption.unlimitedProcessing, utilize, offer, this).registerConsumption();
+			}
+		}
+	}
+
+	@Test(timeout = 100)
+	public void batchedCompletions() {
+		final BatchCounter batch = new BatchCounter();
+		final CompletionCounter single = new CompletionCounter();
+		final int count = 5;
+		for (int i = 0; i < count; i++) {
+			new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+					utilize, offer, batch).registerConsumption();
+		}
+		new ResourceConsumption(ResourceConsumptionTest.processingTasklen, ResourceConsumption.unlimitedProcessing,
+				utilize, offer, single).registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The simultaneous completions and the follow up should cause two batches", 2,
+				batch.batchSizes.size());
+		Assert.assertEquals("All simultaneous completions should be in the first batch", count,
+				(int) batch.batchSizes.get(0));
+		Assert.assertEquals("The follow up should complete alone", 1, (int) batch.batchSizes.get(1));
+		Assert.assertEquals("Non batch events should still receive their notifications", 1, single.getCompletions());
+		Assert.assertEquals("The batch should arrive together with the regular notification", single.getLastCompletion(),
+				(long) batch.batchTimes.get(0));
+		Assert.assertEquals("The follow up should be processed with the full capacity of the provider",
+				aSecond, batch.batchTimes.get(1) - batch.batchTimes.get(0), 1);
+		Assert.assertTrue("The first batch should arrive after the shared processing",
+				batch.batchTimes.get(0) - before >= aSecond * (count + 1) - 1);
+	}
+
+	@Test(timeout = 100)
+	public void interleavedBatchCompletions() {
+		final ArrayList<BatchCounter> callOrder = new ArrayList<BatchCounter>();
+		final BatchCounter[] batches = new BatchCounter[2];
+		final ArrayList<ArrayList<ResourceConsumption>> owned = new ArrayList<ArrayList<ResourceConsumption>>();
+		for (int i = 0; i < batches.length; i++) {
+			final ArrayList<ResourceConsumption> mine = new ArrayList<ResourceConsumption>();
+			owned.add(mine);
+			batches[i] = new BatchCounter() {
+				@Override
+				public void conBatchComplete(final List<ResourceConsumption> completed) {
+					callOrder.add(this);
+					Assert.assertTrue("Only the own consumptions should be listed", mine.containsAll(completed));
+					super.conBatchComplete(completed);
+				}
+			};
+			batches[i].followUp = false;
+		}
+		final int count = 3;
+		for (int i = 0; i < count * batches.length; i++) {
+			final ResourceConsumption con = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+					ResourceConsumption.unlimitedProcessing, utilize, offer, batches[i % batches.length]);
+			owned.get(i % batches.length).add(con);
+			con.registerConsumption();
+		}
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("Every batch event should be called once", batches.length, callOrder.size());
+		for (int i = 0; i < batches.length; i++) {
+			Assert.assertSame("The events should be called in their first completion's order", batches[i],
+					callOrder.get(i));
+			Assert.assertEquals("All completions of the event should be in its batch", count,
+					(int) batches[i].batchSizes.get(0));
+		}
+	}
+
+	private static class CompactRecorder implements CompactTaskSet.TaskEvent {
+		final ArrayList<Long> completed = new ArrayList<Long>();
+		final ArrayList<Long> completedAt = new ArrayList<Long>();
+		final ArrayList<Long> cancelled = new ArrayList<Long>();
+
+		@Override
+		public void taskComplete(final long id) {
+			completed.add(id);
+			completedAt.add(Timed.getFireCount());
+		}
+
+		@Override
+		public void taskCancelled(final long id) {
+			cancelled.add(id);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void compactTasksMixedWithRegularOnes() {
+		final CompactRecorder rec = new CompactRecorder();
+		final CompactTaskSet set = new CompactTaskSet(utilize, offer, ResourceConsumption.unlimitedProcessing, rec);
+		set.addTasks(new long[] { 1, 2, 3 }, new double[] { ResourceConsumptionTest.processingTasklen,
+				ResourceConsumptionTest.processingTasklen * 2, ResourceConsumptionTest.processingTasklen * 3 }, 3);
+		final CompletionCounter regular = new CompletionCounter();
+		new ResourceConsumption(ResourceConsumptionTest.processingTasklen * 2, ResourceConsumption.unlimitedProcessing,
+				utilize, offer, regular).registerConsumption();
+		final long before = Timed.getFireCount();
+		Timed.fire();
+		Assert.assertEquals("All tasks should be represented by a single consumption", 2,
+				offer.underProcessing.size());
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("All compact tasks should complete", 3, rec.completed.size());
+		Assert.assertTrue("No compact task should be cancelled", rec.cancelled.isEmpty());
+		Assert.assertEquals("The shortest task should complete first", 1L, (long) rec.completed.get(0));
+		Assert.assertEquals("The compact tasks should share like regular consumptions", aSecond * 4,
+				rec.completedAt.get(0) - before, 2);
+		Assert.assertEquals("The compact tasks should share like regular consumptions", aSecond * 7,
+				rec.completedAt.get(1) - before, 2);
+		Assert.assertEquals("The compact tasks should share like regular consumptions", aSecond * 8,
+				rec.completedAt.get(2) - before, 2);
+		Assert.assertEquals("The regular consumption should be unaffected by the compact representation",
+				aSecond * 7, regular.getLastCompletion() - before, 2);
+		Assert.assertEquals("No task should remain", 0, set.getTaskCount());
+		Assert.assertNull("No carrier should remain", set.getCarrier());
+	}
+
+	@Test(timeout = 100)
+	public void compactTaskArrivalsAndCancellations() {
+		final CompactRecorder rec = new CompactRecorder();
+		final CompactTaskSet set = new CompactTaskSet(utilize, offer, ResourceConsumption.unlimitedProcessing, rec);
+		set.addTask(1, ResourceConsumptionTest.processingTasklen * 2);
+		set.addTask(0, 0);
+		Assert.assertEquals("Empty tasks should complete right away", 0L, (long) rec.completed.get(0));
+		final long before = Timed.getFireCount();
+		Timed.simulateUntil(before + aSecond);
+		set.addTask(2, ResourceConsumptionTest.processingTasklen);
+		set.addTask(3, ResourceConsumptionTest.processingTasklen * 10);
+		Timed.simulateUntil(before + aSecond * 2);
+		set.cancelTask(3);
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The long task should be cancelled", Collections.singletonList(3L), rec.cancelled);
+		Assert.assertEquals("The remaining tasks should complete", 3, rec.completed.size());
+		// 1 unit alone, 1/3 units with the newcomers, then 2/3 units halved
+		Assert.assertEquals("After the cancellation the remaining tasks should share the provider",
+				aSecond * 10 / 3, rec.completedAt.get(2) - before, 2);
+	}
+
 	@Test(timeout = 100)
 	public void groupManagement() {
 		MaxMinProvider prov1 = new MaxMinProvider(1);
@@ -290,6 +831,42 @@ public class ResourceSpreadingTest extends ConsumptionEventFoundation {
 
 	}
 	
+	private static class CountingState extends ResourceSpreader.SpreaderState {
+		CountingState(final ResourceSpreader spreader) {
+			super(spreader);
+		}
+
+		int consumptionCount() {
+			return consumptions.size();
+		}
+
+		@Override
+		protected ResourceSpreader instantiate() {
+			return new MaxMinProvider(perTickProcessingPower);
+		}
+	}
+
+	@Test(timeout = 100)
+	public void snapshotOfReregisteredConsumption() {
+		final MaxMinProvider countedOffer = new MaxMinProvider(ResourceConsumptionTest.permsProcessing) {
+			@Override
+			protected ResourceSpreader.SpreaderState createSpreaderState() {
+				return new CountingState(this);
+			}
+		};
+		final ResourceConsumption con = new ResourceConsumption(ResourceConsumptionTest.processingTasklen,
+				ResourceConsumption.unlimitedProcessing, utilize, countedOffer, new ConsumptionEventAssert());
+		con.registerConsumption();
+		Timed.fire();
+		// Suspended and registered again in the same tick: the consumption is
+		// both processed and about to be added
+		con.suspend();
+		con.registerConsumption();
+		Assert.assertEquals("The consumption should be listed once in the snapshot", 1,
+				((CountingState) countedOffer.getSpreaderState()).consumptionCount());
+		Timed.simulateUntilLastEvent();
+	}
+
 	@Test(timeout = 100)
 	public void testSpreaderState() {
 		
@@ -32,21 +32,26 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import at.ac.uibk.dps.cloud.simulator.test.CompletionCounter;
 import at.ac.uibk.dps.cloud.simulator.test.ConsumptionEventAssert;
 import at.ac.uibk.dps.cloud.simulator.test.IaaSRelatedFoundation;
 import hu.mta.sztaki.lpds.cloud.simulator.DeferredEvent;
 import hu.mta.sztaki.lpds.cloud.simulator.Timed;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.PhysicalMachine;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMPool;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMManager.VMManagementException;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VirtualMachine;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VirtualMachine.State;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VirtualMachine.StateChangeException;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.AlterableResourceConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ResourceConstraints;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.CompactTaskSet;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ConsumptionEventAdapter;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.resourcemodel.ResourceConsumption;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
 import hu.mta.sztaki.lpds.cloud.simulator.io.Repository;
 import hu.mta.sztaki.lpds.cloud.simulator.io.StorageObject;
+import hu.mta.sztaki.lpds.cloud.simulator.io.VACache;
 import hu.mta.sztaki.lpds.cloud.simulator.io.VirtualAppliance;
 
 public class VMTest extends IaaSRelatedFoundation {
@@ -163,6 +168,50 @@ public class VMTest extends IaaSRelatedFoundation {
 		Timed.simulateUntilLastEvent();
 	}
 
+	@Test(timeout = 100)
+	public void pooledVMReuse() throws VMManagementException, NetworkException {
+		final VMPool pool = new VMPool(false);
+		final VirtualMachine vm = pool.acquire(va);
+		switchOnVMwithMaxCapacity(vm, true);
+		vm.newComputeTask(1, ResourceConsumption.unlimitedProcessing, new ConsumptionEventAdapter());
+		Timed.simulateUntilLastEvent();
+		final double firstTotal = vm.getTotalProcessed();
+		try {
+			pool.release(vm);
+			Assert.fail("Running VMs should not be released");
+		} catch (IllegalStateException ex) {
+			// Expected for running VMs
+		}
+		vm.destroy(false);
+		pool.release(vm);
+		try {
+			vm.subscribeStateChange(new VirtualMachine.StateChange() {
+				@Override
+				public void stateChanged(VirtualMachine vmInt, VirtualMachine.State oldState,
+						VirtualMachine.State newState) {
+					// Should never be subscribed
+				}
+			});
+			Assert.fail("Released VMs should not be usable");
+		} catch (IllegalStateException ex) {
+			// Expected after release
+		}
+		final VirtualMachine reused = pool.acquire(va);
+		Assert.assertSame("The released VM should be reused", vm, reused);
+		Assert.assertEquals("The reused VM should be reset", 0, reused.getTotalProcessed(), 0);
+		Assert.assertNull("The reused VM should not have an allocation", reused.getResourceAllocation());
+		switchOnVMwithMaxCapacity(reused, true);
+		Assert.assertEquals("The reused VM should start", VirtualMachine.State.RUNNING, reused.getState());
+		final ConsumptionEventAdapter task = new ConsumptionEventAdapter();
+		reused.newComputeTask(1, ResourceConsumption.unlimitedProcessing, task);
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The reused VM should run tasks", task.isCompleted());
+		Assert.assertEquals("The reused VM should only account for its new tasks", firstTotal,
+				reused.getTotalProcessed(), 0.0001);
+		Assert.assertEquals("Only one VM should be created", 1, pool.getCreatedCount());
+		reused.destroy(false);
+	}
+
 	@Test(expected = VMManagementException.class, timeout = 100)
 	public void faultyBgLoadVMStartup() throws VMManagementException, NetworkException {
 		centralVMwithBG.switchOn(pm.allocateResources(pm.getCapacities(), true, PhysicalMachine.defaultAllocLen),
@@ -191,6 +240,105 @@ public class VMTest extends IaaSRelatedFoundation {
 		switchOnVMwithMaxCapacity(centralVM, true);
 	}
 
+	@Test(timeout = 100)
+	public void cachedVAPreparation() throws VMManagementException, NetworkException {
+		final PhysicalMachine target = dummyPMcreator();
+		final VACache cache = new VACache(target.localDisk, va.size, VACache.EvictionPolicy.LRU);
+		long before = Timed.getFireCount();
+		final VirtualMachine first = new VirtualMachine(va);
+		final VirtualMachine concurrent = new VirtualMachine(va);
+		first.prepare(repo, target.localDisk);
+		concurrent.prepare(repo, target.localDisk);
+		Timed.simulateUntilLastEvent();
+		final long missDuration = Timed.getFireCount() - before;
+		Assert.assertEquals("VM is not in expected state after prepare", VirtualMachine.State.SHUTDOWN,
+				concurrent.getState());
+		Assert.assertEquals("The VA should have been transferred only once", 1, cache.getMisses());
+		Assert.assertEquals("The concurrent request should wait for the transfer", 1, cache.getHits());
+		Assert.assertTrue("The VA should be cached", cache.isCached(va.id));
+		before = Timed.getFireCount();
+		final VirtualMachine second = new VirtualMachine(va);
+		second.prepare(repo, target.localDisk);
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("VM is not in expected state after prepare", VirtualMachine.State.SHUTDOWN,
+				second.getState());
+		Assert.assertEquals("The cached VA should be used", 2, cache.getHits());
+		Assert.assertTrue("Cached VAs should be prepared faster", Timed.getFireCount() - before < missDuration);
+		final VirtualAppliance other = new VirtualAppliance("OtherVA", 1000, 0, false, va.size);
+		repo.registerObject(other);
+		final VirtualMachine third = new VirtualMachine(other);
+		third.prepare(repo, target.localDisk);
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("VM is not in expected state after prepare", VirtualMachine.State.SHUTDOWN,
+				third.getState());
+		Assert.assertEquals("The previous VA should be evicted", 1, cache.getEvictions());
+		Assert.assertFalse("The previous VA should not be cached", cache.isCached(va.id));
+		Assert.assertTrue("The new VA should be cached", cache.isCached(other.id));
+		Assert.assertEquals("The cache should not exceed its capacity", va.size, cache.getUsedCapacity());
+		Assert.assertNull("The evicted VA should not be on the disk", target.localDisk.lookup(va.id));
+	}
+
+	@Test(timeout = 100)
+	public void lfuVACacheEviction() throws VMManagementException, NetworkException {
+		final PhysicalMachine target = dummyPMcreator();
+		final VACache cache = new VACache(target.localDisk, 2 * va.size, VACache.EvictionPolicy.LFU);
+		final VirtualAppliance other = new VirtualAppliance("OtherVA", 1000, 0, false, va.size);
+		final VirtualAppliance third = new VirtualAppliance("ThirdVA", 1000, 0, false, va.size);
+		repo.registerObject(other);
+		repo.registerObject(third);
+		// The frequently used VA is used least recently
+		for (VirtualAppliance toPrepare : new VirtualAppliance[] { va, va, other, third }) {
+			new VirtualMachine(toPrepare).prepare(repo, target.localDisk);
+			Timed.simulateUntilLastEvent();
+		}
+		Assert.assertEquals("Only the less frequently used VA should be evicted", 1, cache.getEvictions());
+		Assert.assertTrue("The frequently used VA should be kept", cache.isCached(va.id));
+		Assert.assertFalse("The less frequently used VA should be evicted", cache.isCached(other.id));
+		Assert.assertTrue("The new VA should be cached", cache.isCached(third.id));
+	}
+
+	@Test(timeout = 100)
+	public void cancelledVACacheFill() throws NetworkException {
+		final PhysicalMachine target = dummyPMcreator();
+		final VACache cache = new VACache(target.localDisk, va.size, VACache.EvictionPolicy.LRU);
+		final long beforeFreeStorage = target.localDisk.getFreeStorageCapacity();
+		final ConsumptionEventAdapter first = new ConsumptionEventAdapter();
+		final ConsumptionEventAdapter concurrent = new ConsumptionEventAdapter();
+		Assert.assertTrue("The delivery should be initiated", cache.deliver(va, repo, "FirstDisk", first));
+		Assert.assertTrue("The delivery should be initiated", cache.deliver(va, repo, "ConcurrentDisk", concurrent));
+		while (target.localDisk.inbws.underProcessing.isEmpty()) {
+			Timed.fire();
+		}
+		target.localDisk.inbws.underProcessing.get(0).cancel();
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The deployment should be cancelled with the fill", first.isCancelled());
+		Assert.assertTrue("The waiting deployment should be cancelled with the fill", concurrent.isCancelled());
+		Assert.assertFalse("The VA should not be cached", cache.isCached(va.id));
+		Assert.assertEquals("The reservation of the fill should be released", 0, cache.getUsedCapacity());
+		Assert.assertEquals("The promised storage of the fill should be released", beforeFreeStorage,
+				target.localDisk.getFreeStorageCapacity());
+		final ConsumptionEventAdapter retry = new ConsumptionEventAdapter();
+		Assert.assertTrue("The delivery should be initiated", cache.deliver(va, repo, "RetryDisk", retry));
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("A new fill should be started after the cancellation", retry.isCompleted());
+		Assert.assertTrue("The VA should be cached", cache.isCached(va.id));
+	}
+
+	@Test(timeout = 100)
+	public void failedCloneAfterVACacheFill() throws NetworkException {
+		final PhysicalMachine target = dummyPMcreator();
+		final VACache cache = new VACache(target.localDisk, va.size, VACache.EvictionPolicy.LRU);
+		final ConsumptionEventAdapter waiting = new ConsumptionEventAdapter();
+		Assert.assertTrue("The delivery should be initiated", cache.deliver(va, repo, "WaitingDisk", waiting));
+		// Leaves no room for the disk once the VA arrives
+		target.localDisk.registerObject(
+				new StorageObject("Filler", target.localDisk.getFreeStorageCapacity(), false));
+		Timed.simulateUntilLastEvent();
+		Assert.assertFalse("The disk should not be created", waiting.isCompleted());
+		Assert.assertTrue("The waiting deployment should be notified about the failure", waiting.isCancelled());
+		Assert.assertTrue("The VA should still be cached", cache.isCached(va.id));
+	}
+
 	@Test(timeout = 100)
 	public void prepareOnlyTest() throws VMManagementException, NetworkException {
 		long beforeFreeStorage = pm.localDisk.getFreeStorageCapacity();
@@ -304,6 +452,91 @@ public class VMTest extends IaaSRelatedFoundation {
 				centralVM.newComputeTask(1, 1, new ConsumptionEventAssert()));
 	}
 
+	@Test(timeout = 100)
+	public void bulkComputeTasks() throws VMManagementException, NetworkException {
+		Assert.assertNull("VM should not accept tasks while destroyed",
+				centralVM.newComputeTasks(new double[] { 1 }, 1, new ConsumptionEventAssert()));
+		switchOnVMwithMaxCapacity(centralVM, true);
+		final double[] totals = new double[100];
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] = (i % 5) * 1000;
+		}
+		final CompletionCounter bulk = new CompletionCounter();
+		long before = Timed.getFireCount();
+		final ResourceConsumption[] tasks = centralVM.newComputeTasks(totals, ResourceConsumption.unlimitedProcessing,
+				bulk);
+		Assert.assertEquals("All tasks should be created", totals.length, tasks.length);
+		for (int i = 0; i < tasks.length; i++) {
+			Assert.assertTrue("Non-empty tasks should be registered", totals[i] == 0 || tasks[i].isRegistered());
+		}
+		Timed.simulateUntilLastEvent();
+		final long bulkDuration = bulk.getLastCompletion() - before;
+		final CompletionCounter single = new CompletionCounter();
+		before = Timed.getFireCount();
+		for (int i = 0; i < totals.length; i++) {
+			centralVM.newComputeTask(totals[i], ResourceConsumption.unlimitedProcessing, single);
+		}
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("All bulk tasks should complete", totals.length, bulk.getCompletions());
+		Assert.assertEquals("Bulk tasks should be processed as if they were registered one by one",
+				single.getLastCompletion() - before, bulkDuration);
+	}
+
+	@Test(timeout = 100)
+	public void boundedTaskConcurrency() throws VMManagementException, NetworkException {
+		switchOnVMwithMaxCapacity(centralVM, true);
+		centralVM.setTaskConcurrency(2);
+		final CompletionCounter queued = new CompletionCounter();
+		final long before = Timed.getFireCount();
+		final ResourceConsumption[] tasks = new ResourceConsumption[6];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = centralVM.newComputeTask(1000, ResourceConsumption.unlimitedProcessing, queued);
+		}
+		final VirtualMachine.TaskQueue queue = centralVM.getTaskQueue();
+		Assert.assertTrue("The first tasks should be admitted", tasks[0].isRegistered() && tasks[1].isRegistered());
+		Assert.assertFalse("Tasks above the concurrency level should wait", tasks[2].isRegistered());
+		Assert.assertEquals("The rest of the tasks should be queued", 4, queue.getQueueLength());
+		Timed.fire();
+		Assert.assertEquals("Only the admitted tasks should be processed", 2, centralVM.underProcessing.size());
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("All queued tasks should complete", tasks.length, queued.getCompletions());
+		Assert.assertEquals("The queue should be empty at the end", 0, queue.getQueueLength());
+		Assert.assertEquals("The longest queue should be recorded", 4, queue.getMaxQueueLength());
+		Assert.assertEquals("All tasks should be admitted", tasks.length, queue.getAdmittedCount());
+		// Pairs of tasks are processed one after the other
+		final long pairDuration = (queued.getLastCompletion() - before) / 3;
+		Assert.assertEquals("The last tasks should wait for two pairs", pairDuration * 2, queue.getMaxWaitTime(),
+				2);
+		Assert.assertEquals("Waits should be averaged over all tasks", pairDuration,
+				queue.getMeanWaitTime(), 2);
+	}
+
+	@Test(timeout = 100)
+	public void queuedTasksCancelledOnSwitchoff() throws VMManagementException, NetworkException {
+		switchOnVMwithMaxCapacity(centralVM, true);
+		centralVM.setTaskConcurrency(1);
+		final ConsumptionEventAdapter[] evs = new ConsumptionEventAdapter[3];
+		for (int i = 0; i < evs.length; i++) {
+			evs[i] = new ConsumptionEventAdapter();
+			centralVM.newComputeTask(1000, ResourceConsumption.unlimitedProcessing, evs[i]);
+		}
+		Timed.fire();
+		try {
+			centralVM.switchoff(false);
+			Assert.fail("Queued tasks should prevent a switchoff without killing them");
+		} catch (StateChangeException ex) {
+			// Correct behavior
+		}
+		centralVM.switchoff(true);
+		Timed.simulateUntilLastEvent();
+		for (int i = 0; i < evs.length; i++) {
+			Assert.assertTrue("All tasks should be cancelled", evs[i].isCancelled());
+			Assert.assertFalse("No task should complete", evs[i].isCompleted());
+		}
+		Assert.assertEquals("Queued tasks should never be admitted", 1,
+				centralVM.getTaskQueue().getAdmittedCount());
+	}
+
 	@Test(expected = StateChangeException.class, timeout = 100)
 	public void errenousAllocationRequest() throws VMManagementException, NetworkException {
 		AlterableResourceConstraints constraints = new AlterableResourceConstraints(pm.getCapacities());
@@ -437,6 +670,37 @@ public class VMTest extends IaaSRelatedFoundation {
 				pmtarget.localDisk.getMaxStorageCapacity() - va.size, pmtarget.localDisk.getFreeStorageCapacity());
 	}
 
+	@Test(timeout = 100)
+	public void compactTasksFollowMigration() throws VMManagementException, NetworkException {
+		final PhysicalMachine pmtarget = createAndExecutePM();
+		switchOnVMwithMaxCapacity(centralVM, true);
+		final double beforePmCon = pm.getTotalProcessed();
+		final int[] completions = new int[1];
+		final CompactTaskSet set = centralVM.newCompactTaskSet(ResourceConsumption.unlimitedProcessing,
+				new CompactTaskSet.TaskEvent() {
+					@Override
+					public void taskComplete(final long id) {
+						completions[0]++;
+					}
+
+					@Override
+					public void taskCancelled(final long id) {
+						Assert.fail("No compact task should be cancelled");
+					}
+				});
+		final double ctLen = 100 * aSecond;
+		set.addTask(0, ctLen);
+		set.addTask(1, 2 * ctLen);
+		Timed.simulateUntil(Timed.getFireCount() + aSecond);
+		final double beforeMigration = pm.getTotalProcessed() - beforePmCon;
+		doMigration(pm, pmtarget, centralVM, true);
+		Assert.assertEquals("All compact tasks should complete", 2, completions[0]);
+		Assert.assertEquals("The source should not process compact tasks after the migration", beforeMigration,
+				pm.getTotalProcessed() - beforePmCon, 0.01);
+		Assert.assertEquals("The target should process the rest of the compact tasks", 3 * ctLen - beforeMigration,
+				pmtarget.getTotalProcessed(), 0.01);
+	}
+
 	@Test(timeout = 100)
 	public void simpleMigrationWithBgNWL() throws VMManagementException, NetworkException {
 		final long beforeSize = pm.localDisk.getFreeStorageCapacity();
@@ -447,6 +711,94 @@ public class VMTest extends IaaSRelatedFoundation {
 				pmtarget.localDisk.getMaxStorageCapacity(), pmtarget.localDisk.getFreeStorageCapacity());
 	}
 
+	@Test(timeout = 100)
+	public void preCopyLiveMigration() throws VMManagementException, NetworkException {
+		final long beforeSize = pm.localDisk.getFreeStorageCapacity();
+		final PhysicalMachine pmtarget = createAndExecutePM();
+		final PhysicalMachine.ResourceAllocation unused = pmtarget.allocateResources(pmtarget.getCapacities(), true,
+				PhysicalMachine.migrationAllocLen);
+		try {
+			centralVM.liveMigrate(unused);
+			Assert.fail("Only running VMs should be live migrated");
+		} catch (StateChangeException ex) {
+			// Correct behavior
+		}
+		unused.cancel();
+		switchOnVMwithMaxCapacity(centralVM, true);
+		centralVM.setDirtyPageRate(0.1);
+		final double beforePmCon = pm.getTotalProcessed();
+		final ConsumptionEventAdapter task = new ConsumptionEventAdapter();
+		final double ctLen = 10 * centralVM.getResourceAllocation().allocated.getRequiredMemory();
+		final long before = Timed.getFireCount();
+		centralVM.newComputeTask(ctLen, ResourceConsumption.unlimitedProcessing, task);
+		final VirtualMachine.PreCopyMigration mig = pm.liveMigrateVM(centralVM, pmtarget);
+		Assert.assertNotNull("The live migration should start", mig);
+		Timed.simulateUntil(Timed.getFireCount() + aSecond);
+		Assert.assertEquals("The VM should run during the pre-copy rounds", VirtualMachine.State.RUNNING,
+				centralVM.getState());
+		Assert.assertTrue("The VM should still be on its old host", pm.publicVms.contains(centralVM));
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The live migration should complete", mig.isCompleted());
+		Assert.assertSame("The VM should report its live migration", mig, centralVM.getLiveMigration());
+		Assert.assertTrue("Several pre-copy rounds should be needed", mig.getRounds() > 1);
+		Assert.assertTrue("The downtime should be shorter than a complete memory transfer",
+				mig.getDowntime() < centralVM.getResourceAllocation().allocated.getRequiredMemory());
+		Assert.assertTrue("Dirtied memory should be transferred again",
+				mig.getTransferredBytes() > centralVM.getResourceAllocation().allocated.getRequiredMemory()
+						+ va.size);
+		Assert.assertTrue("VM is not on its new host", pmtarget.publicVms.contains(centralVM));
+		Assert.assertFalse("VM is still on its old host", pm.publicVms.contains(centralVM));
+		Assert.assertTrue("The task should complete on the new host", task.isCompleted());
+		Assert.assertEquals("The task should run on the old host until the stop-and-copy phase",
+				mig.getTotalMigrationTime() - mig.getDowntime(), pm.getTotalProcessed() - beforePmCon, 2);
+		Assert.assertEquals("The task should only be delayed by the downtime", ctLen + mig.getDowntime(),
+				Timed.getFireCount() - before, 2);
+		Assert.assertEquals("The source of the migration should not have any storage occupied by the VM's remainders",
+				beforeSize, pm.localDisk.getFreeStorageCapacity());
+		Assert.assertEquals("The target of the migration should only have the disk of the VM",
+				pmtarget.localDisk.getMaxStorageCapacity() - va.size, pmtarget.localDisk.getFreeStorageCapacity());
+		centralVM.destroy(false);
+	}
+
+	private long cancelLiveMigrationTransfer(final PhysicalMachine pmtarget,
+			final boolean memoryTransfer) throws VMManagementException, NetworkException {
+		switchOnVMwithMaxCapacity(centralVM, true);
+		final long memory = centralVM.getResourceAllocation().allocated.getRequiredMemory();
+		final VirtualMachine.PreCopyMigration mig = pm.liveMigrateVM(centralVM, pmtarget);
+		while (pmtarget.localDisk.inbws.underProcessing.size() < 2) {
+			Timed.fire();
+		}
+		for (final ResourceConsumption con : pmtarget.localDisk.inbws.underProcessing) {
+			if ((con.getUnProcessed() == memory) == memoryTransfer) {
+				con.cancel();
+				break;
+			}
+		}
+		final long cancelled = Timed.getFireCount();
+		Timed.simulateUntilLastEvent();
+		Assert.assertTrue("The live migration should be given up", mig.isAborted());
+		Assert.assertEquals("The VM should keep running", VirtualMachine.State.RUNNING, centralVM.getState());
+		Assert.assertTrue("The VM should stay on its old host", pm.publicVms.contains(centralVM));
+		Assert.assertEquals("The allocation on the new host should be cancelled", 0,
+				pmtarget.getCapacities().compareTo(pmtarget.freeCapacities));
+		Assert.assertEquals("The new host should not keep the disk of the VM",
+				pmtarget.localDisk.getMaxStorageCapacity(), pmtarget.localDisk.getFreeStorageCapacity());
+		return Timed.getFireCount() - cancelled;
+	}
+
+	@Test(timeout = 100)
+	public void abortedLiveMigrationCancelsTransfers() throws VMManagementException, NetworkException {
+		final PhysicalMachine pmtarget = createAndExecutePM();
+		final long memory = pm.getCapacities().getRequiredMemory();
+		Assert.assertTrue("The memory transfer should be cancelled with the disk transfer",
+				cancelLiveMigrationTransfer(pmtarget, false) < memory / pmtarget.localDisk.getInputbw());
+	}
+
+	@Test(timeout = 100)
+	public void abortedLiveMigrationDropsLateDisk() throws VMManagementException, NetworkException {
+		cancelLiveMigrationTransfer(createAndExecutePM(), true);
+	}
+
 	private void doubleMigrate(final VirtualMachine toUse) throws VMManagementException, NetworkException {
 		switchOnVMwithMaxCapacity(centralVM, true);
 		final PhysicalMachine pmtarget = createAndExecutePM();
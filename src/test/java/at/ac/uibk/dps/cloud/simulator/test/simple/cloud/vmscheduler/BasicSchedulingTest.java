@@ -32,14 +32,19 @@ import org.junit.Test;
 import at.ac.uibk.dps.cloud.simulator.test.IaaSRelatedFoundation;
 import hu.mta.sztaki.lpds.cloud.simulator.Timed;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.IaaSService;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.PhysicalMachine;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VMManager.VMManagementException;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.VirtualMachine;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.AlterableResourceConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ConstantConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.constraints.ResourceConstraints;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.pmscheduling.AlwaysOnMachines;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.pmscheduling.SchedulingDependentMachines;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.FirstFitScheduler;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.FreeCapacityIndex;
 import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.Scheduler;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.pmiterators.PMIterator;
+import hu.mta.sztaki.lpds.cloud.simulator.iaas.vmscheduling.pmiterators.RoundRobinIterator;
 import hu.mta.sztaki.lpds.cloud.simulator.io.NetworkNode.NetworkException;
 import hu.mta.sztaki.lpds.cloud.simulator.io.Repository;
 import hu.mta.sztaki.lpds.cloud.simulator.io.VirtualAppliance;
@@ -108,6 +113,116 @@ public class BasicSchedulingTest extends IaaSRelatedFoundation {
 				VirtualMachine.State.RUNNING, vmSecond.getState());
 	}
 
+	private long bulkDeploymentDuration(final boolean multicast) throws Exception {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, AlwaysOnMachines.class, 5, 1);
+		Timed.simulateUntilLastEvent();
+		Repository r = s.repositories.get(0);
+		r.setMulticastBulkDeliveries(multicast);
+		VirtualAppliance va = (VirtualAppliance) r.contents().iterator().next();
+		final long before = Timed.getFireCount();
+		VirtualMachine[] vms = s.requestVM(va, s.machines.get(0).getCapacities(), r, 5);
+		Timed.simulateUntilLastEvent();
+		for (VirtualMachine vm : vms) {
+			Assert.assertEquals("All VMs should be running after the deployment", VirtualMachine.State.RUNNING,
+					vm.getState());
+		}
+		return Timed.getFireCount() - before;
+	}
+
+	@Test(timeout = 100)
+	public void multicastBulkDeployment() throws Exception {
+		final long unicast = bulkDeploymentDuration(false);
+		final long multicast = bulkDeploymentDuration(true);
+		Assert.assertTrue("Multicast deployment should be faster than separate transfers", multicast < unicast);
+	}
+
+	@Test(timeout = 100)
+	public void freeCapacityIndexLookup()
+			throws IllegalArgumentException, SecurityException, InstantiationException, IllegalAccessException,
+			InvocationTargetException, NoSuchMethodException, VMManagementException {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, AlwaysOnMachines.class, 4, 1);
+		Timed.simulateUntilLastEvent();
+		final FreeCapacityIndex index = new FreeCapacityIndex(s);
+		final int pmCount = s.runningMachines.size();
+		Assert.assertEquals("All PMs should be running", 4, pmCount);
+		AlterableResourceConstraints rc = new AlterableResourceConstraints(s.machines.get(0).getCapacities());
+		rc.multiply(0.6);
+		Assert.assertEquals("The first PM should fit when all are empty", 0, index.firstFit(rc, 0, pmCount));
+		final PhysicalMachine first = s.runningMachines.get(0);
+		final PhysicalMachine.ResourceAllocation ra = first.allocateResources(rc, true,
+				PhysicalMachine.defaultAllocLen);
+		Assert.assertEquals("The partially allocated PM should be skipped", 1, index.firstFit(rc, 0, pmCount));
+		Assert.assertEquals("The search should respect its range", -1, index.firstFit(rc, 0, 1));
+		ra.cancel();
+		Assert.assertEquals("Cancelled allocations should make the PM available again", 0,
+				index.firstFit(rc, 0, pmCount));
+		rc.multiply(2);
+		Assert.assertEquals("Requests bigger than any PM should not fit", -1, index.firstFit(rc, 0, pmCount));
+	}
+
+	@Test(timeout = 100)
+	public void freeCapacityIndexVersion()
+			throws IllegalArgumentException, SecurityException, InstantiationException, IllegalAccessException,
+			InvocationTargetException, NoSuchMethodException, VMManagementException {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, AlwaysOnMachines.class, 2, 1);
+		Timed.simulateUntilLastEvent();
+		final FreeCapacityIndex index = new FreeCapacityIndex(s);
+		final ResourceConstraints caps = s.machines.get(0).getCapacities();
+		final long initial = index.getVersion();
+		Assert.assertEquals("Queries should not change the version", -1, index.firstFit(caps, 2, 2));
+		Assert.assertEquals("Queries should not change the version", initial, index.getVersion());
+		final PhysicalMachine.ResourceAllocation ra = s.runningMachines.get(0).allocateResources(caps, true,
+				PhysicalMachine.defaultAllocLen);
+		final long allocated = index.getVersion();
+		Assert.assertTrue("Allocations should change the version", allocated != initial);
+		ra.cancel();
+		Assert.assertTrue("Freed capacities should change the version", allocated != index.getVersion());
+	}
+
+	@Test(timeout = 100)
+	public void switchedOnPMRescanned() throws Exception {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, SchedulingDependentMachines.class, 2, 1);
+		Repository r = s.repositories.get(0);
+		VirtualAppliance va = (VirtualAppliance) r.contents().iterator().next();
+		final ResourceConstraints caps = s.machines.get(0).getCapacities();
+		VirtualMachine first = s.requestVM(va, caps, r, 1)[0];
+		Timed.simulateUntilLastEvent();
+		VirtualMachine second = s.requestVM(va, caps, r, 1)[0];
+		Timed.simulateUntilLastEvent();
+		Assert.assertEquals("The first VM should run", VirtualMachine.State.RUNNING, first.getState());
+		Assert.assertEquals("The newly switched on PM should host the waiting VM", VirtualMachine.State.RUNNING,
+				second.getState());
+	}
+
+	@Test(timeout = 100)
+	public void iteratorOrderCapability() throws Exception {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, AlwaysOnMachines.class, 2, 1);
+		Assert.assertTrue("The basic iterator should keep the list order",
+				new PMIterator(s.runningMachines).iteratesInOrderOf(s.runningMachines));
+		Assert.assertFalse("The iterator should only report the order of its own list",
+				new PMIterator(s.machines).iteratesInOrderOf(s.runningMachines));
+		Assert.assertFalse("Iterators changing the order should not report the list order",
+				new RoundRobinIterator(s.runningMachines).iteratesInOrderOf(s.runningMachines));
+	}
+
+	@Test(timeout = 100)
+	public void hostabilityFollowsRegistrations() throws Exception {
+		IaaSService s = setupIaaS(FirstFitScheduler.class, AlwaysOnMachines.class, 2, 1);
+		Repository r = s.repositories.get(0);
+		VirtualAppliance va = (VirtualAppliance) r.contents().iterator().next();
+		AlterableResourceConstraints rc = new AlterableResourceConstraints(s.machines.get(0).getCapacities());
+		rc.multiply(0.5);
+		Assert.assertEquals("Two half sized VMs should fit on each PM", 4, s.requestVM(va, rc, r, 4).length);
+		try {
+			s.requestVM(va, rc, r, 5);
+			Assert.fail("No combination of the PMs should host five half sized VMs");
+		} catch (VMManagementException e) {
+			// Correct behavior
+		}
+		s.registerHost(dummyPMcreator(1));
+		Assert.assertEquals("The new PM should increase the hostable VM count", 5, s.requestVM(va, rc, r, 5).length);
+	}
+
 	public static class AssertFulScheduler extends Scheduler {
 		public AssertFulScheduler(IaaSService parent) {
 			super(parent);